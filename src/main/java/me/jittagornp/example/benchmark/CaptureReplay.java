@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.benchmark;
+
+import me.jittagornp.example.websocket.CaptureConfig;
+import me.jittagornp.example.websocket.CaptureReader;
+import me.jittagornp.example.websocket.FrameData;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay a capture of {@link CaptureConfig} against a running server : one connection per captured session,
+ * connected, fed the same frames and closed in the captured order.
+ * <p>
+ * Speed "recorded" keeps the captured timing (and reports how far behind it the replay has been),
+ * "fast" sends as fast as the server accepts. Answers of the server are read and discarded.
+ * Frames are masked with key 0, the payload is sent as captured.
+ * <p>
+ * Run : java me.jittagornp.example.benchmark.CaptureReplay captureFile [host:port] [recorded|fast]
+ *
+ * @author jitta
+ */
+public class CaptureReplay {
+
+    private static final String HANDSHAKE_REQUEST = "GET / HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+
+    //1 byte + 9 bytes payload length + 4 bytes masking key
+    private static final int MAX_HEADER_SIZE = 14;
+
+    private final InetSocketAddress address;
+
+    private final boolean recordedSpeed;
+
+    private final Selector selector;
+
+    //Open connections by captured session
+    private final Map<Integer, SocketChannel> connections;
+
+    private final ByteBuffer headerBuffer;
+
+    private final ByteBuffer[] frameBuffers;
+
+    private final ByteBuffer readBuffer;
+
+    private long frameCount;
+
+    private long sentBytes;
+
+    private long receivedBytes;
+
+    private long maxLagNanos;
+
+    private CaptureReplay(final InetSocketAddress address, final boolean recordedSpeed) throws IOException {
+        this.address = address;
+        this.recordedSpeed = recordedSpeed;
+        this.selector = Selector.open();
+        this.connections = new HashMap<>();
+        this.headerBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        this.frameBuffers = new ByteBuffer[2];
+        this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage : CaptureReplay captureFile [host:port] [recorded|fast]");
+            return;
+        }
+        final String target = (args.length > 1) ? args[1] : "127.0.0.1:80";
+        final int separator = target.lastIndexOf(':');
+        final InetSocketAddress address = new InetSocketAddress(target.substring(0, separator), Integer.parseInt(target.substring(separator + 1)));
+        final boolean recordedSpeed = (args.length <= 2) || "recorded".equals(args[2]);
+
+        final CaptureReplay replay = new CaptureReplay(address, recordedSpeed);
+        try (final CaptureReader reader = CaptureReader.open(Paths.get(args[0]))) {
+            final long startTime = System.nanoTime();
+            replay.run(reader, startTime);
+            final long elapsed = System.nanoTime() - startTime;
+
+            System.out.println("===============================");
+            System.out.println("Replay of " + args[0] + " to " + target + ", speed : " + (recordedSpeed ? "recorded" : "fast"));
+            System.out.println("Frames : " + replay.frameCount + ", sent : " + (replay.sentBytes / 1024) + " KB, received : " + (replay.receivedBytes / 1024) + " KB");
+            System.out.println("Elapsed : " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            System.out.println("Frames per second : " + String.format("%.0f", replay.frameCount / (elapsed / 1_000_000_000.0)));
+            if (recordedSpeed) {
+                System.out.println("Max lag behind capture : " + String.format("%.2f", replay.maxLagNanos / 1_000_000.0) + " ms");
+            }
+        } finally {
+            replay.closeAll();
+        }
+    }
+
+    private void run(final CaptureReader reader, final long startTime) throws IOException {
+        //Idle time of the server before the first record is skipped
+        long firstTimeNanos = -1;
+        while (reader.next()) {
+            if (firstTimeNanos < 0) {
+                firstTimeNanos = reader.getTimeNanos();
+            }
+            //1. Wait for the captured time, reading answers meanwhile
+            if (recordedSpeed) {
+                final long due = startTime + (reader.getTimeNanos() - firstTimeNanos);
+                long remaining;
+                while ((remaining = due - System.nanoTime()) > TimeUnit.MILLISECONDS.toNanos(1)) {
+                    selector.select(this::read, TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                maxLagNanos = Math.max(maxLagNanos, -remaining);
+            }
+
+            //2. Same action on the connection of the session
+            final int session = reader.getSession();
+            switch (reader.getType()) {
+                case CONNECT:
+                    connect(session);
+                    break;
+                case FRAME:
+                    SocketChannel channel = connections.get(session);
+                    if (channel == null) {
+                        //Capture started after the handshake
+                        channel = connect(session);
+                    }
+                    writeFrame(channel, reader.getFrameData());
+                    break;
+                case DISCONNECT:
+                    close(connections.remove(session));
+                    break;
+                default:
+                    break;
+            }
+            selector.selectNow(this::read);
+        }
+    }
+
+    private SocketChannel connect(final int session) throws IOException {
+        final SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        final ByteBuffer request = ByteBuffer.wrap(HANDSHAKE_REQUEST.getBytes(StandardCharsets.UTF_8));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        //Blocking read of the 101 response, nothing is sent before it
+        final ByteBuffer response = ByteBuffer.allocate(1024);
+        while (!new String(response.array(), 0, response.position(), StandardCharsets.ISO_8859_1).contains("\r\n\r\n")) {
+            if (!response.hasRemaining() || channel.read(response) < 0) {
+                channel.close();
+                throw new IOException("Handshake failed for session " + session);
+            }
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        close(connections.put(session, channel));
+        return channel;
+    }
+
+    private void writeFrame(final SocketChannel channel, final FrameData frameData) throws IOException {
+        final ByteBuffer payload = frameData.getPayloadData().duplicate().flip();
+        final int payloadLength = payload.remaining();
+        headerBuffer.clear();
+        headerBuffer.put((byte) ((frameData.isFin() ? 0b10000000 : 0)
+                | (frameData.isRSV1() ? 0b01000000 : 0)
+                | (frameData.isRSV2() ? 0b00100000 : 0)
+                | (frameData.isRSV3() ? 0b00010000 : 0)
+                | frameData.getOpcode().getByteValue()));
+        //A client MUST mask all frames that it sends to the server (RFC6455 section 5.1)
+        if (payloadLength <= 125) {
+            headerBuffer.put((byte) (0b10000000 | payloadLength));
+        } else if (payloadLength <= 0xFFFF) {
+            headerBuffer.put((byte) (0b10000000 | 126)).putShort((short) payloadLength);
+        } else {
+            headerBuffer.put((byte) (0b10000000 | 127)).putLong(payloadLength);
+        }
+        headerBuffer.putInt(0);
+        frameBuffers[0] = headerBuffer.flip();
+        frameBuffers[1] = payload;
+
+        final long size = frameBuffers[0].remaining() + payloadLength;
+        while (frameBuffers[0].hasRemaining() || frameBuffers[1].hasRemaining()) {
+            if (channel.write(frameBuffers) == 0) {
+                //Server is not reading, answers may be what it waits for
+                selector.select(this::read, 1);
+            }
+        }
+        frameCount++;
+        sentBytes += size;
+    }
+
+    private void read(final SelectionKey key) {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            int count;
+            while ((count = channel.read(readBuffer.clear())) > 0) {
+                receivedBytes += count;
+            }
+            if (count < 0) {
+                //Closed by the server
+                key.cancel();
+            }
+        } catch (final IOException e) {
+            key.cancel();
+        }
+    }
+
+    private void close(final SocketChannel channel) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void closeAll() throws IOException {
+        for (final SocketChannel channel : connections.values()) {
+            channel.close();
+        }
+        selector.close();
+    }
+}
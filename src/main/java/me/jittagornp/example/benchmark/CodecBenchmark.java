@@ -0,0 +1,267 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.benchmark;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+import me.jittagornp.example.websocket.CompactCodec;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbenchmark of a message round trip as the server does it : JSON over text frames
+ * (StringBuilder -> String -> payload of send(String), payload -> String -> parsed map) against {@link CompactCodec}
+ * (encoded into a pooled payload, decoded from it). Report time, allocated bytes and payload size per message.
+ * <p>
+ * The JSON writer / parser here are minimal ones of this benchmark, a JSON library would allocate more, not less.
+ * <p>
+ * Run : java me.jittagornp.example.benchmark.CodecBenchmark [iterations]
+ *
+ * @author jitta
+ */
+public class CodecBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 500_000;
+
+    public static void main(final String[] args) {
+
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2_000_000;
+
+        //1. Market data like message
+        final Map<String, Object> message = new LinkedHashMap<>();
+        message.put("type", "trade");
+        message.put("symbol", "BTC-USD");
+        message.put("price", 64123.5);
+        message.put("size", 12L);
+        message.put("time", 1_700_000_000_000L);
+        message.put("buy", true);
+        message.put("venues", Arrays.asList("x", "y", "z"));
+
+        final CompactCodec codec = CompactCodec.getInstance();
+        final ByteBufferPool byteBufferPool = new ByteBufferPool(16);
+
+        //2. Same message back from both
+        if (!message.equals(runJson(message, 1).message) || !message.equals(runCompact(message, codec, byteBufferPool, 1).message)) {
+            throw new IllegalStateException("Round trip does not give the same message");
+        }
+
+        //3. Warm up JIT
+        runJson(message, WARMUP_ITERATIONS);
+        runCompact(message, codec, byteBufferPool, WARMUP_ITERATIONS);
+
+        //4. Measure
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        final Result json = runJson(message, iterations);
+        final long jsonElapsed = System.nanoTime() - startTime;
+        final long jsonAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        startTime = System.nanoTime();
+        final Result compact = runCompact(message, codec, byteBufferPool, iterations);
+        final long compactElapsed = System.nanoTime() - startTime;
+        final long compactAllocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("===============================");
+        System.out.println("Codec benchmark, encode + decode");
+        System.out.println("Iterations : " + iterations);
+        print("JSON text", json, jsonElapsed, jsonAllocated, iterations);
+        print(codec.getSubprotocol(), compact, compactElapsed, compactAllocated, iterations);
+    }
+
+    private static void print(final String name, final Result result, final long elapsed, final long allocated, final int iterations) {
+        System.out.println("-------------------------------");
+        System.out.println(name);
+        System.out.println("Time per message : " + ((double) elapsed / iterations) + " ns");
+        System.out.println("Allocated per message : " + ((double) allocated / iterations) + " bytes");
+        System.out.println("Payload size : " + result.payloadSize + " bytes");
+    }
+
+    private static Result runJson(final Map<String, Object> message, final int iterations) {
+        final Result result = new Result();
+        final StringBuilder builder = new StringBuilder(256);
+        for (int i = 0; i < iterations; i++) {
+            builder.setLength(0);
+            writeJson(message, builder);
+            final ByteBuffer payload = ByteBufferUtils.create(builder.toString());
+            result.payloadSize = payload.position();
+            result.message = new JsonParser(ByteBufferUtils.toText(payload)).parseValue();
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Result runCompact(final Map<String, Object> message, final CompactCodec codec, final ByteBufferPool byteBufferPool, final int iterations) {
+        final Result result = new Result();
+        for (int i = 0; i < iterations; i++) {
+            final PooledByteBuffer pooledBuffer = byteBufferPool.acquire(codec.getEncodedSize(message));
+            codec.encode(message, pooledBuffer.getByteBuffer());
+            result.payloadSize = pooledBuffer.getByteBuffer().position();
+            result.message = codec.decode(ByteBufferUtils.readView(pooledBuffer.getByteBuffer()));
+            pooledBuffer.release();
+        }
+        return result;
+    }
+
+    private static void writeJson(final Object value, final StringBuilder builder) {
+        if (value == null || value instanceof Boolean || value instanceof Number) {
+            builder.append(value);
+        } else if (value instanceof CharSequence) {
+            final CharSequence text = (CharSequence) value;
+            builder.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    builder.append(String.format("\\u%04x", (int) c));
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        } else if (value instanceof List) {
+            builder.append('[');
+            final List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                writeJson(list.get(i), builder);
+            }
+            builder.append(']');
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                writeJson(entry.getKey(), builder);
+                builder.append(':');
+                writeJson(entry.getValue(), builder);
+            }
+            builder.append('}');
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value.getClass().getName());
+        }
+    }
+
+    private static class Result {
+
+        private Object message;
+
+        private int payloadSize;
+    }
+
+    /**
+     * Objects, arrays, strings (escapes of writeJson), integer / decimal numbers, true, false, null
+     */
+    private static class JsonParser {
+
+        private final String text;
+
+        private int index;
+
+        private JsonParser(final String text) {
+            this.text = text;
+        }
+
+        private Object parseValue() {
+            final char c = text.charAt(index);
+            if (c == '{') {
+                final Map<String, Object> map = new LinkedHashMap<>();
+                index++;
+                if (text.charAt(index) == '}') {
+                    index++;
+                    return map;
+                }
+                do {
+                    final String key = parseString();
+                    expect(':');
+                    map.put(key, parseValue());
+                } while (next() == ',');
+                return map;
+            }
+            if (c == '[') {
+                final List<Object> list = new ArrayList<>();
+                index++;
+                if (text.charAt(index) == ']') {
+                    index++;
+                    return list;
+                }
+                do {
+                    list.add(parseValue());
+                } while (next() == ',');
+                return list;
+            }
+            if (c == '"') {
+                return parseString();
+            }
+            if (text.startsWith("true", index)) {
+                index += 4;
+                return Boolean.TRUE;
+            }
+            if (text.startsWith("false", index)) {
+                index += 5;
+                return Boolean.FALSE;
+            }
+            if (text.startsWith("null", index)) {
+                index += 4;
+                return null;
+            }
+            return parseNumber();
+        }
+
+        private String parseString() {
+            expect('"');
+            final StringBuilder builder = new StringBuilder();
+            char c;
+            while ((c = text.charAt(index++)) != '"') {
+                if (c == '\\') {
+                    c = text.charAt(index++);
+                    if (c == 'u') {
+                        c = (char) Integer.parseInt(text.substring(index, index + 4), 16);
+                        index += 4;
+                    }
+                }
+                builder.append(c);
+            }
+            return builder.toString();
+        }
+
+        private Object parseNumber() {
+            final int start = index;
+            boolean decimal = false;
+            while (index < text.length() && "+-0123456789.eE".indexOf(text.charAt(index)) >= 0) {
+                decimal |= "+-0123456789".indexOf(text.charAt(index)) < 0;
+                index++;
+            }
+            final String number = text.substring(start, index);
+            return decimal ? (Object) Double.parseDouble(number) : (Object) Long.parseLong(number);
+        }
+
+        private void expect(final char c) {
+            if (text.charAt(index++) != c) {
+                throw new IllegalArgumentException("Expected " + c + " at " + (index - 1));
+            }
+        }
+
+        //Separator or end of object / array
+        private char next() {
+            return text.charAt(index++);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.benchmark;
+
+import me.jittagornp.example.websocket.CloseStatus;
+import me.jittagornp.example.websocket.FrameHeader;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Microbenchmark of frame header decoding, report time and allocated bytes per decoded header
+ * <p>
+ * Run : java me.jittagornp.example.benchmark.FrameHeaderBenchmark [iterations]
+ *
+ * @author jitta
+ */
+public class FrameHeaderBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 1_000_000;
+
+    public static void main(final String[] args) {
+
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+
+        //1. Headers of each payload length encoding, all masked like client frames
+        final ByteBuffer[] headers = {
+                header(0b10000001, 125),
+                header(0b10000010, 40_000),
+                header(0b10000010, 5_000_000_000L),
+                header(0b10001000, 2)
+        };
+
+        final FrameHeader frameHeader = new FrameHeader();
+
+        //2. Warm up JIT
+        run(headers, frameHeader, WARMUP_ITERATIONS);
+
+        //3. Measure
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        final long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        final long startTime = System.nanoTime();
+        final long checksum = run(headers, frameHeader, iterations);
+        final long elapsed = System.nanoTime() - startTime;
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("===============================");
+        System.out.println("Frame header decode benchmark");
+        System.out.println("Iterations : " + iterations);
+        System.out.println("Time per header : " + ((double) elapsed / iterations) + " ns");
+        System.out.println("Allocated per header : " + ((double) allocated / iterations) + " bytes");
+        System.out.println("Checksum : " + checksum);
+    }
+
+    private static long run(final ByteBuffer[] headers, final FrameHeader frameHeader, final int iterations) {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            final ByteBuffer header = headers[i & 3];
+            header.position(0);
+            frameHeader.decode(header, Long.MAX_VALUE);
+            checksum += frameHeader.getPayloadLength() + frameHeader.getOpcode().getByteValue();
+            if ((i & 3) == 3) {
+                checksum += CloseStatus.fromCode(1000 + (i & 15)).getCode();
+            }
+        }
+        return checksum;
+    }
+
+    private static ByteBuffer header(final int firstByte, final long payloadLength) {
+        final ByteBuffer buffer = ByteBuffer.allocate(14);
+        buffer.put((byte) firstByte);
+        if (payloadLength <= 125) {
+            buffer.put((byte) (0b10000000 | payloadLength));
+        } else if (payloadLength <= 65535) {
+            buffer.put((byte) (0b10000000 | 126));
+            buffer.putShort((short) payloadLength);
+        } else {
+            buffer.put((byte) (0b10000000 | 127));
+            buffer.putLong(payloadLength);
+        }
+        buffer.putInt(0x12345678);
+        return buffer.flip();
+    }
+}
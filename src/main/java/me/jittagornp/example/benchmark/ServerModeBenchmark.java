@@ -0,0 +1,283 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.benchmark;
+
+import me.jittagornp.example.websocket.CloseStatus;
+import me.jittagornp.example.websocket.TextWebSocketHandler;
+import me.jittagornp.example.websocket.WebSocket;
+import me.jittagornp.example.websocket.WebSocketServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Head to head of server modes : event loops (nio) and thread per connection ({@link WebSocketServer#virtualThreads()}).
+ * <p>
+ * Connect N clients, then echo rounds (every client sends one text message and waits for the echo),
+ * report connect time, heap and threads with N idle connections, round time and messages per second.
+ * Clients run on one selector thread of this process.
+ * <p>
+ * Run : java me.jittagornp.example.benchmark.ServerModeBenchmark [connections] [rounds] [payloadSize] [modes]
+ * <p>
+ * e.g. 10000 10 64 nio,virtual then 100000 10 64 nio,virtual on Java 21+.
+ * Every connection takes 2 file descriptors here (client and server side), raise ulimit -n above 2 x connections.
+ * More than ~28k connections to one address run out of client ports, spread them with
+ * -Dbenchmark.hosts=127.0.0.1,127.0.0.2,127.0.0.3,127.0.0.4
+ *
+ * @author jitta
+ */
+public class ServerModeBenchmark {
+
+    private static final int BASE_PORT = 9100;
+
+    private static final String HANDSHAKE_REQUEST = "GET / HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+
+    public static void main(final String[] args) throws Exception {
+
+        final int connections = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000;
+        final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        final int payloadSize = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        final List<String> modes = Arrays.asList(((args.length > 3) ? args[3] : "nio,virtual").split(","));
+        final String[] hosts = System.getProperty("benchmark.hosts", "127.0.0.1").split(",");
+
+        //Server logs every handshake and frame, silenced while measuring
+        final PrintStream out = System.out;
+
+        for (int i = 0; i < modes.size(); i++) {
+            final String mode = modes.get(i);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            final Result result = run(mode, BASE_PORT + i, hosts, connections, rounds, payloadSize);
+            System.setOut(out);
+
+            System.out.println("===============================");
+            System.out.println("Server mode : " + mode);
+            System.out.println("Connections : " + connections + ", rounds : " + rounds + ", payload : " + payloadSize + " bytes");
+            System.out.println("Connect + handshake : " + result.connectMillis + " ms");
+            System.out.println("Heap used with idle connections : " + (result.heapBytes / (1024 * 1024)) + " MB");
+            System.out.println("Platform threads : " + result.platformThreads);
+            System.out.println("Round time : " + String.format("%.2f", result.roundMillis) + " ms");
+            System.out.println("Messages per second : " + String.format("%.0f", result.messagesPerSecond));
+        }
+    }
+
+    private static Result run(final String mode, final int port, final String[] hosts, final int connections,
+                              final int rounds, final int payloadSize) throws Exception {
+
+        //1. Server of the mode, echo handler
+        final WebSocketServer server = WebSocketServer.port(port)
+                .backlog(4096)
+                .tcpNoDelay(true)
+                .addWebSocketHandler(new EchoHandler());
+        if ("virtual".equals(mode)) {
+            server.virtualThreads();
+        }
+        final Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        final Result result = new Result();
+        final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        try (final Selector selector = Selector.open()) {
+            //2. Connect and handshake
+            long startTime = System.nanoTime();
+            final List<Client> clients = new ArrayList<>(connections);
+            final ByteBuffer request = ByteBuffer.wrap(HANDSHAKE_REQUEST.getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < connections; i++) {
+                final SocketChannel channel = SocketChannel.open(new InetSocketAddress(hosts[i % hosts.length], port));
+                channel.configureBlocking(false);
+                writeFully(channel, request.duplicate());
+                final Client client = new Client(channel);
+                channel.register(selector, SelectionKey.OP_READ, client);
+                clients.add(client);
+            }
+            awaitResponses(selector, clients, client -> client.isHandshakeDone());
+            result.connectMillis = (System.nanoTime() - startTime) / 1_000_000;
+
+            System.gc();
+            Thread.sleep(200);
+            result.heapBytes = memoryMXBean.getHeapMemoryUsage().getUsed();
+            result.platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            //3. Echo rounds
+            final ByteBuffer frame = createMaskedTextFrame(payloadSize);
+            final int echoSize = ((payloadSize <= 125) ? 2 : 4) + payloadSize;
+            startTime = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (final Client client : clients) {
+                    client.expect(echoSize);
+                    writeFully(client.channel, frame.duplicate());
+                }
+                awaitResponses(selector, clients, client -> client.isEchoReceived());
+            }
+            final long elapsed = System.nanoTime() - startTime;
+            result.roundMillis = (elapsed / 1_000_000.0) / rounds;
+            result.messagesPerSecond = ((double) connections * rounds) / (elapsed / 1_000_000_000.0);
+
+            for (final Client client : clients) {
+                client.channel.close();
+            }
+        } finally {
+            server.stop();
+            serverThread.join(Duration.ofSeconds(10).toMillis());
+        }
+        return result;
+    }
+
+    private static void writeFully(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void awaitResponses(final Selector selector, final List<Client> clients, final ClientCondition condition) throws IOException {
+        int pending = 0;
+        for (final Client client : clients) {
+            if (!condition.isDone(client)) {
+                pending++;
+            }
+        }
+        final int[] remaining = {pending};
+        while (remaining[0] > 0) {
+            selector.select(key -> {
+                final Client client = (Client) key.attachment();
+                final boolean before = condition.isDone(client);
+                try {
+                    client.read();
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (!before && condition.isDone(client)) {
+                    remaining[0]--;
+                }
+            });
+        }
+    }
+
+    /**
+     * Mask key 0, payload is sent as is
+     */
+    private static ByteBuffer createMaskedTextFrame(final int payloadSize) {
+        final ByteBuffer frame = ByteBuffer.allocate(8 + payloadSize);
+        frame.put((byte) 0b10000001);
+        if (payloadSize <= 125) {
+            frame.put((byte) (0b10000000 | payloadSize));
+        } else {
+            frame.put((byte) (0b10000000 | 126));
+            frame.putShort((short) payloadSize);
+        }
+        frame.putInt(0);
+        for (int i = 0; i < payloadSize; i++) {
+            frame.put((byte) 'x');
+        }
+        return frame.flip();
+    }
+
+    private interface ClientCondition {
+
+        boolean isDone(final Client client);
+    }
+
+    private static class Client {
+
+        private final SocketChannel channel;
+
+        private final ByteBuffer buffer;
+
+        private boolean handshakeDone;
+
+        private long expectedBytes;
+
+        private Client(final SocketChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(512);
+        }
+
+        private void expect(final int bytes) {
+            expectedBytes += bytes;
+        }
+
+        private boolean isHandshakeDone() {
+            return handshakeDone;
+        }
+
+        private boolean isEchoReceived() {
+            return expectedBytes <= 0;
+        }
+
+        private void read() throws IOException {
+            buffer.clear();
+            final int count = channel.read(buffer);
+            if (count < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if (!handshakeDone) {
+                //Whole 101 response comes in one read on loopback
+                handshakeDone = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1).contains("\r\n\r\n");
+                return;
+            }
+            expectedBytes -= count;
+        }
+    }
+
+    private static class EchoHandler implements TextWebSocketHandler {
+
+        @Override
+        public void onConnect(final WebSocket webSocket) {
+
+        }
+
+        @Override
+        public void onMessage(final WebSocket webSocket, final String message) {
+            webSocket.send(message);
+        }
+
+        @Override
+        public void onError(final WebSocket webSocket, final Throwable e) {
+
+        }
+
+        @Override
+        public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+
+        }
+    }
+
+    private static class Result {
+
+        private long connectMillis;
+
+        private long heapBytes;
+
+        private int platformThreads;
+
+        private double roundMillis;
+
+        private double messagesPerSecond;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers grouped by power of two size classes (64 bytes .. 1 MB).
+ * <p>
+ * Larger buffers are allocated on demand and left to the garbage collector.
+ * Leak detection is enabled by the system property -Dwebsocket.leakDetection=true
+ *
+ * @author jitta
+ */
+public class ByteBufferPool {
+
+    //64 bytes
+    private static final int MIN_SIZE_SHIFT = 6;
+
+    //1 MB
+    private static final int MAX_SIZE_SHIFT = 20;
+
+    private static final int DEFAULT_MAX_POOLED_PER_SIZE = 1024;
+
+    private static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_MAX_POOLED_PER_SIZE);
+
+    private final Queue<ByteBuffer>[] pools;
+
+    private final AtomicInteger[] pooledCounts;
+
+    private final int maxPooledPerSize;
+
+    private final Cleaner cleaner;
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(final int maxPooledPerSize) {
+        final int sizeClasses = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        this.pools = (Queue<ByteBuffer>[]) new Queue<?>[sizeClasses];
+        this.pooledCounts = new AtomicInteger[sizeClasses];
+        for (int i = 0; i < sizeClasses; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+        this.maxPooledPerSize = maxPooledPerSize;
+        this.cleaner = Boolean.getBoolean("websocket.leakDetection") ? Cleaner.create() : null;
+    }
+
+    public static ByteBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return cleared buffer with at least capacity bytes, reference count is 1
+     */
+    public PooledByteBuffer acquire(final int capacity) {
+        final int index = sizeClassIndex(capacity);
+        if (index < 0) {
+            return new PooledByteBuffer(ByteBuffer.allocateDirect(capacity), this, cleaner);
+        }
+
+        ByteBuffer byteBuffer = pools[index].poll();
+        if (byteBuffer == null) {
+            byteBuffer = ByteBuffer.allocateDirect(1 << (index + MIN_SIZE_SHIFT));
+        } else {
+            pooledCounts[index].decrementAndGet();
+            byteBuffer.clear();
+        }
+        return new PooledByteBuffer(byteBuffer, this, cleaner);
+    }
+
+    void recycle(final ByteBuffer byteBuffer) {
+        final int capacity = byteBuffer.capacity();
+        final int index = sizeClassIndex(capacity);
+        //Only buffers created by this pool go back
+        if (index < 0 || capacity != (1 << (index + MIN_SIZE_SHIFT))) {
+            return;
+        }
+        if (pooledCounts[index].incrementAndGet() > maxPooledPerSize) {
+            pooledCounts[index].decrementAndGet();
+            return;
+        }
+        pools[index].offer(byteBuffer);
+    }
+
+    private int sizeClassIndex(final int capacity) {
+        final int shift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1));
+        if (shift > MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+}
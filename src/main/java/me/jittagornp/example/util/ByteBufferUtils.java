@@ -27,12 +27,18 @@ public class ByteBufferUtils {
         return byteBuffer;
     }
 
+    /**
+     * Read all available data, null when end of stream is reached before any data
+     */
     public static ByteBuffer read(final ReadableByteChannel channel, final int bufferSize) throws IOException {
         final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
         final List<ByteBuffer> buffers = new ArrayList<>();
         while (true) {
             //Read data / Write data from channel to byteBuffer
             int status = channel.read(buffer.clear());
+            if (status < 0 && buffers.isEmpty()) {
+                return null;
+            }
             if (status <= 0) {
                 break;
             }
@@ -55,6 +61,20 @@ public class ByteBufferUtils {
         return copy;
     }
 
+    /**
+     * Readable view of data written to buffer [0, position), without touching the buffer itself
+     */
+    public static ByteBuffer readView(final ByteBuffer written) {
+        return written.duplicate().flip();
+    }
+
+    /**
+     * Decode data written to buffer [0, position) as UTF-8 text
+     */
+    public static String toText(final ByteBuffer written) {
+        return StandardCharsets.UTF_8.decode(readView(written)).toString();
+    }
+
     public static ByteBuffer concat(final Collection<ByteBuffer> byteBuffers) {
 
         if (byteBuffers.isEmpty()) {
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.util;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer borrowed from a {@link ByteBufferPool}.
+ * <p>
+ * Starts with a reference count of 1, every holder that keeps the buffer
+ * beyond the current call must {@link #retain()} it and {@link #release()} it when done.
+ * The buffer goes back to the pool when the last reference is released.
+ *
+ * @author jitta
+ */
+public class PooledByteBuffer {
+
+    private final ByteBuffer byteBuffer;
+
+    private final ByteBufferPool pool;
+
+    private final AtomicInteger referenceCount;
+
+    private final Cleaner.Cleanable leakTracker;
+
+    PooledByteBuffer(final ByteBuffer byteBuffer, final ByteBufferPool pool, final Cleaner cleaner) {
+        this.byteBuffer = byteBuffer;
+        this.pool = pool;
+        this.referenceCount = new AtomicInteger(1);
+        this.leakTracker = (cleaner == null) ? null : cleaner.register(this, new LeakTracker(referenceCount, byteBuffer.capacity()));
+    }
+
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    public int getReferenceCount() {
+        return referenceCount.get();
+    }
+
+    public PooledByteBuffer retain() {
+        while (true) {
+            final int count = referenceCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+            if (referenceCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return true when this call released the last reference
+     */
+    public boolean release() {
+        final int count = referenceCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("Buffer already released");
+        }
+        if (leakTracker != null) {
+            leakTracker.clean();
+        }
+        pool.recycle(byteBuffer);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledByteBuffer{" +
+                "capacity=" + byteBuffer.capacity() +
+                ", referenceCount=" + referenceCount.get() +
+                '}';
+    }
+
+    /**
+     * Run when the buffer is released or garbage collected, must not reference the buffer itself
+     */
+    private static class LeakTracker implements Runnable {
+
+        private final AtomicInteger referenceCount;
+
+        private final int capacity;
+
+        private final Throwable acquiredAt;
+
+        private LeakTracker(final AtomicInteger referenceCount, final int capacity) {
+            this.referenceCount = referenceCount;
+            this.capacity = capacity;
+            this.acquiredAt = new Throwable("Buffer acquired at");
+        }
+
+        @Override
+        public void run() {
+            if (referenceCount.get() > 0) {
+                System.out.println("LEAK : PooledByteBuffer of " + capacity + " bytes was garbage collected without release()");
+                acquiredAt.printStackTrace(System.out);
+            }
+        }
+    }
+}
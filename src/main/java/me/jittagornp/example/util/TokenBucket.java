@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.util;
+
+/**
+ * Token bucket which refills continuously at a fixed rate.
+ * <p>
+ * Consumption is recorded after the fact and may drive the bucket into debt,
+ * callers ask {@link #nanosUntilAvailable()} before doing more work.
+ *
+ * @author jitta
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final double capacity;
+
+    private final double tokensPerNano;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    public TokenBucket(final long tokensPerSecond, final long capacity) {
+        if (tokensPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Require positive rate and capacity");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = (double) tokensPerSecond / NANOS_PER_SECOND;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized void consume(final long amount) {
+        refill();
+        tokens -= amount;
+    }
+
+    /**
+     * Consume only when the whole amount is available, never goes into debt
+     *
+     * @return false when nothing is consumed
+     */
+    public synchronized boolean tryConsume(final long amount) {
+        refill();
+        if (tokens < amount) {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * @return 0 when there are tokens, otherwise time to wait until the debt is paid
+     */
+    public synchronized long nanosUntilAvailable() {
+        refill();
+        if (tokens > 0) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.time.Duration;
+
+/**
+ * Shed load of connection storms (e.g. every client reconnects at once) before it reaches sessions : limits of
+ * open connections, of handshakes in progress and of handshakes per second, 0 is unlimited.
+ * <p>
+ * A rejected connection gets HTTP 503 with Retry-After and is closed, nothing else is done for it
+ * (on a TLS listener it is closed at once, before TLS handshake). Retry-After is retryAfter plus random jitter
+ * up to retryAfter, clients spread their next attempts instead of coming back together.
+ *
+ * @author jitta
+ */
+public class AdmissionConfig {
+
+    private static final Duration DEFAULT_HANDSHAKE_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+
+    private final int maxConnections;
+
+    private final int maxPendingHandshakes;
+
+    private final long handshakesPerSecond;
+
+    private final Duration handshakeTimeout;
+
+    private final Duration retryAfter;
+
+    private AdmissionConfig(final int maxConnections, final int maxPendingHandshakes, final long handshakesPerSecond,
+                            final Duration handshakeTimeout, final Duration retryAfter) {
+        this.maxConnections = maxConnections;
+        this.maxPendingHandshakes = maxPendingHandshakes;
+        this.handshakesPerSecond = handshakesPerSecond;
+        this.handshakeTimeout = handshakeTimeout;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxPendingHandshakes() {
+        return maxPendingHandshakes;
+    }
+
+    public long getHandshakesPerSecond() {
+        return handshakesPerSecond;
+    }
+
+    public Duration getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionConfig{" +
+                "maxConnections=" + maxConnections +
+                ", maxPendingHandshakes=" + maxPendingHandshakes +
+                ", handshakesPerSecond=" + handshakesPerSecond +
+                ", handshakeTimeout=" + handshakeTimeout +
+                ", retryAfter=" + retryAfter +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int maxConnections;
+
+        private int maxPendingHandshakes;
+
+        private long handshakesPerSecond;
+
+        private Duration handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+        private Duration retryAfter = DEFAULT_RETRY_AFTER;
+
+        /**
+         * Open connections of every listener, handshake done or not
+         */
+        public Builder maxConnections(final int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Accepted connections which have not sent their upgrade request yet (TLS handshake included)
+         */
+        public Builder maxPendingHandshakes(final int maxPendingHandshakes) {
+            this.maxPendingHandshakes = maxPendingHandshakes;
+            return this;
+        }
+
+        /**
+         * Upgrade requests answered per second, burst is up to one second worth
+         */
+        public Builder handshakesPerSecond(final long handshakesPerSecond) {
+            this.handshakesPerSecond = handshakesPerSecond;
+            return this;
+        }
+
+        /**
+         * A connection without upgrade request (or plain HTTP request) within this time is closed
+         */
+        public Builder handshakeTimeout(final Duration handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+            return this;
+        }
+
+        /**
+         * Base of Retry-After of 503 responses
+         */
+        public Builder retryAfter(final Duration retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        public AdmissionConfig build() {
+            if (maxConnections < 0 || maxPendingHandshakes < 0 || handshakesPerSecond < 0
+                    || handshakeTimeout == null || handshakeTimeout.isNegative() || handshakeTimeout.isZero()
+                    || retryAfter == null || retryAfter.isNegative()) {
+                throw new IllegalArgumentException("Invalid admission config");
+            }
+            return new AdmissionConfig(maxConnections, maxPendingHandshakes, handshakesPerSecond, handshakeTimeout, retryAfter);
+        }
+    }
+}
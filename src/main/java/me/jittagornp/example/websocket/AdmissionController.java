@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.TokenBucket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and handshake token bucket of an {@link AdmissionConfig}, shared by every event loop
+ *
+ * @author jitta
+ */
+class AdmissionController {
+
+    private final AdmissionConfig config;
+
+    //null is unlimited
+    private final TokenBucket handshakes;
+
+    private final AtomicInteger connections;
+
+    private final AtomicInteger pendingHandshakes;
+
+    private final AtomicLong rejectedCount;
+
+    public AdmissionController(final AdmissionConfig config) {
+        this.config = config;
+        final long handshakesPerSecond = config.getHandshakesPerSecond();
+        this.handshakes = (handshakesPerSecond > 0) ? new TokenBucket(handshakesPerSecond, handshakesPerSecond) : null;
+        this.connections = new AtomicInteger();
+        this.pendingHandshakes = new AtomicInteger();
+        this.rejectedCount = new AtomicLong();
+    }
+
+    public AdmissionConfig getConfig() {
+        return config;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Called on accept, an admitted connection is counted as open and pending handshake
+     *
+     * @return false when a limit is reached, nothing is counted
+     */
+    public boolean tryAdmit() {
+        if (!tryIncrement(connections, config.getMaxConnections())) {
+            return reject();
+        }
+        if (!tryIncrement(pendingHandshakes, config.getMaxPendingHandshakes())) {
+            connections.decrementAndGet();
+            return reject();
+        }
+        return true;
+    }
+
+    /**
+     * Called when the upgrade request is read
+     *
+     * @return false when the handshake rate is reached
+     */
+    public boolean tryHandshake() {
+        if (handshakes == null || handshakes.tryConsume(1)) {
+            return true;
+        }
+        return reject();
+    }
+
+    /**
+     * Upgrade request (or plain HTTP request) has been read, or the connection is closed before
+     */
+    public void handshakeEnded() {
+        pendingHandshakes.decrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * 503 with Retry-After of base + jitter in seconds, ready to write
+     */
+    public ByteBuffer createRejectResponse() {
+        final long retryAfter = Math.max(1, config.getRetryAfter().getSeconds());
+        final long jitter = ThreadLocalRandom.current().nextLong(retryAfter + 1);
+        return ByteBufferUtils.create("HTTP/1.1 503 Service Unavailable\r\n"
+                + "Retry-After: " + (retryAfter + jitter) + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n").flip();
+    }
+
+    private boolean reject() {
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    private static boolean tryIncrement(final AtomicInteger counter, final int limit) {
+        if (limit <= 0) {
+            counter.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            final int count = counter.get();
+            if (count >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.ByteBufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session of {@link ThreadPerConnectionServer}, frames are written by the sending thread with blocking writes.
+ * <p>
+ * There is no outbound queue : send() returns when the frame is in the socket, so conflated and
+ * priority sends are plain sends, and sendAsync() returns a completed stage. Writes of concurrent senders are serialized by a lock
+ * (not synchronized, a virtual thread blocked in it would pin its carrier thread).
+ *
+ * @author jitta
+ */
+class BlockingWebSocket implements WebSocket {
+
+    //1 byte + 9 bytes payload length
+    private static final int MAX_HEADER_SIZE = 10;
+
+    private final String sessionId;
+
+    private final SocketChannel channel;
+
+    private final FrameDataByteBufferConverter converter;
+
+    private final MultipleWebSocketHandler handler;
+
+    private final Duration closeTimeout;
+
+    private final ByteBufferPool byteBufferPool;
+
+    //Selected in the handshake, null when none
+    private String subprotocol;
+
+    private final ReentrantLock writeLock;
+
+    //Guarded by writeLock
+    private final ByteBuffer headerBuffer;
+
+    private final ByteBuffer[] writeBuffers;
+
+    private volatile boolean closeFrameSent;
+
+    private volatile boolean closeFrameReceived;
+
+    private volatile CloseStatus closeStatus;
+
+    public BlockingWebSocket(final SocketChannel channel, final FrameDataByteBufferConverter converter, final MultipleWebSocketHandler handler,
+                             final ByteBufferPool byteBufferPool, final Duration closeTimeout) {
+        this.sessionId = UUID.randomUUID().toString();
+        this.channel = channel;
+        this.converter = converter;
+        this.handler = handler;
+        this.closeTimeout = closeTimeout;
+        this.byteBufferPool = byteBufferPool;
+        this.writeLock = new ReentrantLock();
+        this.headerBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        this.writeBuffers = new ByteBuffer[2];
+    }
+
+    @Override
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    public void setSubprotocol(final String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isCloseFrameSent() {
+        return closeFrameSent;
+    }
+
+    public boolean isCloseFrameReceived() {
+        return closeFrameReceived;
+    }
+
+    public void setCloseFrameReceived(final boolean closeFrameReceived) {
+        this.closeFrameReceived = closeFrameReceived;
+    }
+
+    public CloseStatus getCloseStatus() {
+        return closeStatus;
+    }
+
+    public void setCloseStatus(final CloseStatus closeStatus) {
+        if (this.closeStatus == null) {
+            this.closeStatus = closeStatus;
+        }
+    }
+
+    @Override
+    public void send(final String message) {
+        write(createFrame(Opcode.TEXT_FRAME, ByteBufferUtils.create(message)));
+    }
+
+    @Override
+    public void send(final ByteBuffer message) {
+        //Written before return, a received payload is sent without retaining it
+        write(createFrame(Opcode.BINARY_FRAME, message));
+    }
+
+    @Override
+    public void send(final FrameData message) {
+        write(message);
+    }
+
+    @Override
+    public <T> void send(final MessageCodec<T> codec, final T message) {
+        final FrameData frameData = WebSocketImpl.createCodecFrame(codec, message, byteBufferPool);
+        try {
+            write(frameData);
+        } finally {
+            frameData.release();
+        }
+    }
+
+    @Override
+    public void sendConflated(final String key, final String message) {
+        Objects.requireNonNull(key);
+        send(message);
+    }
+
+    @Override
+    public void sendConflated(final String key, final ByteBuffer message) {
+        Objects.requireNonNull(key);
+        send(message);
+    }
+
+    @Override
+    public void sendConflated(final String key, final FrameData message) {
+        Objects.requireNonNull(key);
+        send(message);
+    }
+
+    @Override
+    public void sendPriority(final String message) {
+        send(message);
+    }
+
+    @Override
+    public void sendPriority(final ByteBuffer message) {
+        send(message);
+    }
+
+    @Override
+    public void sendPriority(final FrameData message) {
+        send(message);
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final String message) {
+        return write(createFrame(Opcode.TEXT_FRAME, ByteBufferUtils.create(message)));
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final ByteBuffer message) {
+        return write(createFrame(Opcode.BINARY_FRAME, message));
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final FrameData message) {
+        return write(message);
+    }
+
+    /**
+     * Send close frame, the reading thread closes the connection when the peer answers or after closeTimeout
+     */
+    @Override
+    public void close(final CloseStatus status) {
+        if (!sendCloseFrame(status)) {
+            return;
+        }
+        if (!closeFrameReceived) {
+            CompletableFuture.delayedExecutor(closeTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .execute(this::closeChannel);
+        }
+    }
+
+    /**
+     * @return false when a close frame has been sent before
+     */
+    public boolean sendCloseFrame(final CloseStatus status) {
+        writeLock.lock();
+        try {
+            if (closeFrameSent) {
+                return false;
+            }
+            setCloseStatus(status);
+            //1005 is never sent, it is "no status code" in the received close frame
+            final ByteBuffer statusCode = (status == CloseStatus.NO_STATUS_CODE)
+                    ? ByteBuffer.allocate(0)
+                    : ByteBuffer.allocate(2).putShort((short) status.getCode());
+            try {
+                writeFrame(createFrame(Opcode.CONNECTION_CLOSE, statusCode));
+            } catch (final IOException e) {
+                onWriteError(e);
+            }
+            //An endpoint MUST NOT send any more data frames after sending a Close frame (RFC6455 section 5.5.1)
+            closeFrameSent = true;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void closeChannel() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            handler.onError(this, e);
+        }
+    }
+
+    private FrameData createFrame(final Opcode opcode, final ByteBuffer payloadData) {
+        return FrameData.builder()
+                .fin(true)
+                .rsv1(false)
+                .rsv2(false)
+                .rsv3(false)
+                .opcode(opcode)
+                .mask(false)
+                .payloadData(payloadData)
+                .build();
+    }
+
+    /**
+     * @return completed when written, failed when it is not
+     */
+    private CompletableFuture<Void> write(final FrameData frameData) {
+        writeLock.lock();
+        try {
+            if (closeFrameSent) {
+                return CompletableFuture.failedFuture(new ClosedChannelException());
+            }
+            writeFrame(frameData);
+            return CompletableFuture.completedFuture(null);
+        } catch (final IOException e) {
+            onWriteError(e);
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void onWriteError(final IOException e) {
+        //The reading thread sees the closed channel and ends the session
+        handler.onError(this, e);
+        closeChannel();
+    }
+
+    private void writeFrame(final FrameData frameData) throws IOException {
+        if (frameData.isEncoded()) {
+            writeBuffers[0] = ByteBufferUtils.readView(frameData.getPayloadData());
+            writeBuffers[1] = ByteBuffer.allocate(0);
+        } else if (frameData.isMask()) {
+            writeBuffers[0] = converter.convertToByteBuffer(frameData).flip();
+            writeBuffers[1] = ByteBuffer.allocate(0);
+        } else {
+            //Header only, payload is written from its own buffer without copy
+            writeBuffers[0] = converter.convertToHeaderByteBuffer(frameData, headerBuffer.clear()).flip();
+            writeBuffers[1] = ByteBufferUtils.readView(frameData.getPayloadData());
+        }
+        try {
+            while (writeBuffers[0].hasRemaining() || writeBuffers[1].hasRemaining()) {
+                channel.write(writeBuffers);
+            }
+        } finally {
+            writeBuffers[0] = null;
+            writeBuffers[1] = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocket{" +
+                "sessionId='" + sessionId + '\'' +
+                ", closeFrameSent=" + closeFrameSent +
+                '}';
+    }
+}
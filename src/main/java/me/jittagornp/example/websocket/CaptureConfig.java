@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.file.Path;
+
+/**
+ * Record received frames of every session to an append-only memory mapped file : time, session, opcode and payload,
+ * plus connect and disconnect of sessions. Read it with {@link CaptureReader}, replay it against a server with
+ * {@code me.jittagornp.example.benchmark.CaptureReplay}.
+ * <p>
+ * Event loops only queue the frame (its payload is retained, not copied), a capture thread writes the file.
+ * Frames are dropped (and counted) when the queue is full, the capture never slows down the server.
+ *
+ * @author jitta
+ */
+public class CaptureConfig {
+
+    private static final int DEFAULT_QUEUE_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path file;
+
+    private final int queueSize;
+
+    private final int segmentSize;
+
+    private CaptureConfig(final Path file, final int queueSize, final int segmentSize) {
+        this.file = file;
+        this.queueSize = queueSize;
+        this.segmentSize = segmentSize;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureConfig{" +
+                "file=" + file +
+                ", queueSize=" + queueSize +
+                ", segmentSize=" + segmentSize +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Path file;
+
+        private int queueSize = DEFAULT_QUEUE_SIZE;
+
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+        /**
+         * Capture file, replaced when it exists
+         */
+        public Builder file(final Path file) {
+            this.file = file;
+            return this;
+        }
+
+        /**
+         * Frames waiting for the capture thread, more are dropped
+         */
+        public Builder queueSize(final int queueSize) {
+            this.queueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * Bytes of the file mapped at a time, the file grows by one segment when it is full
+         */
+        public Builder segmentSize(final int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        public CaptureConfig build() {
+            if (file == null) {
+                throw new IllegalArgumentException("Capture file is required");
+            }
+            if (queueSize <= 0 || segmentSize <= 0) {
+                throw new IllegalArgumentException("Invalid capture config");
+            }
+            return new CaptureConfig(file.toAbsolutePath(), queueSize, segmentSize);
+        }
+    }
+}
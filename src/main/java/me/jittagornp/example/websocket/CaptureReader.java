@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read a file of {@link CaptureConfig} record by record, oldest first
+ *
+ * <pre>
+ * try (CaptureReader reader = CaptureReader.open(file)) {
+ *     while (reader.next()) {
+ *         if (reader.getType() == CaptureReader.RecordType.FRAME) {
+ *             FrameData frameData = reader.getFrameData();
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * @author jitta
+ */
+public class CaptureReader implements Closeable {
+
+    //Bytes of the file mapped at a time
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel fileChannel;
+
+    private final long fileSize;
+
+    private final long startTimeMillis;
+
+    private MappedByteBuffer window;
+
+    //File offset of window
+    private long windowStart;
+
+    private RecordType type;
+
+    private long timeNanos;
+
+    private int session;
+
+    private FrameData frameData;
+
+    private CaptureReader(final FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        this.fileSize = fileChannel.size();
+        map(0);
+        if (window.remaining() < TrafficCapture.FILE_HEADER_SIZE
+                || window.getInt() != TrafficCapture.MAGIC
+                || window.getInt() != TrafficCapture.VERSION) {
+            throw new IOException("Not a capture file");
+        }
+        this.startTimeMillis = window.getLong();
+    }
+
+    public static CaptureReader open(final Path file) throws IOException {
+        final FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new CaptureReader(fileChannel);
+        } catch (final IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start of the capture
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Move to the next record
+     *
+     * @return false at the end of the capture
+     */
+    public boolean next() throws IOException {
+        //1. Record header, the whole record in the window
+        if (window.remaining() < TrafficCapture.RECORD_HEADER_SIZE) {
+            map(windowStart + window.position());
+            if (window.remaining() < TrafficCapture.RECORD_HEADER_SIZE) {
+                return false;
+            }
+        }
+        final int size = window.getInt(window.position());
+        if (size == 0) {
+            //Not closed capture, zeros after the last record
+            return false;
+        }
+        if (size < TrafficCapture.RECORD_HEADER_SIZE) {
+            throw new IOException("Invalid record size " + size + " at " + (windowStart + window.position()));
+        }
+        if (window.remaining() < size) {
+            map(windowStart + window.position(), size);
+            if (window.remaining() < size) {
+                //Last record is cut
+                return false;
+            }
+        }
+
+        //2. Fields, payload is a view of the window
+        window.getInt();
+        timeNanos = window.getLong();
+        session = window.getInt();
+        final byte recordType = window.get();
+        final byte frameByte = window.get();
+        final int payloadLength = size - TrafficCapture.RECORD_HEADER_SIZE;
+        final ByteBuffer payloadData = window.slice().limit(payloadLength).position(payloadLength);
+        window.position(window.position() + payloadLength);
+
+        switch (recordType) {
+            case TrafficCapture.TYPE_CONNECT:
+                type = RecordType.CONNECT;
+                frameData = null;
+                break;
+            case TrafficCapture.TYPE_DISCONNECT:
+                type = RecordType.DISCONNECT;
+                frameData = null;
+                break;
+            case TrafficCapture.TYPE_FRAME:
+                type = RecordType.FRAME;
+                frameData = FrameData.builder()
+                        .fin((frameByte & 0b10000000) != 0)
+                        .rsv1((frameByte & 0b01000000) != 0)
+                        .rsv2((frameByte & 0b00100000) != 0)
+                        .rsv3((frameByte & 0b00010000) != 0)
+                        .opcode(Opcode.fromByteValue((byte) (frameByte & 0b00001111)))
+                        .mask(false)
+                        .payloadData(payloadData)
+                        .build();
+                break;
+            default:
+                throw new IOException("Unknown record type " + recordType);
+        }
+        return true;
+    }
+
+    public RecordType getType() {
+        return type;
+    }
+
+    /**
+     * Nanos since the start of the capture
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    /**
+     * Number of the session in this capture, from 1
+     */
+    public int getSession() {
+        return session;
+    }
+
+    /**
+     * Frame of a FRAME record (unmasked, payload written [0, position)), valid until next(). null for other records
+     */
+    public FrameData getFrameData() {
+        return frameData;
+    }
+
+    private void map(final long start) throws IOException {
+        map(start, WINDOW_SIZE);
+    }
+
+    private void map(final long start, final int minimumSize) throws IOException {
+        windowStart = start;
+        final long size = Math.min(Math.max(WINDOW_SIZE, minimumSize), fileSize - start);
+        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    public enum RecordType {
+
+        //Handshake done
+        CONNECT,
+        //Frame received from the client
+        FRAME,
+        //Connection closed
+        DISCONNECT
+    }
+}
@@ -26,6 +26,17 @@ public enum CloseStatus {
     BAD_GATEWAY(1014, "Bad gateway"),
     TLS_ERROR(1015, "TLS error");
 
+    private static final int MIN_CODE = 1000;
+
+    //Lookup table indexed by (code - MIN_CODE)
+    private static final CloseStatus[] BY_CODE = new CloseStatus[16];
+
+    static {
+        for (CloseStatus closeStatus : values()) {
+            BY_CODE[closeStatus.getCode() - MIN_CODE] = closeStatus;
+        }
+    }
+
     private final int code;
     private final String reason;
 
@@ -43,11 +54,10 @@ public enum CloseStatus {
     }
 
     public static CloseStatus fromCode(final int code) {
-        final CloseStatus[] closeStatuses = values();
-        for (CloseStatus closeStatus : closeStatuses) {
-            if (closeStatus.getCode() == code) {
-                return closeStatus;
-            }
+        final int index = code - MIN_CODE;
+        final CloseStatus closeStatus = (index >= 0 && index < BY_CODE.length) ? BY_CODE[index] : null;
+        if (closeStatus != null) {
+            return closeStatus;
         }
         throw new UnsupportedOperationException("Unknown status code");
     }
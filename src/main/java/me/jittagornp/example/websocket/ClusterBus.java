@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Transport between servers of a cluster, carries batches of binary encoded envelopes
+ * (publish, subscribe, unsubscribe) of {@link PubSub}.
+ * <p>
+ * Implementations only move bytes, batches sent to a peer must be received in order.
+ *
+ * @author jitta
+ */
+public interface ClusterBus {
+
+    String getNodeId();
+
+    /**
+     * Join the cluster, receiver is called by the bus thread(s)
+     */
+    void start(final Receiver receiver);
+
+    Collection<String> getPeers();
+
+    /**
+     * @param batch ready to read (position 0, limit is the length), owned by the bus after the call
+     */
+    void send(final String peer, final ByteBuffer batch);
+
+    void close();
+
+    interface Receiver {
+
+        void onPeerJoined(final String peer);
+
+        void onPeerLeft(final String peer);
+
+        void onReceive(final String peer, final ByteBuffer batch);
+    }
+}
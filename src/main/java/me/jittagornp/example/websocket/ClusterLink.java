@@ -0,0 +1,271 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects {@link PubSubImpl} of this node to the other nodes of a {@link ClusterBus}.
+ * <p>
+ * Each node tells its peers which topics (and wildcard prefixes) it has subscribers for,
+ * a publish is forwarded only to peers interested in the topic and is never forwarded again by the receiver.
+ * Envelopes to a peer are appended to one batch which is sent when it is full or after a short linger.
+ *
+ * <pre>
+ * Envelope : | type (1) | topic length (2) | topic (UTF-8) | opcode (1) | payload length (4) | payload |
+ * Batch    : envelopes back to back
+ * </pre>
+ *
+ * @author jitta
+ */
+class ClusterLink implements ClusterBus.Receiver {
+
+    private static final byte PUBLISH = 1;
+
+    private static final byte SUBSCRIBE = 2;
+
+    private static final byte UNSUBSCRIBE = 3;
+
+    //Topic length field of the envelope is 2 bytes
+    static final int MAX_TOPIC_LENGTH = 0xFFFF;
+
+    //type + topic length
+    private static final int TOPIC_HEADER_SIZE = 1 + 2;
+
+    //opcode + payload length
+    private static final int PAYLOAD_HEADER_SIZE = 1 + 4;
+
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    private static final long LINGER_MICROS = 500;
+
+    private final ClusterBus bus;
+
+    private final PubSubImpl pubSub;
+
+    private final ConcurrentMap<String, Peer> peers;
+
+    private final ScheduledExecutorService flusher;
+
+    public ClusterLink(final ClusterBus bus, final PubSubImpl pubSub) {
+        this.bus = bus;
+        this.pubSub = pubSub;
+        this.peers = new ConcurrentHashMap<>();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cluster-flusher-" + bus.getNodeId());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        bus.start(this);
+    }
+
+    public String getNodeId() {
+        return bus.getNodeId();
+    }
+
+    /**
+     * Send to every peer which has subscribers of topic
+     */
+    public void forward(final String topic, final Opcode opcode, final ByteBuffer payloadData) {
+        for (final Peer peer : peers.values()) {
+            if (peer.isInterested(topic)) {
+                append(peer, PUBLISH, topic, opcode, payloadData);
+            }
+        }
+    }
+
+    /**
+     * First subscriber of the pattern on this node
+     */
+    public void subscribed(final String pattern) {
+        peers.values().forEach(peer -> append(peer, SUBSCRIBE, pattern, null, null));
+    }
+
+    /**
+     * Last subscriber of the pattern on this node is gone
+     */
+    public void unsubscribed(final String pattern) {
+        peers.values().forEach(peer -> append(peer, UNSUBSCRIBE, pattern, null, null));
+    }
+
+    @Override
+    public void onPeerJoined(final String peerId) {
+        final Peer peer = getPeer(peerId);
+        //Interest of this node so far, later changes follow in the same batch order
+        pubSub.getPatterns().forEach(pattern -> append(peer, SUBSCRIBE, pattern, null, null));
+    }
+
+    @Override
+    public void onPeerLeft(final String peerId) {
+        peers.remove(peerId);
+    }
+
+    @Override
+    public void onReceive(final String peerId, final ByteBuffer batch) {
+        //Batches may arrive before onPeerJoined() of the same peer
+        final Peer peer = getPeer(peerId);
+        while (batch.hasRemaining()) {
+            //1. Envelope header, a length beyond the batch leaves the rest unframed
+            if (batch.remaining() < TOPIC_HEADER_SIZE) {
+                System.out.println("Truncated envelope from peer " + peerId + ", dropped " + batch.remaining() + " bytes");
+                return;
+            }
+            final byte type = batch.get();
+            final int topicLength = batch.getShort() & 0xFFFF;
+            if (batch.remaining() < topicLength + PAYLOAD_HEADER_SIZE) {
+                System.out.println("Truncated envelope from peer " + peerId + ", dropped " + batch.remaining() + " bytes");
+                return;
+            }
+            final byte[] topicBytes = new byte[topicLength];
+            batch.get(topicBytes);
+            final String topic = new String(topicBytes, StandardCharsets.UTF_8);
+            final byte opcode = batch.get();
+            final int payloadLength = batch.getInt();
+            if (payloadLength < 0 || payloadLength > batch.remaining()) {
+                System.out.println("Invalid payload length " + payloadLength + " from peer " + peerId + ", dropped " + batch.remaining() + " bytes");
+                return;
+            }
+
+            //2. Payload
+            final ByteBuffer payloadData = batch.slice().limit(payloadLength);
+            batch.position(batch.position() + payloadLength);
+
+            //3. A bad envelope is skipped, the next ones are still delivered
+            if (type == PUBLISH) {
+                final Opcode frameOpcode = Opcode.fromByteValueOrNull(opcode);
+                if (frameOpcode == null) {
+                    System.out.println("Unknown opcode " + opcode + " from peer " + peerId + ", skipped envelope of topic \"" + topic + "\"");
+                    continue;
+                }
+                pubSub.publishLocal(topic, frameOpcode, payloadData);
+            } else if (type == SUBSCRIBE) {
+                peer.getPatterns().add(topic);
+            } else if (type == UNSUBSCRIBE) {
+                peer.getPatterns().remove(topic);
+            } else {
+                System.out.println("Unknown envelope type " + type + " from peer " + peerId + ", skipped");
+            }
+        }
+    }
+
+    private Peer getPeer(final String peerId) {
+        return peers.computeIfAbsent(peerId, Peer::new);
+    }
+
+    public Collection<String> getPeers() {
+        return peers.keySet();
+    }
+
+    public void close() {
+        peers.values().forEach(this::flush);
+        flusher.shutdown();
+        bus.close();
+    }
+
+    private void append(final Peer peer, final byte type, final String topic, final Opcode opcode, final ByteBuffer payloadData) {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (topicBytes.length > MAX_TOPIC_LENGTH) {
+            //Checked before writing, a wrapped length would corrupt every following envelope of the batch
+            throw new IllegalArgumentException("Topic is longer than " + MAX_TOPIC_LENGTH + " UTF-8 bytes");
+        }
+        final int payloadLength = (payloadData == null) ? 0 : payloadData.remaining();
+        final int size = 1 + 2 + topicBytes.length + 1 + 4 + payloadLength;
+        final boolean full;
+        synchronized (peer) {
+            final ByteBuffer batch = peer.reserve(size);
+            batch.put(type)
+                    .putShort((short) topicBytes.length)
+                    .put(topicBytes)
+                    .put((opcode == null) ? 0 : opcode.getByteValue())
+                    .putInt(payloadLength);
+            if (payloadData != null) {
+                batch.put(payloadData.duplicate());
+            }
+            full = batch.position() >= MAX_BATCH_SIZE;
+            if (!full && !peer.isFlushScheduled()) {
+                peer.setFlushScheduled(true);
+                flusher.schedule(() -> flush(peer), LINGER_MICROS, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full) {
+            flush(peer);
+        }
+    }
+
+    private void flush(final Peer peer) {
+        //Send under the lock, batches of a peer must not overtake each other
+        synchronized (peer) {
+            peer.setFlushScheduled(false);
+            final ByteBuffer batch = peer.take();
+            if (batch != null) {
+                bus.send(peer.getId(), batch.flip());
+            }
+        }
+    }
+
+    private static class Peer {
+
+        private final String id;
+
+        //Exact topics and "prefix*" patterns with subscribers on the peer
+        private final Set<String> patterns;
+
+        //Envelopes not sent yet, guarded by this
+        private ByteBuffer batch;
+
+        private boolean flushScheduled;
+
+        private Peer(final String id) {
+            this.id = id;
+            this.patterns = ConcurrentHashMap.newKeySet();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Set<String> getPatterns() {
+            return patterns;
+        }
+
+        public boolean isInterested(final String topic) {
+            return PubSubImpl.matches(patterns, topic);
+        }
+
+        public ByteBuffer reserve(final int size) {
+            if (batch == null) {
+                batch = ByteBuffer.allocate(Math.max(size, 4 * 1024));
+            } else if (batch.remaining() < size) {
+                final ByteBuffer bigger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + size));
+                batch = bigger.put(batch.flip());
+            }
+            return batch;
+        }
+
+        public ByteBuffer take() {
+            final ByteBuffer result = batch;
+            batch = null;
+            return result;
+        }
+
+        public boolean isFlushScheduled() {
+            return flushScheduled;
+        }
+
+        public void setFlushScheduled(final boolean flushScheduled) {
+            this.flushScheduled = flushScheduled;
+        }
+    }
+}
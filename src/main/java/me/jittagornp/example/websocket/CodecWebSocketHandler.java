@@ -0,0 +1,16 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Handler of decoded messages of sessions which negotiated the subprotocol of its codec,
+ * it gets no event of other sessions. Its subprotocol is offered in the handshake.
+ *
+ * @param <T> message type
+ * @author jitta
+ */
+public interface CodecWebSocketHandler<T> extends WebSocketHandler<T> {
+
+    MessageCodec<T> getCodec();
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference binary codec of subprotocol "compact.v1" : a message is a map of names to values like a JSON object,
+ * without the text. Values are null, Boolean, integer numbers (decoded as Long), Float / Double (decoded as Double),
+ * String, byte[], List and Map of String keys.
+ *
+ * <pre>
+ * Message : | count (varint) | (key, value) x count |
+ * Key     : | UTF-8 length (varint) | UTF-8 |
+ * Value   : | tag (1) | content |
+ *   0 null, 1 false, 2 true, 3 integer (zigzag varint), 4 double (8),
+ *   5 string (as key), 6 bytes (length varint + bytes), 7 list (count varint + values), 8 map (as message)
+ * </pre>
+ * Strings are written to and read from the buffer char by char, without byte[] in between.
+ *
+ * @author jitta
+ */
+public class CompactCodec implements MessageCodec<Map<String, Object>> {
+
+    public static final String SUBPROTOCOL = "compact.v1";
+
+    private static final CompactCodec INSTANCE = new CompactCodec();
+
+    //Nested lists and maps, deeper is rejected (cycles when encoding)
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte NULL = 0;
+
+    private static final byte FALSE = 1;
+
+    private static final byte TRUE = 2;
+
+    private static final byte INTEGER = 3;
+
+    private static final byte DOUBLE = 4;
+
+    private static final byte STRING = 5;
+
+    private static final byte BYTES = 6;
+
+    private static final byte LIST = 7;
+
+    private static final byte MAP = 8;
+
+    public static CompactCodec getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public String getSubprotocol() {
+        return SUBPROTOCOL;
+    }
+
+    @Override
+    public int getEncodedSize(final Map<String, Object> message) {
+        return sizeOfMap(message, 0);
+    }
+
+    @Override
+    public void encode(final Map<String, Object> message, final ByteBuffer buffer) {
+        writeMap(message, buffer, 0);
+    }
+
+    @Override
+    public Map<String, Object> decode(final ByteBuffer payload) {
+        try {
+            final Map<String, Object> message = readMap(payload, 0);
+            if (payload.hasRemaining()) {
+                throw new IllegalArgumentException("Unexpected " + payload.remaining() + " bytes after message");
+            }
+            return message;
+        } catch (final BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message", e);
+        }
+    }
+
+    //---------------------------------------------------------------- size
+
+    private static int sizeOfMap(final Map<?, ?> map, final int depth) {
+        checkDepth(depth);
+        int size = sizeOfVarint(map.size());
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!(entry.getKey() instanceof CharSequence)) {
+                throw new IllegalArgumentException("Key must be a String : " + entry.getKey());
+            }
+            size += sizeOfString((CharSequence) entry.getKey()) + sizeOfValue(entry.getValue(), depth);
+        }
+        return size;
+    }
+
+    private static int sizeOfValue(final Object value, final int depth) {
+        if (value == null || value instanceof Boolean) {
+            return 1;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return 1 + sizeOfVarint(zigzag(((Number) value).longValue()));
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return 1 + 8;
+        }
+        if (value instanceof CharSequence) {
+            return 1 + sizeOfString((CharSequence) value);
+        }
+        if (value instanceof byte[]) {
+            final int length = ((byte[]) value).length;
+            return 1 + sizeOfVarint(length) + length;
+        }
+        if (value instanceof List) {
+            checkDepth(depth + 1);
+            final List<?> list = (List<?>) value;
+            int size = 1 + sizeOfVarint(list.size());
+            for (final Object element : list) {
+                size += sizeOfValue(element, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            return 1 + sizeOfMap((Map<?, ?>) value, depth + 1);
+        }
+        throw new IllegalArgumentException("Unsupported value " + value.getClass().getName());
+    }
+
+    private static int sizeOfString(final CharSequence text) {
+        final int length = utf8Length(text);
+        return sizeOfVarint(length) + length;
+    }
+
+    private static int utf8Length(final CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                //Unpaired surrogate is written as '?'
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int sizeOfVarint(final long value) {
+        return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    //---------------------------------------------------------------- encode
+
+    private static void writeMap(final Map<?, ?> map, final ByteBuffer buffer, final int depth) {
+        checkDepth(depth);
+        writeVarint(map.size(), buffer);
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            writeString((CharSequence) entry.getKey(), buffer);
+            writeValue(entry.getValue(), buffer, depth);
+        }
+    }
+
+    private static void writeValue(final Object value, final ByteBuffer buffer, final int depth) {
+        if (value == null) {
+            buffer.put(NULL);
+        } else if (value instanceof Boolean) {
+            buffer.put(((Boolean) value) ? TRUE : FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            buffer.put(INTEGER);
+            writeVarint(zigzag(((Number) value).longValue()), buffer);
+        } else if (value instanceof Double || value instanceof Float) {
+            buffer.put(DOUBLE).putDouble(((Number) value).doubleValue());
+        } else if (value instanceof CharSequence) {
+            buffer.put(STRING);
+            writeString((CharSequence) value, buffer);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            buffer.put(BYTES);
+            writeVarint(bytes.length, buffer);
+            buffer.put(bytes);
+        } else if (value instanceof List) {
+            checkDepth(depth + 1);
+            final List<?> list = (List<?>) value;
+            buffer.put(LIST);
+            writeVarint(list.size(), buffer);
+            for (final Object element : list) {
+                writeValue(element, buffer, depth + 1);
+            }
+        } else if (value instanceof Map) {
+            buffer.put(MAP);
+            writeMap((Map<?, ?>) value, buffer, depth + 1);
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value.getClass().getName());
+        }
+    }
+
+    private static void writeString(final CharSequence text, final ByteBuffer buffer) {
+        writeVarint(utf8Length(text), buffer);
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)))
+                        .put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((codePoint >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static void writeVarint(long value, final ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    //---------------------------------------------------------------- decode
+
+    private static Map<String, Object> readMap(final ByteBuffer buffer, final int depth) {
+        checkDepth(depth);
+        //Every entry takes 2 bytes at least, a bigger count is a broken message
+        final int count = readCount(buffer, 2);
+        final Map<String, Object> map = new LinkedHashMap<>((int) (count / 0.75f) + 1);
+        for (int i = 0; i < count; i++) {
+            final String key = readString(buffer);
+            map.put(key, readValue(buffer, depth));
+        }
+        return map;
+    }
+
+    private static Object readValue(final ByteBuffer buffer, final int depth) {
+        final byte tag = buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case INTEGER:
+                final long zigzag = readVarint(buffer);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case DOUBLE:
+                return buffer.getDouble();
+            case STRING:
+                return readString(buffer);
+            case BYTES:
+                final byte[] bytes = new byte[readCount(buffer, 1)];
+                buffer.get(bytes);
+                return bytes;
+            case LIST:
+                checkDepth(depth + 1);
+                final int count = readCount(buffer, 1);
+                final List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readValue(buffer, depth + 1));
+                }
+                return list;
+            case MAP:
+                return readMap(buffer, depth + 1);
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = readCount(buffer, 1);
+        //UTF-8 bytes are at least as many as chars
+        final char[] chars = new char[length];
+        final int end = buffer.position() + length;
+        int count = 0;
+        while (buffer.position() < end) {
+            final int b = buffer.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | continuation(buffer, end));
+            } else if ((b & 0xF0) == 0xE0) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | (continuation(buffer, end) << 6) | continuation(buffer, end));
+            } else if ((b & 0xF8) == 0xF0) {
+                final int codePoint = ((b & 0x07) << 18) | (continuation(buffer, end) << 12)
+                        | (continuation(buffer, end) << 6) | continuation(buffer, end);
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT || codePoint > Character.MAX_CODE_POINT) {
+                    throw new IllegalArgumentException("Invalid UTF-8");
+                }
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            } else {
+                throw new IllegalArgumentException("Invalid UTF-8");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static int continuation(final ByteBuffer buffer, final int end) {
+        if (buffer.position() >= end) {
+            throw new IllegalArgumentException("Invalid UTF-8");
+        }
+        final int b = buffer.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) {
+            throw new IllegalArgumentException("Invalid UTF-8");
+        }
+        return b & 0x3F;
+    }
+
+    /**
+     * Length or count, checked against the remaining bytes before anything is allocated for it
+     */
+    private static int readCount(final ByteBuffer buffer, final int minimumBytesPerItem) {
+        final long count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / minimumBytesPerItem) {
+            throw new IllegalArgumentException("Invalid length " + count);
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    private static void checkDepth(final int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Nested deeper than " + MAX_DEPTH);
+        }
+    }
+}
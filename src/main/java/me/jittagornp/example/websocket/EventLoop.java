@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Single thread which owns a selector and every channel registered on it
+ *
+ * @author jitta
+ */
+class EventLoop implements Runnable {
+
+    private final String name;
+
+    private final Selector selector;
+
+    private final Consumer<SelectionKey> keyHandler;
+
+    //Tasks submitted from other threads, run on this loop
+    private final Queue<Runnable> tasks;
+
+    //Delayed tasks, touched by this loop only
+    private final PriorityQueue<ScheduledTask> scheduledTasks;
+
+    //Send completions of this iteration and their errors (null is success), touched by this loop only
+    private final List<CompletableFuture<Void>> completions;
+
+    private final List<Throwable> completionErrors;
+
+    private volatile Thread thread;
+
+    private volatile boolean running;
+
+    private final CompletableFuture<Void> terminationFuture;
+
+    //Start of the key or task being handled, 0 when waiting in select, read by the watchdog
+    private volatile long workStartNanos;
+
+    //Attachment of the key being handled, null for tasks
+    private volatile Object workAttachment;
+
+    public EventLoop(final String name, final Transport transport, final BiConsumer<EventLoop, SelectionKey> keyHandler) throws IOException {
+        this.name = name;
+        this.selector = transport.openSelector();
+        this.keyHandler = key -> {
+            workAttachment = key.attachment();
+            workStartNanos = System.nanoTime();
+            try {
+                keyHandler.accept(this, key);
+            } finally {
+                workStartNanos = 0;
+                workAttachment = null;
+            }
+        };
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.scheduledTasks = new PriorityQueue<>(Comparator.comparingLong(ScheduledTask::getDeadline));
+        this.completions = new ArrayList<>();
+        this.completionErrors = new ArrayList<>();
+        this.running = true;
+        this.terminationFuture = new CompletableFuture<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public SelectionKey register(final SelectableChannel channel, final int ops, final Object attachment) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, attachment);
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public long getWorkStartNanos() {
+        return workStartNanos;
+    }
+
+    public Object getWorkAttachment() {
+        return workAttachment;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        final ScheduledTask scheduledTask = new ScheduledTask(System.nanoTime() + unit.toNanos(delay), task);
+        if (inEventLoop()) {
+            scheduledTasks.add(scheduledTask);
+        } else {
+            execute(() -> scheduledTasks.add(scheduledTask));
+        }
+    }
+
+    /**
+     * Complete the future at the end of this iteration, with the others of the same iteration.
+     * Called on this loop
+     *
+     * @param error null is success
+     */
+    public void complete(final CompletableFuture<Void> future, final Throwable error) {
+        completions.add(future);
+        completionErrors.add(error);
+    }
+
+    /**
+     * Exit the loop after the current iteration, channels still registered are closed
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Completed when the loop has exited
+     */
+    public CompletableFuture<Void> getTerminationFuture() {
+        return terminationFuture;
+    }
+
+    /**
+     * Run on a new thread
+     */
+    public Thread start() {
+        final Thread loopThread = new Thread(this, name);
+        loopThread.start();
+        return loopThread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                try {
+                    //Ready keys are passed to keyHandler, no selected key set and iterator per iteration
+                    selector.select(keyHandler, selectTimeoutMillis());
+                    runTasks();
+                    runScheduledTasks();
+                    runCompletions();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            runCompletions();
+            closeSelector();
+            terminationFuture.complete(null);
+        }
+    }
+
+    private void closeSelector() {
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 0 is wait until a channel is ready or wakeup()
+     */
+    private long selectTimeoutMillis() {
+        final ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            return 0;
+        }
+        final long remaining = TimeUnit.NANOSECONDS.toMillis(next.getDeadline() - System.nanoTime());
+        return Math.max(1, remaining);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            safeRun(task);
+        }
+    }
+
+    private void runScheduledTasks() {
+        final long now = System.nanoTime();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().getDeadline() - now <= 0) {
+            safeRun(scheduledTasks.poll().getTask());
+        }
+    }
+
+    /**
+     * Dependent actions of the futures run here, futures they add (e.g. a failed send) are completed in the same pass
+     */
+    private void runCompletions() {
+        if (completions.isEmpty()) {
+            return;
+        }
+        workStartNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < completions.size(); i++) {
+                final Throwable error = completionErrors.get(i);
+                if (error == null) {
+                    completions.get(i).complete(null);
+                } else {
+                    completions.get(i).completeExceptionally(error);
+                }
+            }
+        } finally {
+            completions.clear();
+            completionErrors.clear();
+            workStartNanos = 0;
+        }
+    }
+
+    private void safeRun(final Runnable task) {
+        workStartNanos = System.nanoTime();
+        try {
+            task.run();
+        } catch (final Throwable e) {
+            e.printStackTrace();
+        } finally {
+            workStartNanos = 0;
+        }
+    }
+
+    private static class ScheduledTask {
+
+        private final long deadline;
+
+        private final Runnable task;
+
+        private ScheduledTask(final long deadline, final Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public Runnable getTask() {
+            return task;
+        }
+    }
+}
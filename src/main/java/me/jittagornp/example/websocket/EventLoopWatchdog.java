@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.websocket.jfr.EventLoopStallEvent;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check event loops from another thread, a loop busy with one key or task longer than
+ * the threshold is stalled : every connection of that loop waits.
+ * <p>
+ * A stall is reported once with the stack of the loop thread (log and JFR event),
+ * the session being handled is moved to the quarantine executor when there is one.
+ *
+ * @author jitta
+ */
+class EventLoopWatchdog {
+
+    private final List<EventLoop> eventLoops;
+
+    private final long thresholdNanos;
+
+    //null is report only
+    private final Executor quarantineExecutor;
+
+    private final ScheduledExecutorService scheduler;
+
+    //workStartNanos of the stall already reported per loop
+    private final Map<EventLoop, Long> reported;
+
+    private final AtomicLong stallCount;
+
+    public EventLoopWatchdog(final List<EventLoop> eventLoops, final long thresholdNanos, final Executor quarantineExecutor) {
+        this.eventLoops = eventLoops;
+        this.thresholdNanos = thresholdNanos;
+        this.quarantineExecutor = quarantineExecutor;
+        this.reported = new ConcurrentHashMap<>();
+        this.stallCount = new AtomicLong();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "websocket-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        final long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), thresholdNanos / 2);
+        scheduler.scheduleAtFixedRate(this::check, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public long getStallCount() {
+        return stallCount.get();
+    }
+
+    private void check() {
+        try {
+            checkEventLoops();
+        } catch (final Throwable e) {
+            //An exception would cancel the scheduled check
+            e.printStackTrace();
+        }
+    }
+
+    private void checkEventLoops() {
+        final long now = System.nanoTime();
+        for (final EventLoop eventLoop : eventLoops) {
+            final long workStart = eventLoop.getWorkStartNanos();
+            if (workStart == 0 || now - workStart < thresholdNanos) {
+                continue;
+            }
+            final Long last = reported.put(eventLoop, workStart);
+            if (last != null && last == workStart) {
+                continue;
+            }
+            onStall(eventLoop, TimeUnit.NANOSECONDS.toMillis(now - workStart));
+        }
+    }
+
+    private void onStall(final EventLoop eventLoop, final long stalledMillis) {
+        stallCount.incrementAndGet();
+
+        //1. Stack of the blocked thread, where it is stuck
+        final Thread thread = eventLoop.getThread();
+        final StringBuilder stackTrace = new StringBuilder();
+        if (thread != null) {
+            for (final StackTraceElement element : thread.getStackTrace()) {
+                stackTrace.append("\tat ").append(element).append("\n");
+            }
+        }
+
+        final Object attachment = eventLoop.getWorkAttachment();
+        final WebSocketImpl webSocket = (attachment instanceof WebSocketImpl) ? (WebSocketImpl) attachment : null;
+        final String sessionId = (webSocket == null) ? null : webSocket.getSessionId();
+
+        //2. Report
+        System.out.println("Event loop " + eventLoop.getName() + " stalled for " + stalledMillis + " ms"
+                + ((sessionId == null) ? "" : ", session " + sessionId) + "\n" + stackTrace);
+
+        final EventLoopStallEvent stallEvent = new EventLoopStallEvent();
+        if (stallEvent.isEnabled()) {
+            stallEvent.eventLoop = eventLoop.getName();
+            stallEvent.stalledMillis = stalledMillis;
+            stallEvent.sessionId = sessionId;
+            stallEvent.threadStack = stackTrace.toString();
+            stallEvent.commit();
+        }
+
+        //3. Next messages of the session are handled off the event loop
+        if (quarantineExecutor != null && webSocket != null && !webSocket.isQuarantined()) {
+            webSocket.quarantine(quarantineExecutor);
+            System.out.println("Session " + sessionId + " moved to quarantine executor");
+        }
+    }
+}
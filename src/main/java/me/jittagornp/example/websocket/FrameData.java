@@ -3,6 +3,8 @@
  */
 package me.jittagornp.example.websocket;
 
+import me.jittagornp.example.util.PooledByteBuffer;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -26,6 +28,10 @@ import java.nio.ByteBuffer;
  * + - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - +
  * |                     Payload Data continued ...                |
  * +---------------------------------------------------------------+
+ * <p>
+ * Payload data may be a slice of a {@link PooledByteBuffer}, frames given to a handler
+ * are valid until the handler returns, call {@link #retain()} to keep it longer
+ * and {@link #release()} when done.
  *
  * @author jitta
  */
@@ -45,6 +51,11 @@ public class FrameData {
 
     private final ByteBuffer payloadData;
 
+    private final PooledByteBuffer pooledBuffer;
+
+    //payloadData holds the whole frame, header included, written as is
+    private final boolean isEncoded;
+
     public FrameData(
             final boolean isFin,
             final boolean isRSV1,
@@ -53,6 +64,33 @@ public class FrameData {
             final Opcode opcode,
             final boolean isMask,
             final ByteBuffer payloadData
+    ) {
+        this(isFin, isRSV1, isRSV2, isRSV3, opcode, isMask, payloadData, null);
+    }
+
+    public FrameData(
+            final boolean isFin,
+            final boolean isRSV1,
+            final boolean isRSV2,
+            final boolean isRSV3,
+            final Opcode opcode,
+            final boolean isMask,
+            final ByteBuffer payloadData,
+            final PooledByteBuffer pooledBuffer
+    ) {
+        this(isFin, isRSV1, isRSV2, isRSV3, opcode, isMask, payloadData, pooledBuffer, false);
+    }
+
+    FrameData(
+            final boolean isFin,
+            final boolean isRSV1,
+            final boolean isRSV2,
+            final boolean isRSV3,
+            final Opcode opcode,
+            final boolean isMask,
+            final ByteBuffer payloadData,
+            final PooledByteBuffer pooledBuffer,
+            final boolean isEncoded
     ) {
         this.isFin = isFin;
         this.isRSV1 = isRSV1;
@@ -61,6 +99,8 @@ public class FrameData {
         this.opcode = opcode;
         this.isMask = isMask;
         this.payloadData = payloadData;
+        this.pooledBuffer = pooledBuffer;
+        this.isEncoded = isEncoded;
     }
 
     public boolean isFin() {
@@ -91,6 +131,27 @@ public class FrameData {
         return payloadData;
     }
 
+    public PooledByteBuffer getPooledBuffer() {
+        return pooledBuffer;
+    }
+
+    boolean isEncoded() {
+        return isEncoded;
+    }
+
+    public FrameData retain() {
+        if (pooledBuffer != null) {
+            pooledBuffer.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        if (pooledBuffer != null) {
+            pooledBuffer.release();
+        }
+    }
+
     @Override
     public String toString() {
         return "FrameData{" +
@@ -124,6 +185,10 @@ public class FrameData {
 
         private ByteBuffer payloadData;
 
+        private PooledByteBuffer pooledBuffer;
+
+        private boolean isEncoded;
+
         public Builder fin(final boolean fin) {
             isFin = fin;
             return this;
@@ -159,6 +224,22 @@ public class FrameData {
             return this;
         }
 
+        /**
+         * Owner of payloadData memory, the built frame takes over one reference
+         */
+        public Builder pooledBuffer(final PooledByteBuffer pooledBuffer) {
+            this.pooledBuffer = pooledBuffer;
+            return this;
+        }
+
+        /**
+         * payloadData is a whole frame encoded before (e.g. history replay), written without encoding the header again
+         */
+        Builder encoded(final boolean encoded) {
+            isEncoded = encoded;
+            return this;
+        }
+
         public FrameData build() {
             return new FrameData(
                     isFin,
@@ -167,7 +248,9 @@ public class FrameData {
                     isRSV3,
                     opcode,
                     isMask,
-                    payloadData
+                    payloadData,
+                    pooledBuffer,
+                    isEncoded
             );
         }
     }
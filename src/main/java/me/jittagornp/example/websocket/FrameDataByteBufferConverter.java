@@ -3,7 +3,10 @@
  */
 package me.jittagornp.example.websocket;
 
+import me.jittagornp.example.util.PooledByteBuffer;
+
 import java.nio.ByteBuffer;
+
 /**
  * @author jitta
  */
@@ -11,6 +14,18 @@ interface FrameDataByteBufferConverter {
 
     FrameData convertToFrameData(final ByteBuffer byteBuffer);
 
+    /**
+     * Unmask payloadData in place and wrap it without copy, the frame takes over one reference of pooledBuffer
+     */
+    FrameData convertToFrameData(final FrameHeader header, final ByteBuffer payloadData, final PooledByteBuffer pooledBuffer);
+
     ByteBuffer convertToByteBuffer(final FrameData frameData);
 
+    /**
+     * Write only the header of an unmasked frame, payload is written separately from frameData.getPayloadData()
+     */
+    ByteBuffer convertToHeaderByteBuffer(final FrameData frameData, final ByteBuffer headerBuffer);
+
+    long getMaxPayloadLength();
+
 }
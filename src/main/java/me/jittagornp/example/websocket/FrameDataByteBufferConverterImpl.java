@@ -3,7 +3,9 @@
  */
 package me.jittagornp.example.websocket;
 
-import java.math.BigInteger;
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+
 import java.nio.ByteBuffer;
 import java.util.Random;
 
@@ -24,125 +26,115 @@ class FrameDataByteBufferConverterImpl implements FrameDataByteBufferConverter {
     //0001 0000
     private static final byte RSV3_BITS = (byte) 0b00010000;
 
-    //0000 1111
-    private static final byte OPCODE_BITS = (byte) 0b00001111;
-
     //1000 0000
     private static final byte MASK_BITS = (byte) 0b10000000;
 
-    //0111 1111
-    private static final byte PAYLOAD_LENGTH_BITS = (byte) 0b01111111;
+    //Payload length is a 63 bits value, but a ByteBuffer can hold only int size (header included)
+    public static final long MAX_PAYLOAD_LENGTH = Integer.MAX_VALUE - 14;
 
-    private final Random random = new Random();
+    //Larger frames are a choice of the application, not something any client can ask for
+    public static final long DEFAULT_MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
 
-    @Override
-    public FrameData convertToFrameData(final ByteBuffer byteBuffer) {
+    private final Random random = new Random();
 
-        final byte firstByte = byteBuffer.get();
+    private final long maxPayloadLength;
 
-        final boolean isFin = (((byte) (firstByte & FIN_BITS)) >> 7 & 1) == 1;
-        final boolean isRSV1 = (((byte) (firstByte & RSV1_BITS)) >> 6 & 1) == 1;
-        final boolean isRSV2 = (((byte) (firstByte & RSV2_BITS)) >> 5 & 1) == 1;
-        final boolean isRSV3 = (((byte) (firstByte & RSV3_BITS)) >> 4 & 1) == 1;
+    public FrameDataByteBufferConverterImpl() {
+        this(DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
 
-        final byte opcodeByteValue = (byte) (firstByte & OPCODE_BITS);
-        final Opcode opcode = Opcode.fromByteValue(opcodeByteValue);
+    public FrameDataByteBufferConverterImpl(final long maxPayloadLength) {
+        if (maxPayloadLength < 0 || maxPayloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Invalid max payload length " + maxPayloadLength);
+        }
+        this.maxPayloadLength = maxPayloadLength;
+    }
 
-        //==========================================
-        final byte secondByte = byteBuffer.get();
+    @Override
+    public FrameData convertToFrameData(final ByteBuffer byteBuffer) {
 
-        final boolean isMask = (((byte) (secondByte & MASK_BITS)) >> 7 & 1) == 1;
-        final byte payloadLength = (byte) (secondByte & PAYLOAD_LENGTH_BITS);
+        final FrameHeader header = new FrameHeader();
+        if (!header.decode(byteBuffer, maxPayloadLength)) {
+            throw new WebSocketException(CloseStatus.PROTOCOL_ERROR, "Incomplete frame header");
+        }
 
         //==========================================
-        int payloadDataBufferSize = getPayloadDataBufferSize(payloadLength, byteBuffer);
-        final ByteBuffer payloadData = ByteBuffer.allocate(payloadDataBufferSize);
+        final int payloadLength = (int) header.getPayloadLength();
+        if (byteBuffer.remaining() < payloadLength) {
+            throw new WebSocketException(CloseStatus.PROTOCOL_ERROR, "Incomplete frame payload");
+        }
+
+        final ByteBuffer payloadData = ByteBuffer.allocate(payloadLength);
 
         //==========================================
-        if (isMask) {
-            final ByteBuffer maskingKey = ByteBuffer.allocate(4);
-            maskingKey.put(byteBuffer.get());
-            maskingKey.put(byteBuffer.get());
-            maskingKey.put(byteBuffer.get());
-            maskingKey.put(byteBuffer.get());
+        if (header.isMask()) {
+            final int maskingKey = header.getMaskingKey();
 
             //XOR
-            for (int i = 0; byteBuffer.hasRemaining(); i++) {
-                final byte encoded = (byte) (byteBuffer.get() ^ maskingKey.get(i % 4));
+            for (int i = 0; i < payloadLength; i++) {
+                final byte encoded = (byte) (byteBuffer.get() ^ (maskingKey >>> (24 - ((i & 3) << 3))));
                 payloadData.put(encoded);
             }
         } else {
-            payloadData.put(byteBuffer.array(), byteBuffer.position(), byteBuffer.limit());
+            payloadData.put(byteBuffer.array(), byteBuffer.position(), payloadLength);
+            byteBuffer.position(byteBuffer.position() + payloadLength);
         }
 
         return FrameData.builder()
-                .fin(isFin)
-                .rsv1(isRSV1)
-                .rsv2(isRSV2)
-                .rsv3(isRSV3)
-                .opcode(opcode)
-                .mask(isMask)
+                .fin(header.isFin())
+                .rsv1(header.isRSV1())
+                .rsv2(header.isRSV2())
+                .rsv3(header.isRSV3())
+                .opcode(header.getOpcode())
+                .mask(header.isMask())
                 .payloadData(payloadData)
                 .build();
     }
 
-    private int getPayloadDataBufferSize(final byte payloadLength, final ByteBuffer byteBuffer) {
+    @Override
+    public FrameData convertToFrameData(final FrameHeader header, final ByteBuffer payloadData, final PooledByteBuffer pooledBuffer) {
 
-        if (payloadLength >= 0 && payloadLength <= 125) {
-            return payloadLength;
+        if (header.isMask()) {
+            unmask(payloadData, header.getMaskingKey());
         }
 
-        if (payloadLength == 126) {
-            final ByteBuffer extended = ByteBuffer.allocate(2);
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            return new BigInteger(extended.array()).intValue();
-        }
+        //Payload data is kept as written data [0, position)
+        payloadData.position(payloadData.limit());
 
-        if (payloadLength == 127) {
-            final ByteBuffer extended = ByteBuffer.allocate(8);
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            extended.put(byteBuffer.get());
-            return new BigInteger(extended.array()).intValue();
-        }
-
-        throw new UnsupportedOperationException("Invalid payload length");
+        return FrameData.builder()
+                .fin(header.isFin())
+                .rsv1(header.isRSV1())
+                .rsv2(header.isRSV2())
+                .rsv3(header.isRSV3())
+                .opcode(header.getOpcode())
+                .mask(header.isMask())
+                .payloadData(payloadData)
+                .pooledBuffer(pooledBuffer)
+                .build();
     }
 
-    @Override
-    public ByteBuffer convertToByteBuffer(final FrameData frameData) {
-
-        final ByteBuffer payloadData = frameData.getPayloadData().flip();
-
-        //==========================================
-        byte firstByte = (byte) 0b00000000;
+    private void unmask(final ByteBuffer payloadData, final int maskingKey) {
+        final int start = payloadData.position();
+        final int end = payloadData.limit();
+        final long maskingKey64 = ((long) maskingKey << 32) | (maskingKey & 0xFFFFFFFFL);
 
-        //FIN:  1 bit
-        if (frameData.isFin()) {
-            firstByte |= FIN_BITS;
+        //XOR 8 bytes at a time, then the tail
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            payloadData.putLong(i, payloadData.getLong(i) ^ maskingKey64);
         }
-
-        //RSV1, RSV2, RSV3:  1 bit each
-        if (frameData.isRSV1()) {
-            firstByte |= RSV1_BITS;
+        for (; i < end; i++) {
+            payloadData.put(i, (byte) (payloadData.get(i) ^ (maskingKey >>> (24 - (((i - start) & 3) << 3)))));
         }
+    }
 
-        if (frameData.isRSV2()) {
-            firstByte |= RSV2_BITS;
-        }
+    @Override
+    public ByteBuffer convertToByteBuffer(final FrameData frameData) {
 
-        if (frameData.isRSV3()) {
-            firstByte |= RSV3_BITS;
-        }
+        final ByteBuffer payloadData = ByteBufferUtils.readView(frameData.getPayloadData());
 
-        //Opcode:  4 bits
-        firstByte |= frameData.getOpcode().getByteValue();
+        //==========================================
+        final byte firstByte = buildFirstByte(frameData);
 
         //==========================================
         //Mask:  1 bit (1000 0000 or 0000 0000)
@@ -172,12 +164,69 @@ class FrameDataByteBufferConverterImpl implements FrameDataByteBufferConverter {
                 frameBuffer.put(encoded);
             }
         } else {
-            frameBuffer.put(payloadData.array(), payloadData.position(), payloadData.limit());
+            frameBuffer.put(payloadData);
         }
 
         return frameBuffer;
     }
 
+    @Override
+    public ByteBuffer convertToHeaderByteBuffer(final FrameData frameData, final ByteBuffer headerBuffer) {
+        if (frameData.isMask()) {
+            throw new UnsupportedOperationException("Masked frame must be converted with convertToByteBuffer()");
+        }
+
+        final int length = frameData.getPayloadData().position();
+
+        headerBuffer.put(buildFirstByte(frameData));
+
+        //Payload length:  7 bits, 7+16 bits, or 7+64 bits
+        if (length <= 125) {
+            headerBuffer.put((byte) length);
+        } else if (length <= 65535) {
+            headerBuffer.put((byte) 126);
+            headerBuffer.putShort((short) length);
+        } else {
+            headerBuffer.put((byte) 127);
+            headerBuffer.putLong(length);
+        }
+
+        return headerBuffer;
+    }
+
+    @Override
+    public long getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+
+    private byte buildFirstByte(final FrameData frameData) {
+
+        byte firstByte = (byte) 0b00000000;
+
+        //FIN:  1 bit
+        if (frameData.isFin()) {
+            firstByte |= FIN_BITS;
+        }
+
+        //RSV1, RSV2, RSV3:  1 bit each
+        if (frameData.isRSV1()) {
+            firstByte |= RSV1_BITS;
+        }
+
+        if (frameData.isRSV2()) {
+            firstByte |= RSV2_BITS;
+        }
+
+        if (frameData.isRSV3()) {
+            firstByte |= RSV3_BITS;
+        }
+
+        //Opcode:  4 bits
+        firstByte |= frameData.getOpcode().getByteValue();
+
+        return firstByte;
+    }
+
     private ByteBuffer randomMaskingKey() {
         final ByteBuffer maskingKey = ByteBuffer.allocate(4);
         maskingKey.putInt(random.nextInt());
@@ -224,16 +273,13 @@ class FrameDataByteBufferConverterImpl implements FrameDataByteBufferConverter {
         final ByteBuffer buffer = ByteBuffer.allocate(byteCapacity);
         final byte firstByte = (byte) (payloadLength | maskBits);
         buffer.put(firstByte);
-        if (byteCapacity > 1) {
-            final byte[] extended = convertToByteArray(extendedLength, byteCapacity - 1);
-            buffer.put(extended);
+        if (byteCapacity == 3) {
+            //16 bits unsigned
+            buffer.putShort((short) extendedLength);
+        } else if (byteCapacity == 9) {
+            //64 bits
+            buffer.putLong(extendedLength);
         }
         return buffer;
     }
-
-    private byte[] convertToByteArray(final int value, final int byteCapacity) {
-        final ByteBuffer buffer = ByteBuffer.allocate(byteCapacity);
-        buffer.putInt(value);
-        return buffer.array();
-    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mutable frame header, designed to be reused for every frame of a connection
+ * so header parsing does not allocate.
+ * <p>
+ * https://tools.ietf.org/html/rfc6455#section-5.2
+ *
+ * @author jitta
+ */
+public class FrameHeader {
+
+    //1000 0000
+    private static final int FIN_BITS = 0b10000000;
+
+    //0100 0000
+    private static final int RSV1_BITS = 0b01000000;
+
+    //0010 0000
+    private static final int RSV2_BITS = 0b00100000;
+
+    //0001 0000
+    private static final int RSV3_BITS = 0b00010000;
+
+    //0000 1111
+    private static final int OPCODE_BITS = 0b00001111;
+
+    //1000 0000
+    private static final int MASK_BITS = 0b10000000;
+
+    //0111 1111
+    private static final int PAYLOAD_LENGTH_BITS = 0b01111111;
+
+    private boolean isFin;
+
+    private boolean isRSV1;
+
+    private boolean isRSV2;
+
+    private boolean isRSV3;
+
+    private Opcode opcode;
+
+    private boolean isMask;
+
+    private int maskingKey;
+
+    private long payloadLength;
+
+    private int headerLength;
+
+    /**
+     * Decode header from current position of byteBuffer.
+     *
+     * @return true and move position to the first payload byte when the whole header is available,
+     * false and leave position untouched when more bytes are needed
+     */
+    public boolean decode(final ByteBuffer byteBuffer, final long maxPayloadLength) {
+
+        final int start = byteBuffer.position();
+        final int available = byteBuffer.remaining();
+        if (available < 2) {
+            return false;
+        }
+
+        //==========================================
+        final int firstByte = byteBuffer.get(start) & 0xFF;
+        final int secondByte = byteBuffer.get(start + 1) & 0xFF;
+
+        final boolean mask = (secondByte & MASK_BITS) != 0;
+        final int length = secondByte & PAYLOAD_LENGTH_BITS;
+
+        //Payload length:  7 bits, 7+16 bits, or 7+64 bits
+        final int extendedSize = (length == 126) ? 2 : (length == 127) ? 8 : 0;
+        final int size = 2 + extendedSize + (mask ? 4 : 0);
+        if (available < size) {
+            return false;
+        }
+
+        final long payloadLength;
+        if (length == 126) {
+            payloadLength = byteBuffer.getShort(start + 2) & 0xFFFF;
+        } else if (length == 127) {
+            payloadLength = byteBuffer.getLong(start + 2);
+            //The most significant bit MUST be 0
+            if (payloadLength < 0) {
+                throw new WebSocketException(CloseStatus.PROTOCOL_ERROR, "Invalid payload length");
+            }
+        } else {
+            payloadLength = length;
+        }
+
+        if (payloadLength > maxPayloadLength) {
+            throw new WebSocketException(CloseStatus.TOO_BIG, "Payload length " + payloadLength + " exceeds " + maxPayloadLength);
+        }
+
+        //Reserved opcodes (3-7, 0xB-0xF) MUST fail the connection (RFC6455 section 5.2)
+        final Opcode opcode = Opcode.fromByteValueOrNull((byte) (firstByte & OPCODE_BITS));
+        if (opcode == null) {
+            throw new WebSocketException(CloseStatus.PROTOCOL_ERROR, "Unknown opcode " + (firstByte & OPCODE_BITS));
+        }
+
+        //==========================================
+        this.isFin = (firstByte & FIN_BITS) != 0;
+        this.isRSV1 = (firstByte & RSV1_BITS) != 0;
+        this.isRSV2 = (firstByte & RSV2_BITS) != 0;
+        this.isRSV3 = (firstByte & RSV3_BITS) != 0;
+        this.opcode = opcode;
+        this.isMask = mask;
+        this.maskingKey = mask ? byteBuffer.getInt(start + 2 + extendedSize) : 0;
+        this.payloadLength = payloadLength;
+        this.headerLength = size;
+
+        byteBuffer.position(start + size);
+        return true;
+    }
+
+    public boolean isFin() {
+        return isFin;
+    }
+
+    public boolean isRSV1() {
+        return isRSV1;
+    }
+
+    public boolean isRSV2() {
+        return isRSV2;
+    }
+
+    public boolean isRSV3() {
+        return isRSV3;
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public boolean isMask() {
+        return isMask;
+    }
+
+    public int getMaskingKey() {
+        return maskingKey;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameHeader{" +
+                "isFin=" + isFin +
+                ", isRSV1=" + isRSV1 +
+                ", isRSV2=" + isRSV2 +
+                ", isRSV3=" + isRSV3 +
+                ", opcode=" + opcode +
+                ", isMask=" + isMask +
+                ", payloadLength=" + payloadLength +
+                '}';
+    }
+}
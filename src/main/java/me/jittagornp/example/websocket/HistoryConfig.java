@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Recent messages kept per topic of {@link PubSub}, so a reconnecting client can resume
+ * from the last offset it has seen instead of asking for a full snapshot.
+ * <p>
+ * Offsets are numbered per topic by this server, from 1. A history is created by the first publish of a topic,
+ * never by a resume. At most maxTopics histories are kept, the one published least recently is evicted
+ * (a mapped one keeps its file and sequence, it is loaded again on the next publish).
+ * Resume is refused unless a {@link ResumeAuthorizer} allows it.
+ *
+ * @author jitta
+ */
+public class HistoryConfig {
+
+    private static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int DEFAULT_MAX_TOPICS = 1024;
+
+    private static final String FILE_EXTENSION = ".history";
+
+    private final int capacity;
+
+    private final Path directory;
+
+    //Exact topics and "prefix*" patterns, null is every topic
+    private final Set<String> patterns;
+
+    private final int maxTopics;
+
+    //null is every resume refused
+    private final ResumeAuthorizer resumeAuthorizer;
+
+    private HistoryConfig(final int capacity, final Path directory, final Set<String> patterns,
+                          final int maxTopics, final ResumeAuthorizer resumeAuthorizer) {
+        this.capacity = capacity;
+        this.directory = directory;
+        this.patterns = patterns;
+        this.maxTopics = maxTopics;
+        this.resumeAuthorizer = resumeAuthorizer;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getMaxTopics() {
+        return maxTopics;
+    }
+
+    public ResumeAuthorizer getResumeAuthorizer() {
+        return resumeAuthorizer;
+    }
+
+    boolean isRecorded(final String topic) {
+        return (patterns == null) || PubSubImpl.matches(patterns, topic);
+    }
+
+    /**
+     * @param lastSequence of the evicted in memory history of topic, 0 when none
+     */
+    TopicHistory createHistory(final String topic, final long lastSequence) throws IOException {
+        if (directory == null) {
+            return TopicHistory.inMemory(capacity, lastSequence);
+        }
+        Files.createDirectories(directory);
+        final String fileName = URLEncoder.encode(topic, StandardCharsets.UTF_8) + FILE_EXTENSION;
+        return TopicHistory.mapped(directory.resolve(fileName), capacity);
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryConfig{" +
+                "capacity=" + capacity +
+                ", directory=" + directory +
+                ", patterns=" + patterns +
+                ", maxTopics=" + maxTopics +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int capacity = DEFAULT_CAPACITY;
+
+        private Path directory;
+
+        private Set<String> patterns;
+
+        private int maxTopics = DEFAULT_MAX_TOPICS;
+
+        private ResumeAuthorizer resumeAuthorizer;
+
+        /**
+         * Bytes of encoded frames kept per topic
+         */
+        public Builder capacity(final int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Keep history in memory mapped files of this directory, it survives restart of the server
+         */
+        public Builder directory(final Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Record only these topics, may end with "*", default is every topic
+         */
+        public Builder topics(final String... patterns) {
+            this.patterns = new HashSet<>(Arrays.asList(patterns));
+            return this;
+        }
+
+        /**
+         * Histories kept at a time, each one holds capacity bytes
+         */
+        public Builder maxTopics(final int maxTopics) {
+            this.maxTopics = maxTopics;
+            return this;
+        }
+
+        /**
+         * Check of every topic a client asks to resume, default refuses all
+         */
+        public Builder resumeAuthorizer(final ResumeAuthorizer resumeAuthorizer) {
+            this.resumeAuthorizer = resumeAuthorizer;
+            return this;
+        }
+
+        public HistoryConfig build() {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Invalid capacity " + capacity);
+            }
+            if (maxTopics <= 0) {
+                throw new IllegalArgumentException("Invalid max topics " + maxTopics);
+            }
+            return new HistoryConfig(capacity, directory, patterns, maxTopics, resumeAuthorizer);
+        }
+    }
+}
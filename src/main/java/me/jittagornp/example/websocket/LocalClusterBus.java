@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process {@link ClusterBus}, servers in the same JVM joined to one {@link Hub}.
+ * <p>
+ * Every batch is copied and delivered on the receiver's own thread, like a network would,
+ * so it is a stand-in for tests and local development of a multi node setup.
+ *
+ * @author jitta
+ */
+public class LocalClusterBus implements ClusterBus {
+
+    private final Hub hub;
+
+    private final String nodeId;
+
+    //Single thread keeps batches of a peer in order
+    private final ExecutorService executor;
+
+    private volatile Receiver receiver;
+
+    public LocalClusterBus(final Hub hub, final String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cluster-bus-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(final Receiver receiver) {
+        this.receiver = receiver;
+        hub.join(this);
+    }
+
+    @Override
+    public Collection<String> getPeers() {
+        final Collection<String> peers = new ArrayList<>(hub.nodes.keySet());
+        peers.remove(nodeId);
+        return peers;
+    }
+
+    @Override
+    public void send(final String peer, final ByteBuffer batch) {
+        final LocalClusterBus target = hub.nodes.get(peer);
+        if (target == null) {
+            return;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(batch.remaining()).put(batch).flip();
+        target.deliver(() -> target.receiver.onReceive(nodeId, copy));
+    }
+
+    @Override
+    public void close() {
+        hub.leave(this);
+        executor.shutdown();
+    }
+
+    private void deliver(final Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (final Throwable e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    public static class Hub {
+
+        private final ConcurrentMap<String, LocalClusterBus> nodes = new ConcurrentHashMap<>();
+
+        private synchronized void join(final LocalClusterBus node) {
+            if (nodes.putIfAbsent(node.getNodeId(), node) != null) {
+                throw new IllegalStateException("Duplicate node " + node.getNodeId());
+            }
+            for (final LocalClusterBus peer : nodes.values()) {
+                if (peer != node) {
+                    peer.deliver(() -> peer.receiver.onPeerJoined(node.getNodeId()));
+                    node.deliver(() -> node.receiver.onPeerJoined(peer.getNodeId()));
+                }
+            }
+        }
+
+        private synchronized void leave(final LocalClusterBus node) {
+            if (!nodes.remove(node.getNodeId(), node)) {
+                return;
+            }
+            for (final LocalClusterBus peer : nodes.values()) {
+                peer.deliver(() -> peer.receiver.onPeerLeft(node.getNodeId()));
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Typed messages of a subprotocol, negotiated with Sec-WebSocket-Protocol in the handshake.
+ * <p>
+ * Messages are encoded straight into the pooled buffer of the outbound frame (no intermediate String or byte[])
+ * and decoded from the payload in the read buffer. Shared by every event loop, implementations are stateless.
+ *
+ * @param <T> message type
+ * @author jitta
+ * @see CodecWebSocketHandler
+ * @see WebSocket#send(MessageCodec, Object)
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * Value of Sec-WebSocket-Protocol, e.g. "compact.v1"
+     */
+    String getSubprotocol();
+
+    /**
+     * TEXT_FRAME or BINARY_FRAME
+     */
+    default Opcode getOpcode() {
+        return Opcode.BINARY_FRAME;
+    }
+
+    /**
+     * Bytes encode() writes for the message, at most
+     */
+    int getEncodedSize(final T message);
+
+    /**
+     * Write the message at the position of buffer, which has getEncodedSize() bytes remaining
+     */
+    void encode(final T message, final ByteBuffer buffer);
+
+    /**
+     * @param payload ready to read, the whole message
+     * @throws IllegalArgumentException when the payload is not a message of this codec
+     */
+    T decode(final ByteBuffer payload);
+}
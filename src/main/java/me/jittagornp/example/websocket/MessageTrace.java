@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Timestamps ({@link System#nanoTime()}) of one received message and of the first message
+ * its handler sent back, 0 when the step did not happen (e.g. handler sent nothing).
+ *
+ * @author jitta
+ */
+public class MessageTrace {
+
+    private final String sessionId;
+
+    private final long readNanos;
+
+    private Opcode opcode;
+
+    private long payloadLength;
+
+    private long decodedNanos;
+
+    private long dispatchStartNanos;
+
+    private long dispatchEndNanos;
+
+    private long enqueuedNanos;
+
+    private long writeStartNanos;
+
+    private long flushedNanos;
+
+    //Kept in the ring, not only timed for the slow message log
+    private final boolean sampled;
+
+    private boolean finished;
+
+    MessageTrace(final String sessionId, final long readNanos, final boolean sampled) {
+        this.sessionId = sessionId;
+        this.readNanos = readNanos;
+        this.sampled = sampled;
+    }
+
+    void decoded(final FrameData frameData) {
+        this.decodedNanos = System.nanoTime();
+        this.opcode = frameData.getOpcode();
+        this.payloadLength = frameData.getPayloadData().position();
+    }
+
+    void dispatchStart() {
+        this.dispatchStartNanos = System.nanoTime();
+    }
+
+    void dispatchEnd() {
+        this.dispatchEndNanos = System.nanoTime();
+    }
+
+    void enqueued() {
+        this.enqueuedNanos = System.nanoTime();
+    }
+
+    void writeStart() {
+        this.writeStartNanos = System.nanoTime();
+    }
+
+    void flushed() {
+        this.flushedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return false when already finished, e.g. answer written before the handler returned
+     */
+    boolean finish() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        return true;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public long getDecodedNanos() {
+        return decodedNanos;
+    }
+
+    public long getDispatchStartNanos() {
+        return dispatchStartNanos;
+    }
+
+    public long getDispatchEndNanos() {
+        return dispatchEndNanos;
+    }
+
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+
+    public long getWriteStartNanos() {
+        return writeStartNanos;
+    }
+
+    public long getFlushedNanos() {
+        return flushedNanos;
+    }
+
+    /**
+     * Read to written when the handler answered, otherwise read to handler returned
+     */
+    public long getTotalNanos() {
+        final long end = (flushedNanos != 0) ? flushedNanos : dispatchEndNanos;
+        return end - readNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageTrace{" +
+                "sessionId='" + sessionId + '\'' +
+                ", opcode=" + opcode +
+                ", payloadLength=" + payloadLength +
+                ", decode=" + between(readNanos, decodedNanos) +
+                ", wait=" + between(decodedNanos, dispatchStartNanos) +
+                ", handler=" + between(dispatchStartNanos, dispatchEndNanos) +
+                ", queue=" + between(enqueuedNanos, writeStartNanos) +
+                ", write=" + between(writeStartNanos, flushedNanos) +
+                ", total=" + getTotalNanos() / 1000 + "us" +
+                '}';
+    }
+
+    private static String between(final long start, final long end) {
+        if (start == 0 || end == 0) {
+            return "-";
+        }
+        return (end - start) / 1000 + "us";
+    }
+}
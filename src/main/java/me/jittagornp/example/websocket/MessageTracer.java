@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decide which messages are traced and keep finished traces in a lock-free ring,
+ * event loops write with one getAndIncrement, old traces are overwritten.
+ *
+ * @author jitta
+ */
+class MessageTracer {
+
+    private final int sampleRate;
+
+    private final long slowThresholdNanos;
+
+    private final AtomicReferenceArray<MessageTrace> ring;
+
+    private final int mask;
+
+    private final AtomicLong sequence;
+
+    public MessageTracer(final TraceConfig config) {
+        this.sampleRate = config.getSampleRate();
+        this.slowThresholdNanos = (config.getSlowThreshold() == null) ? 0 : config.getSlowThreshold().toNanos();
+        final int size = Integer.highestOneBit(Math.max(1, config.getRingSize() - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sequence = new AtomicLong();
+    }
+
+    /**
+     * @return null when the message is not traced, a session traces one message at a time
+     */
+    public MessageTrace start(final WebSocketImpl webSocket, final long readNanos) {
+        if (webSocket.hasPendingTrace()) {
+            return null;
+        }
+        final boolean sampled = (sampleRate > 0) && (ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+        if (!sampled && slowThresholdNanos == 0) {
+            return null;
+        }
+        return new MessageTrace(webSocket.getSessionId(), readNanos, sampled);
+    }
+
+    public void finish(final MessageTrace trace) {
+        if (!trace.finish()) {
+            return;
+        }
+        final boolean slow = (slowThresholdNanos > 0) && (trace.getTotalNanos() > slowThresholdNanos);
+        if (slow) {
+            System.out.println("Slow message : " + trace);
+        }
+        if (slow || trace.isSampled()) {
+            ring.set((int) (sequence.getAndIncrement() & mask), trace);
+        }
+    }
+
+    /**
+     * Recent traces, oldest first
+     */
+    public List<MessageTrace> getTraces() {
+        final long end = sequence.get();
+        final long start = Math.max(0, end - ring.length());
+        final List<MessageTrace> traces = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            final MessageTrace trace = ring.get((int) (i & mask));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+}
@@ -3,8 +3,8 @@
  */
 package me.jittagornp.example.websocket;
 
-import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
+import me.jittagornp.example.util.ByteBufferUtils;
+
 import java.util.LinkedList;
 import java.util.List;
 
@@ -26,9 +26,27 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
         this.handlers = handlers;
     }
 
+    /**
+     * First subprotocol offered by the client which a {@link CodecWebSocketHandler} handles
+     *
+     * @return null when there is none
+     */
+    public String selectSubprotocol(final List<String> offeredProtocols) {
+        for (final String protocol : offeredProtocols) {
+            final boolean handled = getHandlers().stream()
+                    .anyMatch(handler -> handler instanceof CodecWebSocketHandler
+                            && protocol.equals(((CodecWebSocketHandler<?>) handler).getCodec().getSubprotocol()));
+            if (handled) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void onConnect(final WebSocket webSocket) {
         handlers.stream()
+                .filter(handler -> isHandledBy(handler, webSocket))
                 .forEach(handler -> {
                     try {
                         handler.onConnect(webSocket);
@@ -41,19 +59,32 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
     @Override
     public void onMessage(final WebSocket webSocket, final FrameData frameData) {
         handlers.stream()
+                .filter(handler -> isHandledBy(handler, webSocket))
                 .forEach(handler -> handleMessage(handler, webSocket, frameData));
     }
 
     @Override
     public void onError(final WebSocket webSocket, final Throwable e) {
         handlers.stream()
+                .filter(handler -> isHandledBy(handler, webSocket))
                 .forEach(handler -> handleError(handler, webSocket, e));
     }
 
     @Override
     public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
         handlers.stream()
-                .forEach(handler -> handleConnectionCloseFrame(handler, webSocket, null));
+                .filter(handler -> isHandledBy(handler, webSocket))
+                .forEach(handler -> handleDisconnect(handler, webSocket, status));
+    }
+
+    /**
+     * Codec handler gets events of sessions of its subprotocol only, other handlers get every session
+     */
+    private boolean isHandledBy(final WebSocketHandler handler, final WebSocket webSocket) {
+        if (handler instanceof CodecWebSocketHandler) {
+            return ((CodecWebSocketHandler<?>) handler).getCodec().getSubprotocol().equals(webSocket.getSubprotocol());
+        }
+        return true;
     }
 
     private void handleError(final WebSocketHandler handler, final WebSocket webSocket, final Throwable e) {
@@ -86,14 +117,14 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
         final Opcode opcode = frameData.getOpcode();
         System.out.println("opcode : " + opcode);
 
-        if (opcode == Opcode.CONTINUATION_FRAME) {
+        if (handler instanceof CodecWebSocketHandler && (opcode == Opcode.CONTINUATION_FRAME || opcode == Opcode.TEXT_FRAME || opcode == Opcode.BINARY_FRAME)) {
+            handleCodecFrame((CodecWebSocketHandler<?>) handler, webSocket, frameData);
+        } else if (opcode == Opcode.CONTINUATION_FRAME) {
             handleContinuationFrame(handler, webSocket, frameData);
         } else if (opcode == Opcode.TEXT_FRAME) {
             handleTextFrame(handler, webSocket, frameData);
         } else if (opcode == Opcode.BINARY_FRAME) {
             handleBinaryFrame(handler, webSocket, frameData);
-        } else if (opcode == Opcode.CONNECTION_CLOSE) {
-            handleConnectionCloseFrame(handler, webSocket, convertToCloseStatus(frameData.getPayloadData().array()));
         } else if (opcode == Opcode.PING) {
             handlePingFrame(handler, webSocket, frameData);
         } else if (opcode == Opcode.PONG) {
@@ -106,7 +137,7 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
     private void handleContinuationFrame(final WebSocketHandler handler, final WebSocket webSocket, final FrameData frameData) {
         try {
             if (handler instanceof TextWebSocketHandler) {
-                final String text = new String(frameData.getPayloadData().array(), StandardCharsets.UTF_8);
+                final String text = ByteBufferUtils.toText(frameData.getPayloadData());
                 handler.onMessage(webSocket, text);
             } else if (handler instanceof BinaryWebSocketHandler) {
                 handler.onMessage(webSocket, frameData.getPayloadData());
@@ -121,7 +152,7 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
     private void handleTextFrame(final WebSocketHandler handler, final WebSocket webSocket, final FrameData frameData) {
         try {
             if (handler instanceof TextWebSocketHandler) {
-                final String text = new String(frameData.getPayloadData().array(), StandardCharsets.UTF_8);
+                final String text = ByteBufferUtils.toText(frameData.getPayloadData());
                 handler.onMessage(webSocket, text);
             } else {
                 handler.onMessage(webSocket, frameData);
@@ -143,20 +174,26 @@ class MultipleWebSocketHandler implements WebSocketHandler<FrameData> {
         }
     }
 
-    private void handleConnectionCloseFrame(final WebSocketHandler handler, final WebSocket webSocket, final CloseStatus status) {
+    private <T> void handleCodecFrame(final CodecWebSocketHandler<T> handler, final WebSocket webSocket, final FrameData frameData) {
         try {
-            handler.onDisconnect(webSocket, status);
+            final MessageCodec<T> codec = handler.getCodec();
+            if (frameData.getOpcode() != codec.getOpcode() || !frameData.isFin()) {
+                //A message of a codec is one frame of its opcode
+                throw new IllegalArgumentException("Unexpected " + (frameData.isFin() ? "" : "fragmented ") + frameData.getOpcode() + " for " + codec.getSubprotocol());
+            }
+            final T message = codec.decode(ByteBufferUtils.readView(frameData.getPayloadData()));
+            handler.onMessage(webSocket, message);
         } catch (final Throwable e) {
             handleError(handler, webSocket, e);
         }
     }
 
-    private CloseStatus convertToCloseStatus(final byte[] byteArray) {
-        if (byteArray.length == 0) {
-            return CloseStatus.NORMAL;
+    private void handleDisconnect(final WebSocketHandler handler, final WebSocket webSocket, final CloseStatus status) {
+        try {
+            handler.onDisconnect(webSocket, status);
+        } catch (final Throwable e) {
+            handleError(handler, webSocket, e);
         }
-        final int code = new BigInteger(byteArray).intValue();
-        return CloseStatus.fromCode(code);
     }
 
     private void handlePingFrame(final WebSocketHandler handler, final WebSocket webSocket, final FrameData frameData) {
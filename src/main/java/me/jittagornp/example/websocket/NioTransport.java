@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * JDK selector of the platform (epoll on Linux, kqueue on macOS), level triggered. JDK selectors never use EPOLLET,
+ * an edge triggered transport needs its own {@link SelectorProvider}.
+ *
+ * @author jitta
+ */
+class NioTransport implements Transport {
+
+    static final NioTransport INSTANCE = new NioTransport();
+
+    private final SelectorProvider provider;
+
+    private NioTransport() {
+        this.provider = SelectorProvider.provider();
+    }
+
+    @Override
+    public String getName() {
+        return "nio";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Selector openSelector() throws IOException {
+        return provider.openSelector();
+    }
+
+    @Override
+    public ServerSocketChannel openServerSocketChannel() throws IOException {
+        return provider.openServerSocketChannel();
+    }
+
+    @Override
+    public String toString() {
+        return getName() + " (" + provider.getClass().getSimpleName() + ")";
+    }
+}
@@ -37,6 +37,15 @@ public enum Opcode {
     PING((byte) 0b00001001),
     PONG((byte) 0b00001010);
 
+    //Lookup table indexed by 4 bits opcode value
+    private static final Opcode[] BY_BYTE_VALUE = new Opcode[16];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_BYTE_VALUE[opcode.getByteValue()] = opcode;
+        }
+    }
+
     private final byte byteValue;
 
     private Opcode(final byte byteValue) {
@@ -48,12 +57,17 @@ public enum Opcode {
     }
 
     public static Opcode fromByteValue(final byte byteValue) {
-        final Opcode[] opcodes = values();
-        for (Opcode opcode : opcodes) {
-            if (opcode.getByteValue() == byteValue) {
-                return opcode;
-            }
+        final Opcode opcode = fromByteValueOrNull(byteValue);
+        if (opcode != null) {
+            return opcode;
         }
         throw new UnsupportedOperationException("Unknown opcode of " + byteValue);
     }
+
+    /**
+     * @return null for reserved opcodes
+     */
+    public static Opcode fromByteValueOrNull(final byte byteValue) {
+        return (byteValue >= 0 && byteValue < BY_BYTE_VALUE.length) ? BY_BYTE_VALUE[byteValue] : null;
+    }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * @author jitta
+ */
+class PlainWebSocketChannel implements WebSocketChannel {
+
+    private final SocketChannel channel;
+
+    public PlainWebSocketChannel(final SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public SocketChannel getSocketChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean hasBufferedData() {
+        return false;
+    }
+
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        return channel.write(src);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        return channel.write(srcs, offset, length);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return channel.write(srcs);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
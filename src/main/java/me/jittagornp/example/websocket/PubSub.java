@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Topic based publish / subscribe between sessions of a server.
+ * <p>
+ * Topics are segments separated by '.', a subscription may end with "*"
+ * to match every topic under a prefix, e.g. "chat.*" matches "chat.room1" and "chat.room1.typing".
+ * Subscriptions of a session are removed when it disconnects.
+ * <p>
+ * With {@link HistoryConfig}, a client which has seen messages of a topic up to an offset reconnects with
+ * {@code ?resume=topic:offset} in the handshake URL (repeat for more topics), only the missed messages are replayed
+ * and the session is subscribed again, before onConnect(). Each topic is checked by the {@link ResumeAuthorizer}.
+ *
+ * @author jitta
+ */
+public interface PubSub {
+
+    void subscribe(final WebSocket webSocket, final String topic);
+
+    void unsubscribe(final WebSocket webSocket, final String topic);
+
+    /**
+     * Deliver to sessions of this server and forward to cluster peers which have subscribers of topic
+     *
+     * @return number of sessions of this server the message is sent to
+     */
+    int publish(final String topic, final String message);
+
+    /**
+     * @param message payload in written state (position is the length), copied once before return
+     * @return number of sessions of this server the message is sent to
+     */
+    int publish(final String topic, final ByteBuffer message);
+
+    /**
+     * Offset of the last message published to topic (from 1), 0 without history.
+     * A client counts messages of the topic from here to know its resume offset
+     */
+    long getOffset(final String topic);
+
+    /**
+     * Node of the cluster which numbers offsets of {@link #getOffset(String)}, null when not in a cluster.
+     * Offsets are numbered by each node, a client resumes with {@code &node=nodeId}
+     * and offsets of another node are refused
+     */
+    String getNodeId();
+
+    /**
+     * Topics of the session, includes topics resumed in the handshake
+     */
+    Set<String> getSubscriptions(final WebSocket webSocket);
+}
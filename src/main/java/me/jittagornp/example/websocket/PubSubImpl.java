@@ -0,0 +1,445 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Subscription index of two concurrent hash maps, exact topics and wildcard prefixes.
+ * <p>
+ * A publish looks up the topic and every prefix of it ("", "a.", "a.b." for "a.b.c"),
+ * encodes the payload once into a pooled buffer and hands the same frame
+ * to each event loop which owns subscribers, one task per loop.
+ *
+ * @author jitta
+ */
+class PubSubImpl implements PubSub {
+
+    static final char SEPARATOR = '.';
+
+    static final String WILDCARD = "*";
+
+    //1 byte + 9 bytes payload length
+    private static final int MAX_HEADER_SIZE = 10;
+
+    private final ByteBufferPool byteBufferPool;
+
+    //topic -> sessions
+    private final ConcurrentMap<String, Set<WebSocketImpl>> topics;
+
+    //prefix of "prefix*" -> sessions
+    private final ConcurrentMap<String, Set<WebSocketImpl>> prefixes;
+
+    //Other nodes, null is standalone
+    private volatile ClusterLink clusterLink;
+
+    //Recent frames per topic, null is no history
+    private volatile HistoryConfig historyConfig;
+
+    private final ConcurrentMap<String, TopicHistory> histories;
+
+    //Last offset of evicted in memory histories, a new history of the topic continues from it
+    private final ConcurrentMap<String, Long> evictedSequences;
+
+    //Encode headers of frames kept in history
+    private final FrameDataByteBufferConverter converter;
+
+    public PubSubImpl(final ByteBufferPool byteBufferPool) {
+        this.byteBufferPool = byteBufferPool;
+        this.topics = new ConcurrentHashMap<>();
+        this.prefixes = new ConcurrentHashMap<>();
+        this.histories = new ConcurrentHashMap<>();
+        this.evictedSequences = new ConcurrentHashMap<>();
+        this.converter = new FrameDataByteBufferConverterImpl();
+    }
+
+    public void setHistoryConfig(final HistoryConfig historyConfig) {
+        this.historyConfig = historyConfig;
+    }
+
+    public void join(final ClusterBus clusterBus) {
+        final ClusterLink link = new ClusterLink(clusterBus, this);
+        this.clusterLink = link;
+        link.start();
+    }
+
+    public ClusterLink getClusterLink() {
+        return clusterLink;
+    }
+
+    @Override
+    public String getNodeId() {
+        final ClusterLink link = clusterLink;
+        return (link == null) ? null : link.getNodeId();
+    }
+
+    /**
+     * Exact topics and "prefix*" patterns with subscribers on this node
+     */
+    public Set<String> getPatterns() {
+        final Set<String> patterns = new HashSet<>(topics.keySet());
+        prefixes.keySet().forEach(prefix -> patterns.add(prefix + WILDCARD));
+        return patterns;
+    }
+
+    @Override
+    public void subscribe(final WebSocket webSocket, final String topic) {
+        final WebSocketImpl session = (WebSocketImpl) webSocket;
+        if (session.getState() == WebSocketImpl.State.CLOSED) {
+            return;
+        }
+        validate(topic);
+        session.getSubscriptions().add(topic);
+        //Add inside compute, so it never races with removal of an empty set
+        indexOf(topic).compute(keyOf(topic), (key, sessions) -> {
+            final Set<WebSocketImpl> result = (sessions == null) ? ConcurrentHashMap.newKeySet() : sessions;
+            result.add(session);
+            if (sessions == null) {
+                //Inside compute, so peers see subscribe / unsubscribe of a topic in order
+                notifySubscribed(topic);
+            }
+            return result;
+        });
+        //Closed meanwhile, unsubscribeAll() may have missed this topic
+        if (session.getState() == WebSocketImpl.State.CLOSED) {
+            unsubscribe(session, topic);
+        }
+    }
+
+    @Override
+    public void unsubscribe(final WebSocket webSocket, final String topic) {
+        final WebSocketImpl session = (WebSocketImpl) webSocket;
+        session.getSubscriptions().remove(topic);
+        remove(session, topic);
+    }
+
+    /**
+     * Called when the session is closed
+     */
+    public void unsubscribeAll(final WebSocketImpl session) {
+        final Set<String> subscriptions = session.getSubscriptions();
+        for (final String topic : subscriptions) {
+            remove(session, topic);
+        }
+        subscriptions.clear();
+    }
+
+    private void remove(final WebSocketImpl session, final String topic) {
+        indexOf(topic).computeIfPresent(keyOf(topic), (key, sessions) -> {
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                notifyUnsubscribed(topic);
+                return null;
+            }
+            return sessions;
+        });
+    }
+
+    private void notifySubscribed(final String topic) {
+        final ClusterLink link = clusterLink;
+        if (link != null) {
+            link.subscribed(topic);
+        }
+    }
+
+    private void notifyUnsubscribed(final String topic) {
+        final ClusterLink link = clusterLink;
+        if (link != null) {
+            link.unsubscribed(topic);
+        }
+    }
+
+    @Override
+    public int publish(final String topic, final String message) {
+        validateLength(topic);
+        final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        final PooledByteBuffer pooledBuffer = byteBufferPool.acquire(bytes.length);
+        pooledBuffer.getByteBuffer().put(bytes);
+        return publish(topic, Opcode.TEXT_FRAME, pooledBuffer, true);
+    }
+
+    @Override
+    public int publish(final String topic, final ByteBuffer message) {
+        validateLength(topic);
+        return publish(topic, Opcode.BINARY_FRAME, ByteBufferUtils.readView(message), true);
+    }
+
+    /**
+     * Message from another node, delivered to sessions of this node only
+     */
+    public int publishLocal(final String topic, final Opcode opcode, final ByteBuffer payloadData) {
+        return publish(topic, opcode, payloadData, false);
+    }
+
+    private int publish(final String topic, final Opcode opcode, final ByteBuffer payloadData, final boolean forward) {
+        final PooledByteBuffer pooledBuffer = byteBufferPool.acquire(payloadData.remaining());
+        pooledBuffer.getByteBuffer().put(payloadData.duplicate());
+        return publish(topic, opcode, pooledBuffer, forward);
+    }
+
+    private int publish(final String topic, final Opcode opcode, final PooledByteBuffer pooledBuffer, final boolean forward) {
+        //One frame shared by every subscriber, each queue holds a reference of the payload
+        final FrameData frameData = FrameData.builder()
+                .fin(true)
+                .rsv1(false)
+                .rsv2(false)
+                .rsv3(false)
+                .opcode(opcode)
+                .mask(false)
+                .payloadData(pooledBuffer.getByteBuffer())
+                .pooledBuffer(pooledBuffer)
+                .build();
+        try {
+            final int count;
+            final TopicHistory history = getHistory(topic);
+            if (history == null) {
+                count = deliver(topic, frameData);
+            } else {
+                //Same order in history and in session queues, a resume neither misses nor repeats a message
+                synchronized (history) {
+                    final ByteBuffer header = converter.convertToHeaderByteBuffer(frameData, ByteBuffer.allocate(MAX_HEADER_SIZE)).flip();
+                    history.append(header, ByteBufferUtils.readView(frameData.getPayloadData()));
+                    count = deliver(topic, frameData);
+                }
+            }
+
+            //Local sessions first, then peers with subscribers of the topic
+            final ClusterLink link = clusterLink;
+            if (forward && link != null) {
+                link.forward(topic, opcode, ByteBufferUtils.readView(pooledBuffer.getByteBuffer()));
+            }
+            return count;
+        } finally {
+            frameData.release();
+        }
+    }
+
+    private int deliver(final String topic, final FrameData frameData) {
+        final Map<EventLoop, List<WebSocketImpl>> shards = resolve(topic);
+        int count = 0;
+        for (final Map.Entry<EventLoop, List<WebSocketImpl>> shard : shards.entrySet()) {
+            final List<WebSocketImpl> sessions = shard.getValue();
+            count += sessions.size();
+            dispatch(shard.getKey(), sessions, frameData.retain());
+        }
+        return count;
+    }
+
+    @Override
+    public long getOffset(final String topic) {
+        final TopicHistory history = histories.get(topic);
+        if (history == null) {
+            return 0;
+        }
+        synchronized (history) {
+            return history.getLastSequence();
+        }
+    }
+
+    @Override
+    public Set<String> getSubscriptions(final WebSocket webSocket) {
+        return Collections.unmodifiableSet(((WebSocketImpl) webSocket).getSubscriptions());
+    }
+
+    /**
+     * Replay frames of topic after offset then subscribe, called on the event loop of the session.
+     * Only a topic which has a history (has been published to) and which the {@link ResumeAuthorizer} allows
+     *
+     * @param request upgrade request, for the authorizer
+     * @return false when the resume is not allowed or the history does not have every frame after offset,
+     * the session is not subscribed
+     */
+    public boolean resume(final WebSocketImpl session, final String topic, final long offset, final String request) {
+        final HistoryConfig config = historyConfig;
+        final TopicHistory history = histories.get(topic);
+        if (config == null || history == null) {
+            return false;
+        }
+        final ResumeAuthorizer authorizer = config.getResumeAuthorizer();
+        if (authorizer == null || !authorizer.isAllowed(session, topic, request)) {
+            return false;
+        }
+        synchronized (history) {
+            final boolean resumed = history.replay(offset, frame -> {
+                //Copy, the ring may be overwritten before the frame is written to the socket
+                final PooledByteBuffer pooledBuffer = byteBufferPool.acquire(frame.remaining());
+                pooledBuffer.getByteBuffer().put(frame);
+                final int firstByte = pooledBuffer.getByteBuffer().get(0);
+                //Fin as recorded, else the lanes of the session wait for the rest of a fragmented message
+                final FrameData frameData = FrameData.builder()
+                        .fin((firstByte & 0x80) != 0)
+                        .opcode(Opcode.fromByteValue((byte) (firstByte & 0x0F)))
+                        .payloadData(pooledBuffer.getByteBuffer())
+                        .pooledBuffer(pooledBuffer)
+                        .encoded(true)
+                        .build();
+                session.send(frameData);
+                frameData.release();
+            });
+            if (resumed) {
+                subscribe(session, topic);
+            }
+            return resumed;
+        }
+    }
+
+    private TopicHistory getHistory(final String topic) {
+        final HistoryConfig config = historyConfig;
+        if (config == null || !config.isRecorded(topic)) {
+            return null;
+        }
+        final TopicHistory history = histories.get(topic);
+        if (history != null) {
+            return history;
+        }
+        //Once per topic (or after eviction), creation and eviction one at a time keep the cap
+        synchronized (histories) {
+            TopicHistory created = histories.get(topic);
+            if (created == null) {
+                if (histories.size() >= config.getMaxTopics()) {
+                    evictLeastRecent();
+                }
+                try {
+                    final Long lastSequence = evictedSequences.remove(topic);
+                    created = config.createHistory(topic, (lastSequence == null) ? 0 : lastSequence);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                histories.put(topic, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Drop the history published least recently, a publish which still holds it appends to a history nobody reads
+     */
+    private void evictLeastRecent() {
+        Map.Entry<String, TopicHistory> oldest = null;
+        for (final Map.Entry<String, TopicHistory> entry : histories.entrySet()) {
+            if (oldest == null || entry.getValue().getLastAppendNanos() - oldest.getValue().getLastAppendNanos() < 0) {
+                oldest = entry;
+            }
+        }
+        if (oldest == null) {
+            return;
+        }
+        final TopicHistory history = oldest.getValue();
+        histories.remove(oldest.getKey(), history);
+        if (!history.isMapped()) {
+            synchronized (history) {
+                evictedSequences.put(oldest.getKey(), history.getLastSequence());
+            }
+        }
+    }
+
+    /**
+     * topic is matched by an exact pattern or by "prefix*" of one of its prefixes ("", "a.", "a.b." for "a.b.c")
+     */
+    static boolean matches(final Set<String> patterns, final String topic) {
+        if (patterns.contains(topic)) {
+            return true;
+        }
+        int index = -1;
+        do {
+            if (patterns.contains(topic.substring(0, index + 1) + WILDCARD)) {
+                return true;
+            }
+            index = topic.indexOf(SEPARATOR, index + 1);
+        } while (index >= 0);
+        return false;
+    }
+
+    /**
+     * Subscribers grouped by the event loop which owns them, a session matched twice gets one message
+     */
+    private Map<EventLoop, List<WebSocketImpl>> resolve(final String topic) {
+        final Set<WebSocketImpl> subscribers = new HashSet<>();
+        addAll(subscribers, topics.get(topic));
+        int index = -1;
+        do {
+            addAll(subscribers, prefixes.get(topic.substring(0, index + 1)));
+            index = topic.indexOf(SEPARATOR, index + 1);
+        } while (index >= 0);
+
+        final Map<EventLoop, List<WebSocketImpl>> shards = new HashMap<>();
+        for (final WebSocketImpl session : subscribers) {
+            shards.computeIfAbsent(session.getEventLoop(), key -> new ArrayList<>()).add(session);
+        }
+        return shards;
+    }
+
+    private void addAll(final Set<WebSocketImpl> subscribers, final Set<WebSocketImpl> sessions) {
+        if (sessions != null) {
+            subscribers.addAll(sessions);
+        }
+    }
+
+    /**
+     * Enqueue on the owner thread, frameData holds one reference for this task
+     */
+    private void dispatch(final EventLoop eventLoop, final List<WebSocketImpl> sessions, final FrameData frameData) {
+        final Runnable task = () -> {
+            try {
+                sessions.forEach(session -> session.send(frameData));
+            } finally {
+                frameData.release();
+            }
+        };
+        if (eventLoop == null || eventLoop.inEventLoop()) {
+            task.run();
+        } else {
+            eventLoop.execute(task);
+        }
+    }
+
+    private ConcurrentMap<String, Set<WebSocketImpl>> indexOf(final String topic) {
+        return isWildcard(topic) ? prefixes : topics;
+    }
+
+    private String keyOf(final String topic) {
+        return isWildcard(topic) ? topic.substring(0, topic.length() - WILDCARD.length()) : topic;
+    }
+
+    private boolean isWildcard(final String topic) {
+        return topic.endsWith(WILDCARD);
+    }
+
+    private void validate(final String topic) {
+        if (topic == null || topic.isEmpty()) {
+            throw new IllegalArgumentException("Require topic");
+        }
+        validateLength(topic);
+        final int wildcard = topic.indexOf(WILDCARD);
+        if (wildcard < 0) {
+            return;
+        }
+        final boolean isLastSegment = (wildcard == topic.length() - 1)
+                && (wildcard == 0 || topic.charAt(wildcard - 1) == SEPARATOR);
+        if (!isLastSegment) {
+            throw new IllegalArgumentException("Wildcard must be the last segment of topic \"" + topic + "\"");
+        }
+    }
+
+    /**
+     * Topic goes into envelopes of the cluster link, which have a 2 bytes topic length
+     */
+    private static void validateLength(final String topic) {
+        //At most 3 UTF-8 bytes per char, only a long topic is encoded
+        if (topic.length() > ClusterLink.MAX_TOPIC_LENGTH / 3
+                && topic.getBytes(StandardCharsets.UTF_8).length > ClusterLink.MAX_TOPIC_LENGTH) {
+            throw new IllegalArgumentException("Topic is longer than " + ClusterLink.MAX_TOPIC_LENGTH + " UTF-8 bytes");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Limit of received messages and payload bytes per second, 0 is unlimited.
+ * Burst is up to one second worth of traffic.
+ *
+ * @author jitta
+ */
+public class RateLimit {
+
+    private final long messagesPerSecond;
+
+    private final long bytesPerSecond;
+
+    private RateLimit(final long messagesPerSecond, final long bytesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit{" +
+                "messagesPerSecond=" + messagesPerSecond +
+                ", bytesPerSecond=" + bytesPerSecond +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private long messagesPerSecond;
+
+        private long bytesPerSecond;
+
+        public Builder messagesPerSecond(final long messagesPerSecond) {
+            this.messagesPerSecond = messagesPerSecond;
+            return this;
+        }
+
+        public Builder bytesPerSecond(final long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public RateLimit build() {
+            if (messagesPerSecond < 0 || bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Invalid rate limit");
+            }
+            return new RateLimit(messagesPerSecond, bytesPerSecond);
+        }
+    }
+}
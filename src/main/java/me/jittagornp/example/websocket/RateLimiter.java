@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.TokenBucket;
+
+/**
+ * Token buckets of a {@link RateLimit}, one per session or one for the whole server
+ *
+ * @author jitta
+ */
+class RateLimiter {
+
+    private final TokenBucket messages;
+
+    private final TokenBucket bytes;
+
+    public RateLimiter(final RateLimit rateLimit) {
+        final long messagesPerSecond = rateLimit.getMessagesPerSecond();
+        final long bytesPerSecond = rateLimit.getBytesPerSecond();
+        this.messages = (messagesPerSecond > 0) ? new TokenBucket(messagesPerSecond, messagesPerSecond) : null;
+        this.bytes = (bytesPerSecond > 0) ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+    }
+
+    public void record(final long payloadLength) {
+        if (messages != null) {
+            messages.consume(1);
+        }
+        if (bytes != null) {
+            bytes.consume(payloadLength);
+        }
+    }
+
+    /**
+     * @return 0 when the budget allows to read more
+     */
+    public long nanosUntilAllowed() {
+        final long messagesWait = (messages == null) ? 0 : messages.nanosUntilAvailable();
+        final long bytesWait = (bytes == null) ? 0 : bytes.nanosUntilAvailable();
+        return Math.max(messagesWait, bytesWait);
+    }
+}
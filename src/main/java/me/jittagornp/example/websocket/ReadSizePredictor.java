@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Size of the next read of a session, guessed from the bytes of previous reads.
+ * <p>
+ * Sizes are powers of two (size classes of {@link me.jittagornp.example.util.ByteBufferPool}).
+ * A read which fills the buffer jumps 4 sizes up, bulk transfer reaches the maximum within a few reads.
+ * Two reads in a row which would fit the size below step 1 size down, a burst does not shrink it at once.
+ *
+ * @author jitta
+ */
+class ReadSizePredictor {
+
+    private static final int INCREASE_STEPS = 4;
+
+    private final int minimumShift;
+
+    private final int maximumShift;
+
+    private int shift;
+
+    private boolean decreaseNow;
+
+    public ReadSizePredictor(final int minimum, final int initial, final int maximum) {
+        this.minimumShift = ceilShift(minimum);
+        this.maximumShift = Math.max(minimumShift, ceilShift(maximum));
+        this.shift = Math.min(maximumShift, Math.max(minimumShift, ceilShift(initial)));
+    }
+
+    private static int ceilShift(final int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    }
+
+    public int getReadSize() {
+        return 1 << shift;
+    }
+
+    /**
+     * @param bytesRead of the last read
+     * @param filled    the last read used all free space of the buffer, more may be waiting
+     */
+    public void record(final int bytesRead, final boolean filled) {
+        if (filled || bytesRead >= getReadSize()) {
+            shift = Math.min(maximumShift, shift + INCREASE_STEPS);
+            decreaseNow = false;
+            return;
+        }
+        if (shift > minimumShift && bytesRead <= (1 << (shift - 1))) {
+            if (decreaseNow) {
+                shift--;
+            }
+            decreaseNow = !decreaseNow;
+            return;
+        }
+        decreaseNow = false;
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Decide whether a client may resume a topic of {@link PubSub} from the handshake URL, a resumed topic is subscribed
+ * before onConnect(), so this is the only place the application checks it.
+ *
+ * @author jitta
+ * @see HistoryConfig.Builder#resumeAuthorizer(ResumeAuthorizer)
+ */
+@FunctionalInterface
+public interface ResumeAuthorizer {
+
+    /**
+     * @param request upgrade request as received (request line and headers), e.g. to check a cookie or a token
+     */
+    boolean isAllowed(final WebSocket webSocket, final String topic, final String request);
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.nio.file.Path;
+
+/**
+ * Plain HTTP GET / HEAD requests on the WebSocket port (requests without Sec-WebSocket-Key)
+ * are served from files of a directory.
+ * <p>
+ * Small files are kept in memory (LRU, up to cacheSize bytes), bigger ones are sent from the file
+ * with sendfile (not for TLS). A "name.gz" file beside "name" is sent to clients which accept gzip.
+ *
+ * @author jitta
+ */
+public class StaticFileConfig {
+
+    private static final String DEFAULT_INDEX_FILE = "index.html";
+
+    private static final long DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_CACHED_FILE_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    private final String indexFile;
+
+    private final long cacheSize;
+
+    private final int maxCachedFileSize;
+
+    private StaticFileConfig(final Path directory, final String indexFile, final long cacheSize, final int maxCachedFileSize) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.cacheSize = cacheSize;
+        this.maxCachedFileSize = maxCachedFileSize;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public String getIndexFile() {
+        return indexFile;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public int getMaxCachedFileSize() {
+        return maxCachedFileSize;
+    }
+
+    @Override
+    public String toString() {
+        return "StaticFileConfig{" +
+                "directory=" + directory +
+                ", indexFile='" + indexFile + '\'' +
+                ", cacheSize=" + cacheSize +
+                ", maxCachedFileSize=" + maxCachedFileSize +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Path directory;
+
+        private String indexFile = DEFAULT_INDEX_FILE;
+
+        private long cacheSize = DEFAULT_CACHE_SIZE;
+
+        private int maxCachedFileSize = DEFAULT_MAX_CACHED_FILE_SIZE;
+
+        public Builder directory(final Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * File sent for a request of a directory
+         */
+        public Builder indexFile(final String indexFile) {
+            this.indexFile = indexFile;
+            return this;
+        }
+
+        /**
+         * Bytes of files kept in memory, 0 is no cache
+         */
+        public Builder cacheSize(final long cacheSize) {
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Bigger files are always sent from the file
+         */
+        public Builder maxCachedFileSize(final int maxCachedFileSize) {
+            this.maxCachedFileSize = maxCachedFileSize;
+            return this;
+        }
+
+        public StaticFileConfig build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("Directory is required");
+            }
+            if (cacheSize < 0 || maxCachedFileSize < 0) {
+                throw new IllegalArgumentException("Invalid cache size");
+            }
+            return new StaticFileConfig(directory.toAbsolutePath().normalize(), indexFile, cacheSize, maxCachedFileSize);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds responses of plain HTTP GET / HEAD requests from files of {@link StaticFileConfig#getDirectory()}.
+ * <p>
+ * ETag is the size and last modified time of the file which is sent, a matching If-None-Match gets 304.
+ * Cached files are checked against the file (size, last modified) on every hit. Shared by every event loop.
+ *
+ * @author jitta
+ */
+class StaticFileHandler {
+
+    private static final String GZIP_EXTENSION = ".gz";
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+        CONTENT_TYPES.put("mjs", "text/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+    }
+
+    private final StaticFileConfig config;
+
+    private final ByteBufferPool byteBufferPool;
+
+    //Least recently used first, guarded by itself
+    private final LinkedHashMap<Path, CachedFile> cache;
+
+    private long cachedBytes;
+
+    public StaticFileHandler(final StaticFileConfig config, final ByteBufferPool byteBufferPool) {
+        this.config = config;
+        this.byteBufferPool = byteBufferPool;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @param request ready to read, the whole request head
+     */
+    public StaticFileResponse handle(final ByteBuffer request) throws IOException {
+        //1. Request line and headers
+        final String text = StandardCharsets.ISO_8859_1.decode(request.duplicate()).toString();
+        final String[] lines = text.split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            return status(400, "Bad Request", false);
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int separator = lines[i].indexOf(':');
+            if (separator > 0) {
+                headers.put(lines[i].substring(0, separator).trim().toLowerCase(Locale.ROOT), lines[i].substring(separator + 1).trim());
+            }
+        }
+        final String method = requestLine[0];
+        final boolean keepAlive = "HTTP/1.1".equals(requestLine[2]) && !"close".equalsIgnoreCase(headers.get("connection"));
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return status(405, "Method Not Allowed", keepAlive);
+        }
+
+        //2. File of the path, never outside the directory
+        final Path file;
+        try {
+            file = resolve(requestLine[1]);
+        } catch (final IllegalArgumentException e) {
+            //Malformed escape (e.g. "%zz") or a char no path may have (e.g. "%00", InvalidPathException)
+            return status(400, "Bad Request", keepAlive);
+        }
+        if (file == null) {
+            return status(404, "Not Found", keepAlive);
+        }
+
+        //3. Precompressed variant
+        final String acceptEncoding = headers.getOrDefault("accept-encoding", "");
+        final Path gzipFile = file.resolveSibling(file.getFileName() + GZIP_EXTENSION);
+        final boolean hasGzip = Files.isRegularFile(gzipFile);
+        final boolean isGzip = hasGzip && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+        final Path variant = isGzip ? gzipFile : file;
+
+        final BasicFileAttributes attributes = Files.readAttributes(variant, BasicFileAttributes.class);
+        final long size = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + (isGzip ? "-gz" : "") + "\"";
+
+        //4. Client copy is still valid
+        final String ifNoneMatch = headers.get("if-none-match");
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+            return StaticFileResponse.of(encode(header(304, "Not Modified", keepAlive)
+                    .append("ETag: ").append(etag).append("\r\n")
+                    .append(hasGzip ? "Vary: Accept-Encoding\r\n" : "")
+                    .append("\r\n")), keepAlive);
+        }
+
+        final StringBuilder header = header(200, "OK", keepAlive)
+                .append("Content-Type: ").append(getContentType(file)).append("\r\n")
+                .append("Content-Length: ").append(size).append("\r\n")
+                .append("ETag: ").append(etag).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append(isGzip ? "Content-Encoding: gzip\r\n" : "")
+                .append(hasGzip ? "Vary: Accept-Encoding\r\n" : "")
+                .append("\r\n");
+        if ("HEAD".equals(method)) {
+            return StaticFileResponse.of(encode(header), keepAlive);
+        }
+
+        //5. Body from memory or from the file
+        if (size <= config.getMaxCachedFileSize() && size <= config.getCacheSize()) {
+            final PooledByteBuffer cached = getCached(variant, size, lastModified);
+            try {
+                return StaticFileResponse.ofCached(encode(header), cached, keepAlive);
+            } finally {
+                cached.release();
+            }
+        }
+        final FileChannel fileChannel = FileChannel.open(variant, StandardOpenOption.READ);
+        return StaticFileResponse.ofFile(encode(header), fileChannel, size, keepAlive);
+    }
+
+    private Path resolve(final String target) {
+        final int end = indexOfAny(target, '?', '#');
+        final String rawPath = (end < 0) ? target : target.substring(0, end);
+        if (!rawPath.startsWith("/")) {
+            return null;
+        }
+        //'+' is a plain character in a path, not a space as in a query
+        final String path = URLDecoder.decode(rawPath.replace("+", "%2B"), StandardCharsets.UTF_8);
+        final Path directory = config.getDirectory();
+        Path file = directory.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(directory)) {
+            return null;
+        }
+        if (Files.isDirectory(file)) {
+            file = file.resolve(config.getIndexFile());
+        }
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    private static int indexOfAny(final String text, final char first, final char second) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == first || c == second) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getContentType(final Path file) {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        final String extension = (dot < 0) ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    /**
+     * @return retained buffer of the file content (written state), caller releases it
+     */
+    private PooledByteBuffer getCached(final Path file, final long size, final long lastModified) throws IOException {
+        synchronized (cache) {
+            final CachedFile cachedFile = cache.get(file);
+            if (cachedFile != null && cachedFile.getSize() == size && cachedFile.getLastModified() == lastModified) {
+                return cachedFile.getContent().retain();
+            }
+        }
+
+        //1. Load outside of the lock, other loops keep serving
+        final PooledByteBuffer content = byteBufferPool.acquire((int) size);
+        try (final FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer byteBuffer = content.getByteBuffer();
+            byteBuffer.limit((int) size);
+            while (byteBuffer.hasRemaining()) {
+                if (fileChannel.read(byteBuffer) < 0) {
+                    break;
+                }
+            }
+        } catch (final IOException e) {
+            content.release();
+            throw e;
+        }
+
+        //2. Replace the old content, evict least recently used files over the cache size
+        synchronized (cache) {
+            final CachedFile previous = cache.put(file, new CachedFile(content.retain(), size, lastModified));
+            if (previous != null) {
+                cachedBytes -= previous.getSize();
+                previous.getContent().release();
+            }
+            cachedBytes += size;
+            final Iterator<CachedFile> iterator = cache.values().iterator();
+            while (cachedBytes > config.getCacheSize() && iterator.hasNext()) {
+                final CachedFile eldest = iterator.next();
+                iterator.remove();
+                cachedBytes -= eldest.getSize();
+                //Responses being written keep their own reference
+                eldest.getContent().release();
+            }
+        }
+        return content;
+    }
+
+    private static StaticFileResponse status(final int code, final String reason, final boolean keepAlive) {
+        return StaticFileResponse.of(encode(header(code, reason, keepAlive)
+                .append("Content-Length: 0\r\n")
+                .append("\r\n")), keepAlive);
+    }
+
+    private static StringBuilder header(final int code, final String reason, final boolean keepAlive) {
+        return new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(" ").append(reason).append("\r\n")
+                .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    }
+
+    private static ByteBuffer encode(final StringBuilder header) {
+        return ByteBufferUtils.create(header.toString()).flip();
+    }
+
+    private static class CachedFile {
+
+        private final PooledByteBuffer content;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private CachedFile(final PooledByteBuffer content, final long size, final long lastModified) {
+            this.content = content;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public PooledByteBuffer getContent() {
+            return content;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
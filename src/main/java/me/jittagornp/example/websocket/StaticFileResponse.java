@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * HTTP response being written to a connection, continued on writable when the socket is full.
+ * <p>
+ * Body is a cached file (one gathering write with the header) or a range of a file
+ * (transferTo on plain connections, copy through a pooled chunk on TLS).
+ *
+ * @author jitta
+ */
+class StaticFileResponse {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ByteBuffer[] headerAndBody;
+
+    //Cached file, retained until the response is released
+    private final PooledByteBuffer cachedBody;
+
+    private final FileChannel file;
+
+    private long position;
+
+    private final long end;
+
+    private final boolean keepAlive;
+
+    //TLS copy of the file, bytes not written yet
+    private PooledByteBuffer chunk;
+
+    private StaticFileResponse(final ByteBuffer header, final PooledByteBuffer cachedBody, final FileChannel file, final long length, final boolean keepAlive) {
+        this.headerAndBody = new ByteBuffer[]{
+                header,
+                (cachedBody == null) ? ByteBuffer.allocate(0) : ByteBufferUtils.readView(cachedBody.getByteBuffer())
+        };
+        this.cachedBody = cachedBody;
+        this.file = file;
+        this.end = length;
+        this.keepAlive = keepAlive;
+    }
+
+    public static StaticFileResponse of(final ByteBuffer header, final boolean keepAlive) {
+        return new StaticFileResponse(header, null, null, 0, keepAlive);
+    }
+
+    public static StaticFileResponse ofCached(final ByteBuffer header, final PooledByteBuffer cachedBody, final boolean keepAlive) {
+        return new StaticFileResponse(header, cachedBody.retain(), null, 0, keepAlive);
+    }
+
+    public static StaticFileResponse ofFile(final ByteBuffer header, final FileChannel file, final long length, final boolean keepAlive) {
+        return new StaticFileResponse(header, null, file, length, keepAlive);
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return true when everything is written
+     */
+    public boolean writeTo(final WebSocketChannel channel, final ByteBufferPool byteBufferPool) throws IOException {
+        //1. Header with cached body
+        if (headerAndBody[0].hasRemaining() || headerAndBody[1].hasRemaining()) {
+            channel.write(headerAndBody);
+            if (headerAndBody[0].hasRemaining() || headerAndBody[1].hasRemaining()) {
+                return false;
+            }
+        }
+
+        //2. Body from the file, sendfile : file pages go to the socket without user space copy
+        if (channel instanceof PlainWebSocketChannel) {
+            while (position < end) {
+                final long written = file.transferTo(position, end - position, channel.getSocketChannel());
+                if (written == 0) {
+                    return false;
+                }
+                position += written;
+            }
+            return true;
+        }
+
+        //3. TLS encrypts in user space anyway, copy through a pooled chunk
+        if (chunk == null && position < end) {
+            chunk = byteBufferPool.acquire(CHUNK_SIZE);
+            chunk.getByteBuffer().limit(0);
+        }
+        while (chunk != null) {
+            final ByteBuffer byteBuffer = chunk.getByteBuffer();
+            if (!byteBuffer.hasRemaining()) {
+                if (position >= end) {
+                    break;
+                }
+                byteBuffer.clear().limit((int) Math.min(byteBuffer.capacity(), end - position));
+                while (byteBuffer.hasRemaining()) {
+                    final int read = file.read(byteBuffer, position);
+                    if (read < 0) {
+                        throw new IOException("File is shorter than its length");
+                    }
+                    position += read;
+                }
+                byteBuffer.flip();
+            }
+            channel.write(byteBuffer);
+            if (byteBuffer.hasRemaining()) {
+                return false;
+            }
+        }
+
+        return channel.flush();
+    }
+
+    public void release() {
+        if (cachedBody != null) {
+            cachedBody.release();
+        }
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
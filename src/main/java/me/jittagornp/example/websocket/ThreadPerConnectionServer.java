@@ -0,0 +1,353 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.PooledByteBuffer;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server mode of {@link WebSocketServer#virtualThreads()} : one thread per connection with blocking reads
+ * and writes, instead of event loops.
+ * <p>
+ * Threads are virtual threads on Java 21+ (looked up by reflection, this code compiles for Java 11),
+ * else platform threads, which fit a few thousand connections only.
+ * Frames are decoded with the same {@link FrameHeader} / {@link FrameDataByteBufferConverter} and dispatched to the same handlers.
+ *
+ * @author jitta
+ */
+class ThreadPerConnectionServer {
+
+    //Longest accepted handshake request
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private static final int READ_SIZE = 4 * 1024;
+
+    //Pause of the accept loop after a failed accept, e.g. out of file descriptors
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final int port;
+
+    private final int backlog;
+
+    private final FrameDataByteBufferConverter converter;
+
+    private final MultipleWebSocketHandler handler;
+
+    private final ByteBufferPool byteBufferPool;
+
+    private final Duration closeTimeout;
+
+    //Socket options of the server
+    private final SocketConfigurer socketConfigurer;
+
+    private final ThreadFactory threadFactory;
+
+    private final boolean virtual;
+
+    private final Set<BlockingWebSocket> webSockets;
+
+    private final Set<Thread> threads;
+
+    private ServerSocketChannel serverSocketChannel;
+
+    public ThreadPerConnectionServer(final int port, final int backlog, final FrameDataByteBufferConverter converter,
+                                     final MultipleWebSocketHandler handler, final ByteBufferPool byteBufferPool,
+                                     final Duration closeTimeout, final SocketConfigurer socketConfigurer) {
+        this.port = port;
+        this.backlog = backlog;
+        this.converter = converter;
+        this.handler = handler;
+        this.byteBufferPool = byteBufferPool;
+        this.closeTimeout = closeTimeout;
+        this.socketConfigurer = socketConfigurer;
+        final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+        this.virtual = (virtualThreadFactory != null);
+        this.threadFactory = virtual ? virtualThreadFactory : createPlatformThreadFactory();
+        this.webSockets = ConcurrentHashMap.newKeySet();
+        this.threads = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Thread.ofVirtual().name("websocket-connection-", 0).factory() of Java 21+, null on older JDKs
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderClass.getMethod("name", String.class, long.class);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(name.invoke(builder, "websocket-connection-", 0L));
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory createPlatformThreadFactory() {
+        final AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "websocket-connection-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Accept until stop() or drain(), on the caller thread
+     */
+    public void run() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port), backlog);
+        System.out.println("Thread per connection mode, " + (isVirtual() ? "virtual threads" : "platform threads (virtual threads need Java 21+)"));
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = serverSocketChannel.accept();
+            } catch (final ClosedChannelException e) {
+                //stop() or drain()
+                return;
+            } catch (final IOException e) {
+                //EMFILE and the like : keep accepting once connections are closed
+                e.printStackTrace();
+                try {
+                    Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            try {
+                socketConfigurer.configure(channel);
+            } catch (final IOException e) {
+                e.printStackTrace();
+                channel.close();
+                continue;
+            }
+            final BlockingWebSocket webSocket = new BlockingWebSocket(channel, converter, handler, byteBufferPool, closeTimeout);
+            webSockets.add(webSocket);
+            final Thread thread = threadFactory.newThread(() -> {
+                try {
+                    serve(webSocket);
+                } finally {
+                    webSockets.remove(webSocket);
+                    threads.remove(Thread.currentThread());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    private void serve(final BlockingWebSocket webSocket) {
+        final SocketChannel channel = webSocket.getChannel();
+        boolean handshake = false;
+        PooledByteBuffer readBuffer = null;
+        try {
+            //1. Handshake
+            final ByteBuffer request = readRequest(channel);
+            final String secWebSocketKey = (request == null) ? null : WebSocketServer.getSecWebSocketKey(request);
+            if (secWebSocketKey == null) {
+                return;
+            }
+            final String subprotocol = handler.selectSubprotocol(WebSocketServer.getSecWebSocketProtocols(request));
+            final ByteBuffer response = ByteBuffer.wrap(WebSocketServer.buildHandshakeResponse(secWebSocketKey, subprotocol).getBytes(StandardCharsets.UTF_8));
+            while (response.hasRemaining()) {
+                channel.write(response);
+            }
+            handshake = true;
+            webSocket.setSubprotocol(subprotocol);
+            handler.onConnect(webSocket);
+
+            //2. Frames until both close frames are exchanged or the connection is gone
+            final FrameHeader header = new FrameHeader();
+            readBuffer = byteBufferPool.acquire(READ_SIZE);
+            while (!(webSocket.isCloseFrameReceived() && webSocket.isCloseFrameSent())) {
+                if (channel.read(readBuffer.getByteBuffer()) < 0) {
+                    webSocket.setCloseStatus(CloseStatus.ABNORMAL_CLOSE);
+                    return;
+                }
+                readBuffer = decodeFrames(webSocket, header, readBuffer);
+            }
+        } catch (final WebSocketException e) {
+            handler.onError(webSocket, e);
+            webSocket.sendCloseFrame(e.getStatus());
+        } catch (final IOException | NoSuchAlgorithmException e) {
+            if (!webSocket.isCloseFrameSent()) {
+                //Not a connection closed by close() timeout, stop() or drain()
+                handler.onError(webSocket, e);
+            }
+            webSocket.setCloseStatus(CloseStatus.ABNORMAL_CLOSE);
+        } catch (final RuntimeException e) {
+            //Bad input the decoding does not map to a WebSocketException, only this connection ends
+            handler.onError(webSocket, e);
+            if (handshake) {
+                webSocket.sendCloseFrame(CloseStatus.PROTOCOL_ERROR);
+            }
+        } finally {
+            webSocket.closeChannel();
+            if (readBuffer != null) {
+                readBuffer.release();
+            }
+            if (handshake) {
+                handler.onDisconnect(webSocket, webSocket.getCloseStatus());
+            }
+        }
+    }
+
+    /**
+     * Request head up to the empty line, null when the connection is closed before
+     */
+    private ByteBuffer readRequest(final SocketChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return null;
+            }
+            final String text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+            if (text.contains("\r\n\r\n")) {
+                return buffer.flip();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Dispatch every complete frame, same decoding as the event loop mode
+     *
+     * @return read buffer for the next read, holds the beginning of an incomplete frame
+     */
+    private PooledByteBuffer decodeFrames(final BlockingWebSocket webSocket, final FrameHeader header, final PooledByteBuffer readBuffer) {
+        final ByteBuffer received = readBuffer.getByteBuffer().duplicate().flip();
+        int requiredSize = 0;
+        while (received.hasRemaining()) {
+            final int frameStart = received.position();
+            if (!header.decode(received, converter.getMaxPayloadLength())) {
+                break;
+            }
+            final int frameSize = WebSocketServer.getBufferableFrameSize(header);
+            final int payloadLength = (int) header.getPayloadLength();
+            if (received.remaining() < payloadLength) {
+                requiredSize = frameSize;
+                received.position(frameStart);
+                break;
+            }
+            final ByteBuffer payloadData = received.slice().limit(payloadLength);
+            received.position(received.position() + payloadLength);
+            final FrameData frameData = converter.convertToFrameData(header, payloadData, readBuffer.retain());
+            try {
+                dispatch(webSocket, frameData);
+            } finally {
+                frameData.release();
+            }
+        }
+
+        //Handlers may keep frames of this buffer, move the rest to a new one
+        final int capacity = readBuffer.getByteBuffer().capacity();
+        if (readBuffer.getReferenceCount() == 1 && (requiredSize <= capacity || received.remaining() < capacity)) {
+            readBuffer.getByteBuffer().limit(received.limit()).position(received.position());
+            readBuffer.getByteBuffer().compact();
+            return readBuffer;
+        }
+        final PooledByteBuffer next = byteBufferPool.acquire(WebSocketServer.growReadBufferSize(requiredSize, received.remaining(), READ_SIZE));
+        next.getByteBuffer().put(received);
+        readBuffer.release();
+        return next;
+    }
+
+    private void dispatch(final BlockingWebSocket webSocket, final FrameData frameData) {
+        if (frameData.getOpcode() == Opcode.CONNECTION_CLOSE) {
+            webSocket.setCloseFrameReceived(true);
+            final CloseStatus status = WebSocketServer.convertToCloseStatus(frameData);
+            webSocket.setCloseStatus(status);
+            //Peer starts closing : echo its status
+            webSocket.sendCloseFrame(status);
+            return;
+        }
+        //Data after our close frame is discarded
+        if (webSocket.isCloseFrameSent()) {
+            return;
+        }
+        try {
+            handler.onMessage(webSocket, frameData);
+        } catch (final Throwable e) {
+            handler.onError(webSocket, e);
+        }
+    }
+
+    /**
+     * Stop accepting, every connection is closed without closing handshake
+     */
+    public void stop() {
+        closeServerSocketChannel();
+        webSockets.forEach(BlockingWebSocket::closeChannel);
+    }
+
+    /**
+     * Stop accepting, send close frame to every session and wait until their threads end or timeout
+     */
+    public CompletableFuture<Void> drain(final CloseStatus status, final Duration timeout) {
+        closeServerSocketChannel();
+        final List<BlockingWebSocket> sessions = new ArrayList<>(webSockets);
+        sessions.forEach(webSocket -> webSocket.close(status));
+        return CompletableFuture.runAsync(() -> {
+            final long deadline = System.nanoTime() + timeout.toNanos();
+            for (final Thread thread : new ArrayList<>(threads)) {
+                final long remaining = deadline - System.nanoTime();
+                try {
+                    if (remaining <= 0 || !join(thread, remaining)) {
+                        break;
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            //Drain timeout, drop the rest
+            webSockets.forEach(BlockingWebSocket::closeChannel);
+        });
+    }
+
+    private static boolean join(final Thread thread, final long timeoutNanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.timedJoin(thread, timeoutNanos);
+        return !thread.isAlive();
+    }
+
+    interface SocketConfigurer {
+
+        void configure(final SocketChannel channel) throws IOException;
+    }
+
+    private void closeServerSocketChannel() {
+        try {
+            if (serverSocketChannel != null) {
+                serverSocketChannel.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS settings of a listener (wss://)
+ *
+ * @author jitta
+ */
+public class TlsConfig {
+
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 20_000;
+
+    //24 hours
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 86_400;
+
+    private final SSLContext sslContext;
+
+    private final String[] protocols;
+
+    private final String[] cipherSuites;
+
+    private TlsConfig(final SSLContext sslContext, final String[] protocols, final String[] cipherSuites) {
+        this.sslContext = sslContext;
+        this.protocols = protocols;
+        this.cipherSuites = cipherSuites;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    SSLEngine createEngine() {
+        final SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            engine.setEnabledCipherSuites(cipherSuites);
+        }
+        return engine;
+    }
+
+    /**
+     * SSLContext of a key store file (PKCS12 or JKS) which holds the server certificate and private key
+     */
+    public static SSLContext createSslContext(final Path keyStorePath, final char[] password) throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (final InputStream inputStream = Files.newInputStream(keyStorePath)) {
+            keyStore.load(inputStream, password);
+        }
+
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private SSLContext sslContext;
+
+        private String[] protocols;
+
+        private String[] cipherSuites;
+
+        private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+
+        private int sessionTimeoutSeconds = DEFAULT_SESSION_TIMEOUT_SECONDS;
+
+        public Builder sslContext(final SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        public Builder protocols(final String... protocols) {
+            this.protocols = protocols;
+            return this;
+        }
+
+        public Builder cipherSuites(final String... cipherSuites) {
+            this.cipherSuites = cipherSuites;
+            return this;
+        }
+
+        /**
+         * Number of sessions kept for resumption (abbreviated handshake), 0 is unlimited
+         */
+        public Builder sessionCacheSize(final int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        public Builder sessionTimeoutSeconds(final int sessionTimeoutSeconds) {
+            this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+            return this;
+        }
+
+        public TlsConfig build() {
+            if (sslContext == null) {
+                throw new IllegalArgumentException("Require sslContext");
+            }
+
+            //Session cache is owned by the SSLContext, shared by every engine it creates
+            final SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+
+            return new TlsConfig(sslContext, protocols, cipherSuites);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import me.jittagornp.example.util.PooledByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking TLS over a socket channel with {@link SSLEngine}.
+ * <p>
+ * Handshake is driven by read() and write() from the event loop, encrypted and decrypted bytes
+ * live in pooled buffers which are given back as soon as they are empty,
+ * so an idle connection holds no buffer.
+ *
+ * @author jitta
+ */
+class TlsWebSocketChannel implements WebSocketChannel {
+
+    private static final ByteBuffer[] EMPTY_BUFFERS = {ByteBuffer.allocate(0)};
+
+    private final SocketChannel channel;
+
+    private final SSLEngine engine;
+
+    private final ByteBufferPool byteBufferPool;
+
+    //Encrypted bytes received, not unwrapped yet
+    private PooledByteBuffer netIn;
+
+    //Decrypted bytes, not returned by read() yet
+    private PooledByteBuffer appIn;
+
+    //Encrypted bytes to send
+    private PooledByteBuffer netOut;
+
+    private boolean inboundClosed;
+
+    public TlsWebSocketChannel(final SocketChannel channel, final SSLEngine engine, final ByteBufferPool byteBufferPool) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.byteBufferPool = byteBufferPool;
+        engine.beginHandshake();
+    }
+
+    @Override
+    public SocketChannel getSocketChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean hasBufferedData() {
+        return (appIn != null) && (appIn.getByteBuffer().position() > 0);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        while (true) {
+            //1. Decrypted bytes of previous records first
+            if (hasBufferedData()) {
+                return drainAppIn(dst);
+            }
+
+            if (inboundClosed) {
+                return -1;
+            }
+
+            //2. Encrypted bytes from socket
+            if (netIn == null) {
+                netIn = byteBufferPool.acquire(engine.getSession().getPacketBufferSize());
+            }
+            final int status = channel.read(netIn.getByteBuffer());
+
+            //3. Decrypt, may also progress the handshake
+            final boolean progress = unwrap();
+            if (status < 0) {
+                if (!hasBufferedData()) {
+                    closeInbound();
+                    return -1;
+                }
+            } else if (!progress) {
+                releaseIfEmpty();
+                return 0;
+            }
+        }
+    }
+
+    private boolean unwrap() throws IOException {
+        final ByteBuffer in = netIn.getByteBuffer().flip();
+        boolean progress = false;
+        try {
+            while (in.hasRemaining()) {
+                if (appIn == null) {
+                    appIn = byteBufferPool.acquire(engine.getSession().getApplicationBufferSize());
+                }
+
+                final SSLEngineResult result = engine.unwrap(in, appIn.getByteBuffer());
+                progress |= (result.bytesConsumed() > 0) || (result.bytesProduced() > 0);
+
+                final SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    //Record is not complete, make room when the record is bigger than netIn
+                    if (in.limit() == in.capacity()) {
+                        in.compact();
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        return progress;
+                    }
+                    break;
+                }
+
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    inboundClosed = true;
+                    break;
+                }
+
+                processHandshake();
+            }
+        } finally {
+            if (netIn.getByteBuffer() == in) {
+                in.compact();
+            }
+        }
+        return progress;
+    }
+
+    private void processHandshake() throws IOException {
+        while (true) {
+            final SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+            if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                final SSLEngineResult result = wrap(EMPTY_BUFFERS, 0, 1);
+                flush();
+                if (result.bytesProduced() == 0) {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int drainAppIn(final ByteBuffer dst) {
+        final ByteBuffer decrypted = appIn.getByteBuffer().flip();
+        final int size = Math.min(decrypted.remaining(), dst.remaining());
+        dst.put(decrypted.duplicate().limit(decrypted.position() + size));
+        decrypted.position(decrypted.position() + size);
+        decrypted.compact();
+        releaseIfEmpty();
+        return size;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        //Encrypted bytes of previous write go first, keep at most one pending batch
+        if (!flush()) {
+            return 0;
+        }
+
+        long consumed = 0;
+        boolean progress = true;
+        while (hasRemaining(srcs, offset, length)) {
+            final SSLEngineResult result = wrap(srcs, offset, length);
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                //Handshake in progress (e.g. renegotiation of the peer) : run its tasks once, else wait for the peer
+                if (!progress || isWaitingForRead()) {
+                    break;
+                }
+                processHandshake();
+                progress = false;
+                continue;
+            }
+            progress = true;
+            if (!flush()) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean isWaitingForRead() {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+    }
+
+    private SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        if (netOut == null) {
+            netOut = byteBufferPool.acquire(engine.getSession().getPacketBufferSize());
+        }
+
+        while (true) {
+            final SSLEngineResult result = engine.wrap(srcs, offset, length, netOut.getByteBuffer());
+            final SSLEngineResult.Status status = result.getStatus();
+            if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (status == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                throw new ClosedChannelException();
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+
+        final ByteBuffer out = netOut.getByteBuffer().flip();
+        try {
+            channel.write(out);
+        } finally {
+            out.compact();
+        }
+
+        if (out.position() > 0) {
+            return false;
+        }
+
+        netOut.release();
+        netOut = null;
+        return true;
+    }
+
+    private PooledByteBuffer grow(final PooledByteBuffer pooledBuffer, final int minimumIncrease) {
+        final ByteBuffer byteBuffer = pooledBuffer.getByteBuffer();
+        final PooledByteBuffer bigger = byteBufferPool.acquire(byteBuffer.capacity() + minimumIncrease);
+        bigger.getByteBuffer().put(byteBuffer.flip());
+        pooledBuffer.release();
+        return bigger;
+    }
+
+    private void releaseIfEmpty() {
+        if (netIn != null && netIn.getByteBuffer().position() == 0) {
+            netIn.release();
+            netIn = null;
+        }
+        if (appIn != null && appIn.getByteBuffer().position() == 0) {
+            appIn.release();
+            appIn = null;
+        }
+    }
+
+    private void closeInbound() {
+        try {
+            engine.closeInbound();
+        } catch (final SSLException e) {
+            //Peer closed without close_notify
+        }
+        inboundClosed = true;
+    }
+
+    private static boolean hasRemaining(final ByteBuffer[] srcs, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            //Best effort close_notify
+            engine.closeOutbound();
+            if (channel.isOpen()) {
+                wrap(EMPTY_BUFFERS, 0, 1);
+                flush();
+            }
+        } catch (final IOException e) {
+            //Connection is going away anyway
+        } finally {
+            channel.close();
+            release();
+        }
+    }
+
+    private void release() {
+        if (netIn != null) {
+            netIn.release();
+            netIn = null;
+        }
+        if (appIn != null) {
+            appIn.release();
+            appIn = null;
+        }
+        if (netOut != null) {
+            netOut.release();
+            netOut = null;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Bounded ring of recent encoded frames of a topic, numbered by sequence (offset) from 1.
+ * <p>
+ * The ring lives in a heap buffer, or in a memory mapped file which is loaded again after restart.
+ * Oldest frames are overwritten when there is no room. Not thread safe, callers lock the history.
+ *
+ * <pre>
+ * Header : | magic (4) | capacity (4) | head (8) | tail (8) | next sequence (8) | count (8) |
+ * Entry  : | frame length (4) | sequence (8) | frame |
+ * </pre>
+ * An entry never crosses the end of the ring, length -1 (or no room for an entry header) means continue at 0.
+ *
+ * @author jitta
+ */
+class TopicHistory {
+
+    private static final int MAGIC = 0x57534831;
+
+    private static final int HEADER_SIZE = 40;
+
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    private static final int WRAP = -1;
+
+    private final ByteBuffer buffer;
+
+    //Memory mapped file, else heap
+    private final boolean mapped;
+
+    //Bytes of the ring, header excluded
+    private final int capacity;
+
+    //Oldest first, rebuilt from the buffer on load
+    private final ArrayDeque<Entry> entries;
+
+    private int tail;
+
+    private long nextSequence;
+
+    //System.nanoTime() of the last append, or of creation
+    private volatile long lastAppendNanos;
+
+    private TopicHistory(final ByteBuffer buffer, final boolean mapped, final int capacity) {
+        this.buffer = buffer;
+        this.mapped = mapped;
+        this.capacity = capacity;
+        this.entries = new ArrayDeque<>();
+        this.nextSequence = 1;
+        this.lastAppendNanos = System.nanoTime();
+    }
+
+    /**
+     * @param lastSequence offset to continue from, e.g. of an evicted history of the topic,
+     *                     so offsets clients have seen before are never given to other messages
+     */
+    public static TopicHistory inMemory(final int capacity, final long lastSequence) {
+        //Heap, an evicted history is freed by the next GC instead of holding direct memory until its cleaner runs
+        final TopicHistory history = new TopicHistory(ByteBuffer.allocate(HEADER_SIZE + capacity), false, capacity);
+        history.nextSequence = lastSequence + 1;
+        history.writeHeader();
+        return history;
+    }
+
+    /**
+     * Open or create the file, a file of another capacity or format starts empty
+     */
+    public static TopicHistory mapped(final Path file, final int capacity) throws IOException {
+        final long size = HEADER_SIZE + (long) capacity;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final boolean exists = channel.size() == size;
+            if (!exists) {
+                channel.truncate(0);
+            }
+            //Mapping stays valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            final TopicHistory history = new TopicHistory(buffer, true, capacity);
+            if (!exists || !history.load()) {
+                history.reset();
+            }
+            return history;
+        }
+    }
+
+    private boolean load() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != capacity) {
+            return false;
+        }
+        int position = (int) buffer.getLong(8);
+        tail = (int) buffer.getLong(16);
+        nextSequence = buffer.getLong(24);
+        final long count = buffer.getLong(32);
+        for (long i = 0; i < count; i++) {
+            if (isWrap(position)) {
+                position = 0;
+            }
+            final int length = buffer.getInt(HEADER_SIZE + position);
+            if (length < 0 || position + ENTRY_HEADER_SIZE + length > capacity) {
+                entries.clear();
+                return false;
+            }
+            entries.addLast(new Entry(buffer.getLong(HEADER_SIZE + position + 4), position, length));
+            position += ENTRY_HEADER_SIZE + length;
+        }
+        return true;
+    }
+
+    private void reset() {
+        entries.clear();
+        tail = 0;
+        nextSequence = 1;
+        writeHeader();
+    }
+
+    private boolean isWrap(final int position) {
+        return (position + ENTRY_HEADER_SIZE > capacity) || (buffer.getInt(HEADER_SIZE + position) == WRAP);
+    }
+
+    /**
+     * Offset of the last appended frame, 0 when none
+     */
+    public long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    public long getLastAppendNanos() {
+        return lastAppendNanos;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Record a frame of header and payload
+     *
+     * @return sequence of the frame
+     */
+    public long append(final ByteBuffer header, final ByteBuffer payload) {
+        final int length = header.remaining() + payload.remaining();
+        final int size = ENTRY_HEADER_SIZE + length;
+        final long sequence = nextSequence++;
+        lastAppendNanos = System.nanoTime();
+
+        //1. Frame bigger than the ring, resume across it is not possible anymore
+        if (size > capacity) {
+            entries.clear();
+            tail = 0;
+            writeHeader();
+            return sequence;
+        }
+
+        //2. No room before the end, continue at 0 and drop the oldest frames which are after tail
+        if (tail + size > capacity) {
+            while (!entries.isEmpty() && entries.peekFirst().getPosition() >= tail) {
+                entries.pollFirst();
+            }
+            if (tail + 4 <= capacity) {
+                buffer.putInt(HEADER_SIZE + tail, WRAP);
+            }
+            tail = 0;
+        }
+
+        //3. Drop the oldest frames which would be overwritten
+        while (!entries.isEmpty()) {
+            final int position = entries.peekFirst().getPosition();
+            if (position < tail || position >= tail + size) {
+                break;
+            }
+            entries.pollFirst();
+        }
+
+        //4. Write the entry
+        final ByteBuffer entry = buffer.duplicate();
+        entry.position(HEADER_SIZE + tail);
+        entry.putInt(length)
+                .putLong(sequence)
+                .put(header.duplicate())
+                .put(payload.duplicate());
+        entries.addLast(new Entry(sequence, tail, length));
+        tail += size;
+        writeHeader();
+        return sequence;
+    }
+
+    /**
+     * Frames after offset, oldest first, as views of the ring which are valid until the next append
+     *
+     * @return false when some frames after offset are not kept anymore (or offset is unknown), nothing is replayed
+     */
+    public boolean replay(final long offset, final Consumer<ByteBuffer> consumer) {
+        final long last = getLastSequence();
+        if (offset == last) {
+            return true;
+        }
+        if (offset > last || entries.isEmpty() || entries.peekFirst().getSequence() > offset + 1) {
+            return false;
+        }
+        for (final Entry entry : entries) {
+            if (entry.getSequence() > offset) {
+                final int start = HEADER_SIZE + entry.getPosition() + ENTRY_HEADER_SIZE;
+                final ByteBuffer frame = buffer.duplicate();
+                frame.limit(start + entry.getLength()).position(start);
+                consumer.accept(frame.slice());
+            }
+        }
+        return true;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC)
+                .putInt(4, capacity)
+                .putLong(8, entries.isEmpty() ? tail : entries.peekFirst().getPosition())
+                .putLong(16, tail)
+                .putLong(24, nextSequence)
+                .putLong(32, entries.size());
+    }
+
+    private static class Entry {
+
+        private final long sequence;
+
+        private final int position;
+
+        private final int length;
+
+        private Entry(final long sequence, final int position, final int length) {
+            this.sequence = sequence;
+            this.position = position;
+            this.length = length;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
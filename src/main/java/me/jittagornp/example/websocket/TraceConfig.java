@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.time.Duration;
+
+/**
+ * Per message latency tracing : socket read, decode, handler, queue and socket write.
+ * <p>
+ * One in sampleRate messages is kept in a ring of the last ringSize traces.
+ * With slowThreshold every message is timed and the ones slower than it are logged (and kept) too.
+ *
+ * @author jitta
+ */
+public class TraceConfig {
+
+    private static final int DEFAULT_RING_SIZE = 1024;
+
+    private final int sampleRate;
+
+    private final Duration slowThreshold;
+
+    private final int ringSize;
+
+    private TraceConfig(final int sampleRate, final Duration slowThreshold, final int ringSize) {
+        this.sampleRate = sampleRate;
+        this.slowThreshold = slowThreshold;
+        this.ringSize = ringSize;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public Duration getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceConfig{" +
+                "sampleRate=" + sampleRate +
+                ", slowThreshold=" + slowThreshold +
+                ", ringSize=" + ringSize +
+                '}';
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int sampleRate;
+
+        private Duration slowThreshold;
+
+        private int ringSize = DEFAULT_RING_SIZE;
+
+        /**
+         * Trace one in sampleRate messages, 0 is no sampling
+         */
+        public Builder sampleRate(final int sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Log messages slower than this from read to written, null is no slow message log
+         */
+        public Builder slowThreshold(final Duration slowThreshold) {
+            this.slowThreshold = slowThreshold;
+            return this;
+        }
+
+        /**
+         * Number of recent traces kept, rounded up to a power of 2
+         */
+        public Builder ringSize(final int ringSize) {
+            this.ringSize = ringSize;
+            return this;
+        }
+
+        public TraceConfig build() {
+            if (sampleRate < 0 || ringSize <= 0) {
+                throw new IllegalArgumentException("Invalid trace config");
+            }
+            return new TraceConfig(sampleRate, slowThreshold, ringSize);
+        }
+    }
+}
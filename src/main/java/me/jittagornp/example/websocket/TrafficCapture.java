@@ -0,0 +1,279 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writer of {@link CaptureConfig}, event loops queue records and the capture thread appends them to the file.
+ *
+ * <pre>
+ * File header : | magic (4) | version (4) | start time, epoch millis (8) |
+ * Record      : | record size (4) | time since start, nanos (8) | session (4) | type (1) | frame byte (1) | payload |
+ * </pre>
+ * Frame byte is FIN, RSV1-3 and opcode as the first byte of the frame. The file is trimmed after the last record
+ * on close, without close (crash) record size 0 (zeros of the last segment) is the end.
+ *
+ * @author jitta
+ */
+class TrafficCapture implements Runnable {
+
+    static final int MAGIC = 0x57534331;
+
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_SIZE = 16;
+
+    static final int RECORD_HEADER_SIZE = 18;
+
+    static final byte TYPE_CONNECT = 0;
+
+    static final byte TYPE_FRAME = 1;
+
+    static final byte TYPE_DISCONNECT = 2;
+
+    private static final int BATCH_SIZE = 256;
+
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    //Wakes the capture thread up on close
+    private static final Record END = new Record(0, 0, (byte) 0, (byte) 0, EMPTY_BUFFER, null);
+
+    private final CaptureConfig config;
+
+    private final BlockingQueue<Record> queue;
+
+    private final long startNanos;
+
+    private final AtomicInteger sessionCounter;
+
+    private final AtomicLong droppedCount;
+
+    private FileChannel fileChannel;
+
+    private MappedByteBuffer segment;
+
+    //File offset of segment
+    private long segmentStart;
+
+    private long recordCount;
+
+    private volatile boolean closed;
+
+    private Thread thread;
+
+    public TrafficCapture(final CaptureConfig config) {
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.getQueueSize());
+        this.startNanos = System.nanoTime();
+        this.sessionCounter = new AtomicInteger();
+        this.droppedCount = new AtomicLong();
+    }
+
+    /**
+     * Create the file and start the capture thread
+     */
+    public void start() throws IOException {
+        fileChannel = FileChannel.open(config.getFile(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0, config.getSegmentSize());
+        segment.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(System.currentTimeMillis());
+        thread = new Thread(this, "websocket-capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Capture number of a new session, compact replacement of the session id in records
+     */
+    public int nextSession() {
+        return sessionCounter.incrementAndGet();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public void recordConnect(final int session) {
+        offer(new Record(System.nanoTime() - startNanos, session, TYPE_CONNECT, (byte) 0, EMPTY_BUFFER, null));
+    }
+
+    public void recordDisconnect(final int session) {
+        offer(new Record(System.nanoTime() - startNanos, session, TYPE_DISCONNECT, (byte) 0, EMPTY_BUFFER, null));
+    }
+
+    /**
+     * Called on the event loop before handlers, the frame is retained until written
+     */
+    public void recordFrame(final int session, final FrameData frameData) {
+        final byte frameByte = (byte) ((frameData.isFin() ? 0b10000000 : 0)
+                | (frameData.isRSV1() ? 0b01000000 : 0)
+                | (frameData.isRSV2() ? 0b00100000 : 0)
+                | (frameData.isRSV3() ? 0b00010000 : 0)
+                | frameData.getOpcode().getByteValue());
+        //View of the payload now, handlers may move the position of theirs
+        final ByteBuffer payload = ByteBufferUtils.readView(frameData.getPayloadData());
+        offer(new Record(System.nanoTime() - startNanos, session, TYPE_FRAME, frameByte, payload, frameData.retain()));
+    }
+
+    private void offer(final Record record) {
+        if (closed || !queue.offer(record)) {
+            droppedCount.incrementAndGet();
+            record.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        final List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        //Records of batch before it are written (and released)
+        int written = 0;
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (final Record record : batch) {
+                    if (record == END) {
+                        return;
+                    }
+                    written++;
+                    write(record);
+                }
+                batch.clear();
+                written = 0;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        } finally {
+            batch.subList(written, batch.size()).forEach(Record::release);
+            finish();
+        }
+    }
+
+    private void write(final Record record) throws IOException {
+        try {
+            final int size = RECORD_HEADER_SIZE + record.getPayload().remaining();
+            if (segment.remaining() < size) {
+                //Next segment starts at this record, the rest of the current one stays zero until truncate
+                map(segmentStart + segment.position(), Math.max(config.getSegmentSize(), size));
+            }
+            segment.putInt(size)
+                    .putLong(record.getTimeNanos())
+                    .putInt(record.getSession())
+                    .put(record.getType())
+                    .put(record.getFrameByte())
+                    .put(record.getPayload());
+            recordCount++;
+        } finally {
+            record.release();
+        }
+    }
+
+    private void map(final long start, final int size) throws IOException {
+        segmentStart = start;
+        segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+    }
+
+    /**
+     * Write queued records, trim the file after the last one. Called when the server stops
+     */
+    public void close() {
+        closed = true;
+        if (thread == null) {
+            return;
+        }
+        //Records offered before closed are written first, END waits for room
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish() {
+        //Records after a write error, no more are queued
+        closed = true;
+        Record record;
+        while ((record = queue.poll()) != null) {
+            record.release();
+        }
+        try {
+            segment.force();
+            fileChannel.truncate(segmentStart + segment.position());
+            fileChannel.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Capture " + config.getFile() + " closed, " + recordCount + " records, " + droppedCount.get() + " dropped");
+    }
+
+    private static class Record {
+
+        private final long timeNanos;
+
+        private final int session;
+
+        private final byte type;
+
+        private final byte frameByte;
+
+        private final ByteBuffer payload;
+
+        //Owner of the payload, released when written, null for connect and disconnect
+        private final FrameData frameData;
+
+        private Record(final long timeNanos, final int session, final byte type, final byte frameByte,
+                       final ByteBuffer payload, final FrameData frameData) {
+            this.timeNanos = timeNanos;
+            this.session = session;
+            this.type = type;
+            this.frameByte = frameByte;
+            this.payload = payload;
+            this.frameData = frameData;
+        }
+
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public int getSession() {
+            return session;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public byte getFrameByte() {
+            return frameByte;
+        }
+
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        public void release() {
+            if (frameData != null) {
+                frameData.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ServiceLoader;
+
+/**
+ * Source of selectors and server channels of event loops.
+ * <p>
+ * {@link #nio()} (JDK selector) is the default and works everywhere. A native transport (e.g. edge triggered epoll
+ * through a custom {@link java.nio.channels.spi.SelectorProvider}) is registered as a {@link ServiceLoader} service
+ * of this interface and picked by {@link #preferNative()} when it is available on the running platform.
+ * <p>
+ * Selection keys have no edge triggered flag, a transport tells it with {@link #isEdgeTriggered()} and the server
+ * changes how it consumes readiness, see there.
+ *
+ * @author jitta
+ */
+public interface Transport {
+
+    String getName();
+
+    /**
+     * Supported by the running OS / JDK
+     */
+    boolean isAvailable();
+
+    Selector openSelector() throws IOException;
+
+    /**
+     * Readiness of a key is reported once per change (EPOLLET), not while it lasts. The server then reads and accepts
+     * until the channel has nothing more (read returns 0, accept returns null) or reading is paused, and writes until
+     * the socket is full, as an unread rest would never be reported again. Turning an interest on (interestOps)
+     * must report a readiness which is already there, as EPOLL_CTL_MOD does.
+     * <p>
+     * Default is level triggered, one read per readiness.
+     */
+    default boolean isEdgeTriggered() {
+        return false;
+    }
+
+    /**
+     * Accepted channels must be registrable on selectors of this transport
+     */
+    ServerSocketChannel openServerSocketChannel() throws IOException;
+
+    static Transport nio() {
+        return NioTransport.INSTANCE;
+    }
+
+    /**
+     * First available native transport found on the class path, else {@link #nio()}
+     */
+    static Transport preferNative() {
+        for (final Transport transport : ServiceLoader.load(Transport.class)) {
+            if (transport.isAvailable()) {
+                return transport;
+            }
+        }
+        return nio();
+    }
+}
@@ -4,6 +4,7 @@
 package me.jittagornp.example.websocket;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author jitta
@@ -12,9 +13,55 @@ public interface WebSocket {
 
     String getSessionId();
 
+    /**
+     * Sec-WebSocket-Protocol selected in the handshake, null when none
+     */
+    String getSubprotocol();
+
     void send(final String message);
 
     void send(final ByteBuffer message);
 
     void send(final FrameData message);
+
+    /**
+     * Latest value wins : replaces a message of the same key which is still waiting in the outbound queue, in its place.
+     * A slow client gets the latest value per key instead of every update, the queue is bounded by the number of keys
+     */
+    void sendConflated(final String key, final String message);
+
+    void sendConflated(final String key, final ByteBuffer message);
+
+    void sendConflated(final String key, final FrameData message);
+
+    /**
+     * Written before messages of send() which are not written yet, e.g. latency sensitive messages beside a bulk transfer.
+     * Ping and pong frames of any send method always go first, between fragments too
+     */
+    void sendPriority(final String message);
+
+    void sendPriority(final ByteBuffer message);
+
+    void sendPriority(final FrameData message);
+
+    /**
+     * Same as send(), completed on the I/O thread when the frame is written to the socket (all of it),
+     * or exceptionally when it is never sent (connection closed, close frame sent before).
+     * The ByteBuffer message may be reused, a pooled payload released, after completion
+     */
+    CompletionStage<Void> sendAsync(final String message);
+
+    CompletionStage<Void> sendAsync(final ByteBuffer message);
+
+    CompletionStage<Void> sendAsync(final FrameData message);
+
+    /**
+     * Message of a subprotocol, encoded by the codec straight into a pooled frame payload
+     */
+    <T> void send(final MessageCodec<T> codec, final T message);
+
+    /**
+     * Start closing handshake, pending messages are sent before the close frame
+     */
+    void close(final CloseStatus status);
 }
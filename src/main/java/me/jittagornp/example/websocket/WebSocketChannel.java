@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Byte stream of a connection, plain or encrypted
+ *
+ * @author jitta
+ */
+interface WebSocketChannel extends ByteChannel, GatheringByteChannel {
+
+    SocketChannel getSocketChannel();
+
+    /**
+     * @return true when read() can return more bytes without the socket being readable
+     */
+    boolean hasBufferedData();
+
+    /**
+     * Write bytes kept by the channel itself (e.g. encrypted records)
+     *
+     * @return true when nothing is pending
+     */
+    boolean flush() throws IOException;
+
+    /**
+     * A write can not progress until read() has processed bytes of the peer (e.g. TLS handshake messages),
+     * writable events are useless until then
+     */
+    default boolean isWaitingForRead() {
+        return false;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+/**
+ * Protocol level failure, carry the close status that should be sent to the peer
+ *
+ * @author jitta
+ */
+public class WebSocketException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CloseStatus status;
+
+    public WebSocketException(final CloseStatus status, final String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public CloseStatus getStatus() {
+        return status;
+    }
+}
@@ -3,24 +3,146 @@
  */
 package me.jittagornp.example.websocket;
 
+import me.jittagornp.example.util.ByteBufferPool;
 import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+import me.jittagornp.example.websocket.jfr.FrameEncodedEvent;
+import me.jittagornp.example.websocket.jfr.HandshakeEvent;
+import me.jittagornp.example.websocket.jfr.QueueOverflowEvent;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 
 /**
  * @author jitta
  */
 class WebSocketImpl implements WebSocket {
 
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    //1 byte + 9 bytes payload length
+    private static final int MAX_HEADER_SIZE = 10;
+
     private String sessionId;
 
+    //Selected in the handshake, null when none
+    private String subprotocol;
+
     private boolean handshake;
 
-    private final Queue<FrameData> messageQueue;
+    private volatile State state;
+
+    //Sent or received, reported to onDisconnect
+    private CloseStatus closeStatus;
+
+    //No more frame is sent after the close frame
+    private boolean closeFrameQueued;
+
+    private boolean closeFrameReceived;
+
+    //Run on the event loop, start closing handshake from this side
+    private BiConsumer<WebSocketImpl, CloseStatus> closeHandler;
+
+    //Topics of PubSub, removed on disconnect
+    private final Set<String> subscriptions;
+
+    //Lanes in write order : control frames (ping, pong), priority messages, messages
+    private final Queue<QueuedFrame> controlQueue;
+
+    private final Queue<QueuedFrame> priorityQueue;
+
+    private final Queue<QueuedFrame> messageQueue;
+
+    //Lane of a fragmented message being sent (last data frame written is not fin), only control frames may interleave
+    private Queue<QueuedFrame> fragmentedLane;
+
+    //Queued frames of sendConflated() by key, replaced in place until they are being written
+    private final Map<String, QueuedFrame> conflatedFrames;
+
+    private final FrameHeader frameHeader;
+
+    //Received bytes of a frame which is not complete yet, null between reads when there is none
+    private PooledByteBuffer readBuffer;
+
+    private ReadSizePredictor readSizePredictor;
+
+    //Frame being dispatched to handlers
+    private volatile FrameData inboundFrame;
+
+    //Header and payload of writingFrame, survive partial writes
+    private final ByteBuffer headerBuffer;
+
+    private final ByteBuffer[] writeBuffers;
+
+    //Head of writingLane being written, null when the next frame is not chosen yet
+    private QueuedFrame writingFrame;
+
+    private Queue<QueuedFrame> writingLane;
+
+    //Completions of sendAsync() frames written to the channel, completed once the channel is flushed (TLS may hold them)
+    private final List<CompletableFuture<Void>> writtenCompletions;
+
+    private SelectionKey selectionKey;
+
+    private WebSocketChannel channel;
+
+    private EventLoop eventLoop;
+
+    //Payloads of codec messages
+    private ByteBufferPool byteBufferPool;
+
+    //Per session limit, null is unlimited
+    private RateLimiter rateLimiter;
+
+    //null is tracing off
+    private MessageTracer tracer;
+
+    //Message being dispatched to handlers, the first frame they send is traced with it
+    private MessageTrace dispatchTrace;
+
+    //Traced until writeTraceFrame is written
+    private MessageTrace writeTrace;
+
+    private FrameData writeTraceFrame;
+
+    //Recording of handshake duration, null when JFR event is disabled
+    private HandshakeEvent handshakeEvent;
+
+    private int queueHighWaterMark = Integer.MAX_VALUE;
+
+    //Plain HTTP response being written, the connection is not a WebSocket
+    private StaticFileResponse staticFileResponse;
+
+    //Counted by admission control until the upgrade request is read
+    private boolean pendingHandshake;
+
+    //Number of the session in the traffic capture, 0 when capture is off
+    private int captureSession;
+
+    //Set by the watchdog when a handler of this session stalled the event loop
+    private volatile Executor quarantineExecutor;
+
+    //Last handler task on quarantineExecutor, next one runs after it
+    private CompletableFuture<Void> quarantineTail;
 
     public WebSocketImpl() {
+        this.state = State.OPEN;
+        this.subscriptions = ConcurrentHashMap.newKeySet();
+        this.controlQueue = new ArrayDeque<>();
+        this.priorityQueue = new ArrayDeque<>();
         this.messageQueue = new LinkedList<>();
+        this.conflatedFrames = new HashMap<>();
         this.sessionId = UUID.randomUUID().toString();
+        this.frameHeader = new FrameHeader();
+        this.headerBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        this.writeBuffers = new ByteBuffer[2];
+        this.writtenCompletions = new ArrayList<>();
     }
 
     @Override
@@ -28,6 +150,15 @@ class WebSocketImpl implements WebSocket {
         return sessionId;
     }
 
+    @Override
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    public void setSubprotocol(final String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
     public boolean isHandshake() {
         return handshake;
     }
@@ -36,49 +167,651 @@ class WebSocketImpl implements WebSocket {
         this.handshake = handshake;
     }
 
-    public Queue<FrameData> getMessageQueue() {
-        return messageQueue;
+    public State getState() {
+        return state;
+    }
+
+    public void setState(final State state) {
+        this.state = state;
+    }
+
+    public CloseStatus getCloseStatus() {
+        return closeStatus;
+    }
+
+    public void setCloseStatus(final CloseStatus closeStatus) {
+        this.closeStatus = closeStatus;
+    }
+
+    public boolean isCloseFrameQueued() {
+        return closeFrameQueued;
+    }
+
+    public boolean isCloseFrameReceived() {
+        return closeFrameReceived;
+    }
+
+    public void setCloseFrameReceived(final boolean closeFrameReceived) {
+        this.closeFrameReceived = closeFrameReceived;
+    }
+
+    public void setCloseHandler(final BiConsumer<WebSocketImpl, CloseStatus> closeHandler) {
+        this.closeHandler = closeHandler;
+    }
+
+    public Set<String> getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * A frame can be written now
+     */
+    public boolean hasQueuedMessages() {
+        return writingFrame != null || nextLane() != null;
+    }
+
+    /**
+     * Control frames go between any frames (RFC6455 section 5.4), data frames do not go inside a fragmented message
+     */
+    private Queue<QueuedFrame> nextLane() {
+        if (!controlQueue.isEmpty()) {
+            return controlQueue;
+        }
+        if (fragmentedLane != null) {
+            return fragmentedLane.isEmpty() ? null : fragmentedLane;
+        }
+        if (!priorityQueue.isEmpty()) {
+            return priorityQueue;
+        }
+        return messageQueue.isEmpty() ? null : messageQueue;
+    }
+
+    public WebSocketChannel getChannel() {
+        return channel;
+    }
+
+    public void setChannel(final WebSocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public void setSelectionKey(final SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    public void setEventLoop(final EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    public void setByteBufferPool(final ByteBufferPool byteBufferPool) {
+        this.byteBufferPool = byteBufferPool;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public void setTracer(final MessageTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public HandshakeEvent getHandshakeEvent() {
+        return handshakeEvent;
+    }
+
+    public void setHandshakeEvent(final HandshakeEvent handshakeEvent) {
+        this.handshakeEvent = handshakeEvent;
+    }
+
+    public void setQueueHighWaterMark(final int queueHighWaterMark) {
+        this.queueHighWaterMark = queueHighWaterMark;
+    }
+
+    public void setDispatchTrace(final MessageTrace dispatchTrace) {
+        this.dispatchTrace = dispatchTrace;
+    }
+
+    public boolean hasPendingTrace() {
+        return writeTrace != null;
+    }
+
+    public boolean isWaitingForWrite(final MessageTrace trace) {
+        return writeTrace == trace;
+    }
+
+    public void cancelSelectionKey() {
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+    }
+
+    public void setWriteInterest(final boolean writeInterest) {
+        setInterest(SelectionKey.OP_WRITE, writeInterest);
+    }
+
+    public void setReadInterest(final boolean readInterest) {
+        setInterest(SelectionKey.OP_READ, readInterest);
+    }
+
+    public boolean isReadInterest() {
+        return selectionKey != null && selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    private void setInterest(final int op, final boolean interest) {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        final int ops = selectionKey.interestOps();
+        final int newOps = interest ? (ops | op) : (ops & ~op);
+        if (ops != newOps) {
+            selectionKey.interestOps(newOps);
+        }
+    }
+
+    public FrameHeader getFrameHeader() {
+        return frameHeader;
+    }
+
+    public PooledByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public void setReadBuffer(final PooledByteBuffer readBuffer) {
+        this.readBuffer = readBuffer;
+    }
+
+    public ReadSizePredictor getReadSizePredictor() {
+        return readSizePredictor;
+    }
+
+    public void setReadSizePredictor(final ReadSizePredictor readSizePredictor) {
+        this.readSizePredictor = readSizePredictor;
+    }
+
+    public void setInboundFrame(final FrameData inboundFrame) {
+        this.inboundFrame = inboundFrame;
+    }
+
+    /**
+     * Only when it is still frameData, a quarantined session sets its own frames from another thread
+     */
+    public void clearInboundFrame(final FrameData frameData) {
+        if (inboundFrame == frameData) {
+            inboundFrame = null;
+        }
+    }
+
+    public StaticFileResponse getStaticFileResponse() {
+        return staticFileResponse;
+    }
+
+    public void setStaticFileResponse(final StaticFileResponse staticFileResponse) {
+        this.staticFileResponse = staticFileResponse;
+    }
+
+    public boolean isPendingHandshake() {
+        return pendingHandshake;
+    }
+
+    public void setPendingHandshake(final boolean pendingHandshake) {
+        this.pendingHandshake = pendingHandshake;
+    }
+
+    public int getCaptureSession() {
+        return captureSession;
+    }
+
+    public void setCaptureSession(final int captureSession) {
+        this.captureSession = captureSession;
+    }
+
+    public boolean isQuarantined() {
+        return quarantineExecutor != null;
+    }
+
+    public void quarantine(final Executor quarantineExecutor) {
+        this.quarantineExecutor = quarantineExecutor;
+    }
+
+    /**
+     * Run on the quarantine executor after previous tasks of this session, called on the event loop
+     */
+    public void runQuarantined(final Runnable task) {
+        final CompletableFuture<Void> previous = (quarantineTail == null) ? CompletableFuture.completedFuture(null) : quarantineTail;
+        //A failed task does not stop the next ones
+        quarantineTail = previous.handle((result, e) -> (Void) null).thenRunAsync(task, quarantineExecutor);
+    }
+
+    /**
+     * Buffers to write for the head of the next lane, prepared once per frame
+     */
+    public ByteBuffer[] getWriteBuffers(final FrameDataByteBufferConverter converter) {
+        if (writingFrame == null) {
+            writingLane = nextLane();
+            writingFrame = writingLane.peek();
+            final FrameData frameData = writingFrame.getFrameData();
+            if (frameData.isEncoded()) {
+                writeBuffers[0] = ByteBufferUtils.readView(frameData.getPayloadData());
+                writeBuffers[1] = EMPTY_BUFFER;
+            } else if (frameData.isMask()) {
+                writeBuffers[0] = converter.convertToByteBuffer(frameData).flip();
+                writeBuffers[1] = EMPTY_BUFFER;
+            } else {
+                //Header only, payload is written from its own buffer without copy
+                writeBuffers[0] = converter.convertToHeaderByteBuffer(frameData, headerBuffer.clear()).flip();
+                writeBuffers[1] = ByteBufferUtils.readView(frameData.getPayloadData());
+            }
+            if (writeTraceFrame == frameData) {
+                writeTrace.writeStart();
+            }
+            final FrameEncodedEvent frameEncodedEvent = new FrameEncodedEvent();
+            if (frameEncodedEvent.isEnabled()) {
+                frameEncodedEvent.sessionId = sessionId;
+                frameEncodedEvent.opcode = frameData.getOpcode().name();
+                frameEncodedEvent.size = (long) writeBuffers[0].remaining() + writeBuffers[1].remaining();
+                frameEncodedEvent.commit();
+            }
+        }
+        return writeBuffers;
+    }
+
+    /**
+     * Frames queued or partially written
+     */
+    public boolean hasPendingWrites() {
+        return writingFrame != null || !controlQueue.isEmpty() || !priorityQueue.isEmpty() || !messageQueue.isEmpty();
+    }
+
+    public boolean isWriteCompleted() {
+        return !writeBuffers[0].hasRemaining() && !writeBuffers[1].hasRemaining();
+    }
+
+    /**
+     * Remove writingFrame from its lane and give its buffer back
+     */
+    public void completeWrite() {
+        final QueuedFrame queuedFrame = writingLane.poll();
+        final FrameData frameData = queuedFrame.getFrameData();
+        if (!isControl(frameData.getOpcode())) {
+            fragmentedLane = frameData.isFin() ? null : writingLane;
+        }
+        writingFrame = null;
+        writingLane = null;
+        writeBuffers[0] = null;
+        writeBuffers[1] = null;
+        if (queuedFrame.getCompletion() != null) {
+            writtenCompletions.add(queuedFrame.getCompletion());
+        }
+        if (frameData == writeTraceFrame) {
+            writeTrace.flushed();
+            tracer.finish(writeTrace);
+            writeTrace = null;
+            writeTraceFrame = null;
+        }
+        release(queuedFrame);
+    }
+
+    /**
+     * Channel has been flushed, every frame written before is on the socket
+     */
+    public void completeFlushed() {
+        if (writtenCompletions.isEmpty()) {
+            return;
+        }
+        for (final CompletableFuture<Void> completion : writtenCompletions) {
+            complete(completion, null);
+        }
+        writtenCompletions.clear();
+    }
+
+    /**
+     * Batched on the event loop, no wakeup of waiting threads per frame in the middle of writes
+     */
+    private void complete(final CompletableFuture<Void> completion, final Throwable error) {
+        if (eventLoop != null) {
+            eventLoop.complete(completion, error);
+        } else if (error == null) {
+            completion.complete(null);
+        } else {
+            completion.completeExceptionally(error);
+        }
+    }
+
+    private void release(final QueuedFrame queuedFrame) {
+        final String conflationKey = queuedFrame.getConflationKey();
+        if (conflationKey != null && conflatedFrames.get(conflationKey) == queuedFrame) {
+            conflatedFrames.remove(conflationKey);
+        }
+        queuedFrame.getFrameData().release();
+    }
+
+    private static boolean isControl(final Opcode opcode) {
+        return opcode == Opcode.CONNECTION_CLOSE || opcode == Opcode.PING || opcode == Opcode.PONG;
+    }
+
+    public void releaseBuffers() {
+        //Not written, trace is dropped
+        writeTrace = null;
+        writeTraceFrame = null;
+        writingFrame = null;
+        writingLane = null;
+        fragmentedLane = null;
+        for (final Queue<QueuedFrame> lane : Arrays.asList(controlQueue, priorityQueue, messageQueue)) {
+            QueuedFrame queuedFrame;
+            while ((queuedFrame = lane.poll()) != null) {
+                if (queuedFrame.getCompletion() != null) {
+                    complete(queuedFrame.getCompletion(), new ClosedChannelException());
+                }
+                release(queuedFrame);
+            }
+        }
+        //Written, maybe not flushed
+        for (final CompletableFuture<Void> completion : writtenCompletions) {
+            complete(completion, new ClosedChannelException());
+        }
+        writtenCompletions.clear();
+        if (readBuffer != null) {
+            readBuffer.release();
+            readBuffer = null;
+        }
+        if (staticFileResponse != null) {
+            staticFileResponse.release();
+            staticFileResponse = null;
+        }
     }
 
     @Override
     public void send(final String message) {
-        send(
-                FrameData.builder()
-                        .fin(true)
-                        .rsv1(false)
-                        .rsv2(false)
-                        .rsv3(false)
-                        .opcode(Opcode.TEXT_FRAME)
-                        .mask(false)
-                        .payloadData(ByteBufferUtils.create(message))
-                        .build()
-        );
+        enqueue(createTextFrame(message), null, false, null);
     }
 
     @Override
     public void send(final ByteBuffer message) {
-        send(
+        enqueue(createBinaryFrame(message), null, false, null);
+    }
+
+    @Override
+    public void send(final FrameData message) {
+        enqueue(createOutboundFrame(message), null, false, null);
+    }
+
+    @Override
+    public void sendConflated(final String key, final String message) {
+        enqueue(createTextFrame(message), Objects.requireNonNull(key), false, null);
+    }
+
+    @Override
+    public void sendConflated(final String key, final ByteBuffer message) {
+        enqueue(createBinaryFrame(message), Objects.requireNonNull(key), false, null);
+    }
+
+    @Override
+    public void sendConflated(final String key, final FrameData message) {
+        enqueue(createOutboundFrame(message), Objects.requireNonNull(key), false, null);
+    }
+
+    @Override
+    public void sendPriority(final String message) {
+        enqueue(createTextFrame(message), null, true, null);
+    }
+
+    @Override
+    public void sendPriority(final ByteBuffer message) {
+        enqueue(createBinaryFrame(message), null, true, null);
+    }
+
+    @Override
+    public void sendPriority(final FrameData message) {
+        enqueue(createOutboundFrame(message), null, true, null);
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final String message) {
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        enqueue(createTextFrame(message), null, false, completion);
+        return completion;
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final ByteBuffer message) {
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        enqueue(createBinaryFrame(message), null, false, completion);
+        return completion;
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(final FrameData message) {
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        enqueue(createOutboundFrame(message), null, false, completion);
+        return completion;
+    }
+
+    @Override
+    public <T> void send(final MessageCodec<T> codec, final T message) {
+        enqueue(createCodecFrame(codec, message, byteBufferPool), null, false, null);
+    }
+
+    /**
+     * Frame of the encoded message, its payload is a pooled buffer of the frame (reference count 1)
+     */
+    static <T> FrameData createCodecFrame(final MessageCodec<T> codec, final T message, final ByteBufferPool byteBufferPool) {
+        final PooledByteBuffer pooledBuffer = byteBufferPool.acquire(codec.getEncodedSize(message));
+        try {
+            codec.encode(message, pooledBuffer.getByteBuffer());
+        } catch (final RuntimeException e) {
+            pooledBuffer.release();
+            throw e;
+        }
+        return FrameData.builder()
+                .fin(true)
+                .rsv1(false)
+                .rsv2(false)
+                .rsv3(false)
+                .opcode(codec.getOpcode())
+                .mask(false)
+                .payloadData(pooledBuffer.getByteBuffer())
+                .pooledBuffer(pooledBuffer)
+                .build();
+    }
+
+    private FrameData createTextFrame(final String message) {
+        return FrameData.builder()
+                .fin(true)
+                .rsv1(false)
+                .rsv2(false)
+                .rsv3(false)
+                .opcode(Opcode.TEXT_FRAME)
+                .mask(false)
+                .payloadData(ByteBufferUtils.create(message))
+                .build();
+    }
+
+    private FrameData createBinaryFrame(final ByteBuffer message) {
+        //Echo of the received payload, share its pooled buffer instead of copy
+        final boolean isInboundPayload = (inboundFrame != null) && (inboundFrame.getPayloadData() == message);
+        return FrameData.builder()
+                .fin(true)
+                .rsv1(false)
+                .rsv2(false)
+                .rsv3(false)
+                .opcode(Opcode.BINARY_FRAME)
+                .mask(false)
+                .payloadData(message)
+                .pooledBuffer(isInboundPayload ? inboundFrame.retain().getPooledBuffer() : null)
+                .build();
+    }
+
+    private FrameData createOutboundFrame(final FrameData message) {
+        message.retain();
+        if (!message.isMask()) {
+            return message;
+        }
+        //A server MUST NOT mask any frames that it sends to the client (RFC6455 section 5.1),
+        //relay a received frame with the same payload
+        return FrameData.builder()
+                .fin(message.isFin())
+                .rsv1(message.isRSV1())
+                .rsv2(message.isRSV2())
+                .rsv3(message.isRSV3())
+                .opcode(message.getOpcode())
+                .mask(false)
+                .payloadData(message.getPayloadData())
+                .pooledBuffer(message.getPooledBuffer())
+                .build();
+    }
+
+    /**
+     * Close frame with status code payload (may be empty), queued after pending messages
+     */
+    public void sendCloseFrame(final ByteBuffer statusCode) {
+        enqueue(
                 FrameData.builder()
                         .fin(true)
                         .rsv1(false)
                         .rsv2(false)
                         .rsv3(false)
-                        .opcode(Opcode.BINARY_FRAME)
+                        .opcode(Opcode.CONNECTION_CLOSE)
                         .mask(false)
-                        .payloadData(message)
-                        .build()
+                        .payloadData(statusCode)
+                        .build(),
+                null,
+                false,
+                null
         );
+        closeFrameQueued = true;
     }
 
     @Override
-    public void send(final FrameData message) {
-        messageQueue.add(message);
+    public void close(final CloseStatus status) {
+        if (eventLoop == null || eventLoop.inEventLoop()) {
+            closeHandler.accept(this, status);
+        } else {
+            eventLoop.execute(() -> closeHandler.accept(this, status));
+        }
+    }
+
+    /**
+     * Ping and pong go to the control lane, close frame stays behind pending messages
+     *
+     * @param conflationKey null is always appended
+     * @param priority      ahead of messages which are not priority
+     * @param completion    of sendAsync(), null for the other sends
+     */
+    private void enqueue(final FrameData message, final String conflationKey, final boolean priority, final CompletableFuture<Void> completion) {
+        if (eventLoop != null && !eventLoop.inEventLoop()) {
+            //Queue and selection key are owned by the event loop thread
+            eventLoop.execute(() -> enqueue(message, conflationKey, priority, completion));
+            return;
+        }
+        if (closeFrameQueued || state == State.CLOSED) {
+            //An endpoint MUST NOT send any more data frames after sending a Close frame (RFC6455 section 5.5.1),
+            //nor anything once the connection is gone (queues are released)
+            message.release();
+            if (completion != null) {
+                complete(completion, new ClosedChannelException());
+            }
+            return;
+        }
+        if (conflationKey != null && replaceConflated(message, conflationKey)) {
+            return;
+        }
+        if (dispatchTrace != null && writeTrace == null) {
+            dispatchTrace.enqueued();
+            writeTrace = dispatchTrace;
+            writeTraceFrame = message;
+        }
+        final QueuedFrame queuedFrame = new QueuedFrame(message, conflationKey, completion);
+        if (conflationKey != null) {
+            conflatedFrames.put(conflationKey, queuedFrame);
+        }
+        final Opcode opcode = message.getOpcode();
+        final Queue<QueuedFrame> lane = (opcode == Opcode.PING || opcode == Opcode.PONG) ? controlQueue
+                : (priority ? priorityQueue : messageQueue);
+        lane.add(queuedFrame);
+        if (lane == messageQueue && messageQueue.size() == queueHighWaterMark) {
+            //Once per crossing, not for every message above it
+            final QueueOverflowEvent queueOverflowEvent = new QueueOverflowEvent();
+            if (queueOverflowEvent.isEnabled()) {
+                queueOverflowEvent.sessionId = sessionId;
+                queueOverflowEvent.queueSize = queueHighWaterMark;
+                queueOverflowEvent.commit();
+            }
+        }
+        setWriteInterest(true);
+    }
+
+    /**
+     * Newer message takes the place of the queued one of the same key, the older is never sent
+     *
+     * @return false when there is no queued frame of the key, or it is being written
+     */
+    private boolean replaceConflated(final FrameData message, final String conflationKey) {
+        final QueuedFrame queuedFrame = conflatedFrames.get(conflationKey);
+        if (queuedFrame == null || queuedFrame == writingFrame) {
+            return false;
+        }
+        final FrameData older = queuedFrame.getFrameData();
+        if (older == writeTraceFrame) {
+            writeTraceFrame = message;
+        }
+        queuedFrame.setFrameData(message);
+        older.release();
+        return true;
     }
 
     @Override
     public String toString() {
         return "WebSocket{" +
                 "sessionId='" + sessionId + '\'' +
+                ", state=" + state +
                 '}';
     }
+
+    private static class QueuedFrame {
+
+        private FrameData frameData;
+
+        private final String conflationKey;
+
+        private final CompletableFuture<Void> completion;
+
+        private QueuedFrame(final FrameData frameData, final String conflationKey, final CompletableFuture<Void> completion) {
+            this.frameData = frameData;
+            this.conflationKey = conflationKey;
+            this.completion = completion;
+        }
+
+        public FrameData getFrameData() {
+            return frameData;
+        }
+
+        public void setFrameData(final FrameData frameData) {
+            this.frameData = frameData;
+        }
+
+        public String getConflationKey() {
+            return conflationKey;
+        }
+
+        public CompletableFuture<Void> getCompletion() {
+            return completion;
+        }
+    }
+
+    /**
+     * OPEN -> CLOSING (close frame sent or received) -> CLOSED (TCP connection closed)
+     */
+    enum State {
+
+        OPEN,
+        CLOSING,
+        CLOSED
+    }
 }
@@ -3,16 +3,29 @@
  */
 package me.jittagornp.example.websocket;
 
+import me.jittagornp.example.util.ByteBufferPool;
 import me.jittagornp.example.util.ByteBufferUtils;
+import me.jittagornp.example.util.PooledByteBuffer;
+import me.jittagornp.example.websocket.jfr.CloseEvent;
+import me.jittagornp.example.websocket.jfr.DispatchEvent;
+import me.jittagornp.example.websocket.jfr.FrameDecodedEvent;
+import me.jittagornp.example.websocket.jfr.HandshakeEvent;
+import me.jittagornp.example.websocket.jfr.WebSocketEvents;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,22 +37,120 @@ import java.util.regex.Pattern;
  */
 public class WebSocketServer {
 
-    private static final int READ_BUFFER_SIZE = 100; //100 bytes
+    //Handshake request is read once per connection, 1 KB fits common requests in one read
+    private static final int HANDSHAKE_READ_BUFFER_SIZE = 1024;
+
+    private static final int DEFAULT_MIN_READ_SIZE = 64;
+
+    private static final int DEFAULT_INITIAL_READ_SIZE = 1024;
+
+    private static final int DEFAULT_MAX_READ_SIZE = 64 * 1024;
+
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 10;
+
+    private static final Duration DEFAULT_CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final int DEFAULT_QUEUE_HIGH_WATER_MARK = 1024;
+
+    //A rejected connection is closed when the client closes, or after this time
+    private static final long REJECT_LINGER_MILLIS = 1000;
+
+    //Edge triggered transport : reads of one readiness before the rest is left to a task, fair to other sessions
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    //Attachment of rejected connections which are read until the client closes
+    private static final Object REJECTED = new Object();
+
+    private static final Pattern RESUME_PATTERN = Pattern.compile("[?&]resume=([^&\\s]+)");
+
+    private static final Pattern NODE_PATTERN = Pattern.compile("[?&]node=([^&\\s]+)");
+
+    private static final Pattern PROTOCOL_PATTERN = Pattern.compile("(?im)^Sec-WebSocket-Protocol:([^\\r\\n]*)");
 
     private static final String RFC6455_CONSTANT = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
 
     private final int port;
 
-    private final FrameDataByteBufferConverter converter;
+    private FrameDataByteBufferConverter converter;
+
+    private final List<ServerSocketChannel> serverSocketChannels;
 
-    private ServerSocketChannel serverSocketChannel;
+    private final List<EventLoop> eventLoops;
 
     private MultipleWebSocketHandler handler;
 
+    private ByteBufferPool byteBufferPool;
+
+    private TlsConfig tlsConfig;
+
+    //Additional listeners (port + TLS) beside the main port
+    private final List<Listener> additionalListeners;
+
+    private int reusePortListeners = 1;
+
+    private int backlog;
+
+    private boolean tcpNoDelay;
+
+    private int sendBufferSize;
+
+    private int receiveBufferSize;
+
+    private RateLimit sessionRateLimit;
+
+    private RateLimiter globalRateLimiter;
+
+    private boolean closeOnRateLimit;
+
+    private Duration closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+
+    private volatile PubSubImpl pubSub;
+
+    //null is tracing off
+    private MessageTracer tracer;
+
+    private int queueHighWaterMark = DEFAULT_QUEUE_HIGH_WATER_MARK;
+
+    private int minReadSize = DEFAULT_MIN_READ_SIZE;
+
+    private int initialReadSize = DEFAULT_INITIAL_READ_SIZE;
+
+    private int maxReadSize = DEFAULT_MAX_READ_SIZE;
+
+    private Duration stallThreshold;
+
+    private Executor quarantineExecutor;
+
+    private EventLoopWatchdog watchdog;
+
+    private Transport transport = Transport.nio();
+
+    private StaticFileConfig staticFileConfig;
+
+    private boolean virtualThreads;
+
+    private volatile ThreadPerConnectionServer threadPerConnectionServer;
+
+    private StaticFileHandler staticFileHandler;
+
+    private CaptureConfig captureConfig;
+
+    //null is capture off
+    private TrafficCapture capture;
+
+    private AdmissionConfig admissionConfig;
+
+    //null is every connection admitted
+    private AdmissionController admission;
+
     private WebSocketServer(final int port) {
         this.port = port;
         this.handler = new MultipleWebSocketHandler();
         this.converter = new FrameDataByteBufferConverterImpl();
+        this.byteBufferPool = ByteBufferPool.getDefault();
+        this.serverSocketChannels = new ArrayList<>();
+        this.eventLoops = new ArrayList<>();
+        this.additionalListeners = new ArrayList<>();
     }
 
     public static WebSocketServer port(final int port) {
@@ -56,91 +167,765 @@ public class WebSocketServer {
         return this;
     }
 
+    /**
+     * Frames which declare a payload length larger than this are rejected with {@link CloseStatus#TOO_BIG},
+     * default is 16 MB
+     */
+    public WebSocketServer maxPayloadLength(final long maxPayloadLength) {
+        this.converter = new FrameDataByteBufferConverterImpl(maxPayloadLength);
+        return this;
+    }
+
+    /**
+     * Pool of direct buffers for frame read, received payloads are passed to handlers and outbound queues without copy
+     */
+    public WebSocketServer byteBufferPool(final ByteBufferPool byteBufferPool) {
+        this.byteBufferPool = byteBufferPool;
+        return this;
+    }
+
+    /**
+     * Open listeners channels on the same port with SO_REUSEPORT, each one owned by its own event loop thread,
+     * the kernel spreads incoming connections across them (Linux)
+     */
+    public WebSocketServer reusePort(final int listeners) {
+        if (listeners < 1) {
+            throw new IllegalArgumentException("Invalid listeners " + listeners);
+        }
+        this.reusePortListeners = listeners;
+        return this;
+    }
+
+    /**
+     * Serve wss:// on the main port
+     */
+    public WebSocketServer tls(final TlsConfig tlsConfig) {
+        this.tlsConfig = tlsConfig;
+        return this;
+    }
+
+    /**
+     * Also listen on another port, plain ws:// when tlsConfig is null
+     */
+    public WebSocketServer addListener(final int port, final TlsConfig tlsConfig) {
+        this.additionalListeners.add(new Listener(port, tlsConfig));
+        return this;
+    }
+
+    /**
+     * Maximum pending connections of each listener, 0 is system default
+     */
+    public WebSocketServer backlog(final int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public WebSocketServer tcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * SO_SNDBUF of accepted connections, 0 is system default
+     */
+    public WebSocketServer sendBufferSize(final int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * SO_RCVBUF of accepted connections, 0 is system default
+     */
+    public WebSocketServer receiveBufferSize(final int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * Limit of each session, reading of a session over budget stops until tokens are refilled
+     */
+    public WebSocketServer sessionRateLimit(final RateLimit rateLimit) {
+        this.sessionRateLimit = rateLimit;
+        return this;
+    }
+
+    /**
+     * Limit of all sessions together
+     */
+    public WebSocketServer globalRateLimit(final RateLimit rateLimit) {
+        this.globalRateLimiter = new RateLimiter(rateLimit);
+        return this;
+    }
+
+    /**
+     * Close sessions over budget with {@link CloseStatus#POLICY_VALIDATION} instead of backpressure
+     */
+    public WebSocketServer closeOnRateLimit(final boolean closeOnRateLimit) {
+        this.closeOnRateLimit = closeOnRateLimit;
+        return this;
+    }
+
+    /**
+     * Maximum time of closing handshake, the connection is dropped when the peer does not answer in time
+     */
+    public WebSocketServer closeTimeout(final Duration closeTimeout) {
+        this.closeTimeout = closeTimeout;
+        return this;
+    }
+
+    /**
+     * Publish / subscribe between sessions of this server, uses the byteBufferPool configured before the first call
+     */
+    public synchronized PubSub getPubSub() {
+        if (pubSub == null) {
+            pubSub = new PubSubImpl(byteBufferPool);
+        }
+        return pubSub;
+    }
+
+    /**
+     * Join a cluster, publish of {@link #getPubSub()} also reaches sessions of other servers on the bus
+     */
+    public WebSocketServer cluster(final ClusterBus clusterBus) {
+        ((PubSubImpl) getPubSub()).join(clusterBus);
+        return this;
+    }
+
+    /**
+     * Keep recent messages of {@link #getPubSub()} topics, clients resume with {@code ?resume=topic:offset}
+     * (and {@code &node=nodeId} in a cluster) when the {@link ResumeAuthorizer} of historyConfig allows it
+     */
+    public WebSocketServer history(final HistoryConfig historyConfig) {
+        ((PubSubImpl) getPubSub()).setHistoryConfig(historyConfig);
+        return this;
+    }
+
+    /**
+     * Sampled latency tracing of received messages, see {@link #getTraces()}
+     */
+    public WebSocketServer tracing(final TraceConfig traceConfig) {
+        this.tracer = (traceConfig == null) ? null : new MessageTracer(traceConfig);
+        return this;
+    }
+
+    /**
+     * Recent sampled and slow message traces, oldest first, empty when tracing is off
+     */
+    public List<MessageTrace> getTraces() {
+        return (tracer == null) ? Collections.emptyList() : tracer.getTraces();
+    }
+
+    /**
+     * Send queue size of a session which is reported as overflow (JFR event me.jittagornp.websocket.QueueOverflow)
+     */
+    public WebSocketServer queueHighWaterMark(final int queueHighWaterMark) {
+        this.queueHighWaterMark = queueHighWaterMark;
+        return this;
+    }
+
+    /**
+     * Selectors and server channels of event loops, default is {@link Transport#nio()}
+     */
+    public WebSocketServer transport(final Transport transport) {
+        if (!transport.isAvailable()) {
+            throw new IllegalArgumentException("Transport " + transport.getName() + " is not available on this platform");
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Serve plain HTTP requests (without WebSocket upgrade) on the same listeners from files of a directory
+     */
+    public WebSocketServer staticFiles(final StaticFileConfig staticFileConfig) {
+        this.staticFileConfig = staticFileConfig;
+        return this;
+    }
+
+    /**
+     * Limits of connections and handshakes, connections over them get 503 and are closed before any work on them
+     */
+    public WebSocketServer admission(final AdmissionConfig admissionConfig) {
+        this.admissionConfig = admissionConfig;
+        return this;
+    }
+
+    /**
+     * Connections rejected by admission control
+     */
+    public long getRejectedConnectionCount() {
+        return (admission == null) ? 0 : admission.getRejectedCount();
+    }
+
+    /**
+     * Record received frames of every session to a file, for replay as a benchmark workload
+     */
+    public WebSocketServer capture(final CaptureConfig captureConfig) {
+        this.captureConfig = captureConfig;
+        return this;
+    }
+
+    /**
+     * Each connection runs on its own virtual thread (Java 21+, platform thread on older JDKs) with blocking reads
+     * and writes, instead of event loops. Same handlers and frame codec, send() writes to the socket before it returns.
+     * <p>
+     * Only the main port, TLS is not supported in this mode, nor are features built on event loops
+     * (pub/sub, static files, rate limit, tracing, watchdog, capture, admission)
+     */
+    public WebSocketServer virtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Bounds of the read size of a session, it grows toward the size of received data and shrinks when traffic is small.
+     * An idle session holds no read buffer, a frame bigger than maximum is still read into one buffer of its size
+     */
+    public WebSocketServer readSize(final int minimum, final int initial, final int maximum) {
+        if (minimum <= 0 || initial < minimum || maximum < initial) {
+            throw new IllegalArgumentException("Invalid read size " + minimum + " / " + initial + " / " + maximum);
+        }
+        this.minReadSize = minimum;
+        this.initialReadSize = initial;
+        this.maxReadSize = maximum;
+        return this;
+    }
+
+    /**
+     * Report event loops busy with one key or task longer than stallThreshold, with the stack of the loop thread
+     */
+    public WebSocketServer watchdog(final Duration stallThreshold) {
+        this.stallThreshold = stallThreshold;
+        return this;
+    }
+
+    /**
+     * Handlers of a session which stalled an event loop run on this executor from then on,
+     * messages of the session are still handled one at a time in order
+     */
+    public WebSocketServer quarantineExecutor(final Executor quarantineExecutor) {
+        this.quarantineExecutor = quarantineExecutor;
+        return this;
+    }
+
+    /**
+     * Number of stalls reported by the watchdog
+     */
+    public long getStallCount() {
+        return (watchdog == null) ? 0 : watchdog.getStallCount();
+    }
+
     public void start() throws IOException, NoSuchAlgorithmException {
 
-        System.out.println("WebSocketServer started on port " + port);
+        System.out.println("WebSocketServer started on port " + port + ", transport " + transport);
+
+        WebSocketEvents.register();
+
+        if (virtualThreads) {
+            startThreadPerConnection();
+            return;
+        }
+
+        if (staticFileConfig != null) {
+            staticFileHandler = new StaticFileHandler(staticFileConfig, byteBufferPool);
+        }
+
+        if (admissionConfig != null) {
+            admission = new AdmissionController(admissionConfig);
+        }
+
+        if (captureConfig != null) {
+            capture = new TrafficCapture(captureConfig);
+            capture.start();
+            System.out.println("Capture received frames to " + captureConfig.getFile());
+        }
+
+        //1. Define event loops, one per listener
+        final int count = isReusePortSupported() ? reusePortListeners : 1;
+        if (count < reusePortListeners) {
+            System.out.println("SO_REUSEPORT is not supported, use single listener");
+        }
+
+        for (int i = 0; i < count; i++) {
+            eventLoops.add(new EventLoop("websocket-event-loop-" + i, transport, this::handleSelectionKey));
+        }
+
+        //2. Define server channels of every listener, each one monitored by its own event loop
+        final List<Listener> listeners = new ArrayList<>();
+        listeners.add(new Listener(port, tlsConfig));
+        listeners.addAll(additionalListeners);
+        for (final Listener listener : listeners) {
+            for (final EventLoop eventLoop : eventLoops) {
+                final ServerSocketChannel serverSocketChannel = transport.openServerSocketChannel();
+                if (count > 1) {
+                    serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                if (receiveBufferSize > 0) {
+                    //Set before bind, so window scaling can be negotiated for larger than 64 KB
+                    serverSocketChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                }
+                serverSocketChannel.bind(new InetSocketAddress(listener.getPort()), backlog);
+                eventLoop.register(serverSocketChannel, SelectionKey.OP_ACCEPT, listener);
+                serverSocketChannels.add(serverSocketChannel);
+            }
+        }
 
-        //1. Define server channel
-        serverSocketChannel = ServerSocketChannel.open();
-        serverSocketChannel.bind(new InetSocketAddress(port));
+        //3. Run event loops, the first one on the caller thread until stop() or drain()
+        if (stallThreshold != null) {
+            watchdog = new EventLoopWatchdog(eventLoops, stallThreshold.toNanos(), quarantineExecutor);
+            watchdog.start();
+        }
+        for (int i = 1; i < eventLoops.size(); i++) {
+            eventLoops.get(i).start();
+        }
+        eventLoops.get(0).run();
 
-        //2. Define selector for monitor channels
-        final Selector selector = Selector.open();
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
 
-        //3. Event loop for monitor channels
-        while (true) {
-            final int readyChannels = selector.selectNow();
-            if (readyChannels > 0) {
+        if (capture != null) {
+            capture.close();
+        }
 
-                final Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                final Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+        //4. Leave the cluster
+        final ClusterLink clusterLink = (pubSub == null) ? null : pubSub.getClusterLink();
+        if (clusterLink != null) {
+            clusterLink.close();
+        }
 
-                while (keyIterator.hasNext()) {
+        System.out.println("WebSocketServer stopped on port " + port);
+    }
 
-                    final SelectionKey key = keyIterator.next();
+    private void startThreadPerConnection() throws IOException {
+        if (tlsConfig != null || !additionalListeners.isEmpty()) {
+            throw new IllegalStateException("TLS and additional listeners are not supported with virtualThreads()");
+        }
+        threadPerConnectionServer = new ThreadPerConnectionServer(port, backlog, converter, handler, byteBufferPool, closeTimeout, this::configureSocket);
+        threadPerConnectionServer.run();
+        System.out.println("WebSocketServer stopped on port " + port);
+    }
 
-                    if (key.isAcceptable()) {
+    private boolean isReusePortSupported() throws IOException {
+        if (reusePortListeners == 1) {
+            return false;
+        }
+        try (final ServerSocketChannel channel = transport.openServerSocketChannel()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
 
-                        handleAcceptable(selector);
+    private void handleSelectionKey(final EventLoop eventLoop, final SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
 
-                    } else if (key.isReadable()) {
+            if (key.isAcceptable()) {
 
-                        handleReadable((SocketChannel) key.channel(), (WebSocketImpl) key.attachment());
+                //Edge triggered : every pending connection now, the backlog is not reported again
+                while (handleAcceptable(eventLoop, key) && transport.isEdgeTriggered()) {
+                    //Next
+                }
 
-                    } else if (key.isWritable()) {
+            } else {
 
-                        handleWritable((SocketChannel) key.channel(), (WebSocketImpl) key.attachment());
-                    }
+                if (key.attachment() == REJECTED) {
 
-                    keyIterator.remove();
+                    discardRejected(key);
+                    return;
                 }
+
+                final WebSocketImpl webSocket = (WebSocketImpl) key.attachment();
+
+                if (key.isReadable()) {
+
+                    handleReadable(webSocket.getChannel(), webSocket);
+                }
+
+                if (key.isValid() && key.isWritable()) {
+
+                    handleWritable(webSocket.getChannel(), webSocket);
+                }
+            }
+        } catch (final IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (final RuntimeException e) {
+            //A bug or bad input of one session must not escape select() and close every channel of the loop
+            e.printStackTrace();
+            if (key.attachment() instanceof WebSocketImpl) {
+                terminateOnError((WebSocketImpl) key.attachment(), e);
+            }
+        }
+    }
+
+    private void terminateOnError(final WebSocketImpl webSocket, final RuntimeException e) {
+        handler.onError(webSocket, e);
+        terminate(webSocket.getChannel(), webSocket, CloseStatus.UNEXPECTED_CONDITION);
+    }
+
+    /**
+     * @return false when there is no pending connection
+     */
+    private boolean handleAcceptable(final EventLoop eventLoop, final SelectionKey key) throws IOException {
+        final SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return false;
+        }
+
+        final TlsConfig listenerTlsConfig = ((Listener) key.attachment()).getTlsConfig();
+        if (admission != null && !admission.tryAdmit()) {
+            rejectConnection(eventLoop, key.selector(), channel, listenerTlsConfig != null);
+            return true;
+        }
+
+        try {
+            registerConnection(eventLoop, key, channel, listenerTlsConfig);
+        } catch (final IOException | RuntimeException e) {
+            //E.g. reset by the client right after connect, give its admission slots back
+            e.printStackTrace();
+            if (admission != null) {
+                admission.handshakeEnded();
+                admission.connectionClosed();
             }
+            closeSocketChannel(channel);
         }
+        return true;
     }
 
-    private void handleAcceptable(final Selector selector) throws IOException {
-        final SocketChannel channel = serverSocketChannel.accept();
+    private void registerConnection(final EventLoop eventLoop, final SelectionKey key, final SocketChannel channel,
+                                    final TlsConfig listenerTlsConfig) throws IOException {
+        configureSocket(channel);
+
         final WebSocketImpl webSocket = new WebSocketImpl();
+        webSocket.setEventLoop(eventLoop);
+        webSocket.setByteBufferPool(byteBufferPool);
+        webSocket.setRateLimiter((sessionRateLimit == null) ? null : new RateLimiter(sessionRateLimit));
+        webSocket.setCloseHandler((ws, status) -> close(ws.getChannel(), ws, status));
+        webSocket.setTracer(tracer);
+        webSocket.setQueueHighWaterMark(queueHighWaterMark);
+        webSocket.setReadSizePredictor(new ReadSizePredictor(minReadSize, initialReadSize, maxReadSize));
+
+        //Committed when the handshake is done, covers TLS handshake too
+        final HandshakeEvent handshakeEvent = new HandshakeEvent();
+        if (handshakeEvent.isEnabled()) {
+            handshakeEvent.begin();
+            handshakeEvent.sessionId = webSocket.getSessionId();
+            handshakeEvent.remoteAddress = String.valueOf(channel.getRemoteAddress());
+            handshakeEvent.tls = (listenerTlsConfig != null);
+            webSocket.setHandshakeEvent(handshakeEvent);
+        }
+        webSocket.setChannel(
+                (listenerTlsConfig == null)
+                        ? new PlainWebSocketChannel(channel)
+                        : new TlsWebSocketChannel(channel, listenerTlsConfig.createEngine(), byteBufferPool)
+        );
+
+        //Write interest is added only when there are messages to send
         channel.configureBlocking(false);
-        channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, webSocket);
+        webSocket.setSelectionKey(channel.register(key.selector(), SelectionKey.OP_READ, webSocket));
+
+        if (admission != null) {
+            webSocket.setPendingHandshake(true);
+            eventLoop.schedule(() -> {
+                if (webSocket.isPendingHandshake()) {
+                    //Slow or idle client holds a pending handshake slot
+                    terminate(webSocket.getChannel(), webSocket, CloseStatus.ABNORMAL_CLOSE);
+                }
+            }, admission.getConfig().getHandshakeTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        }
     }
 
-    private void handleReadable(final SocketChannel channel, final WebSocketImpl webSocket) throws IOException, NoSuchAlgorithmException {
-        final ByteBuffer buffer = readByteBuffer(channel, webSocket);
-        final boolean hasData = (buffer != null) && (buffer.remaining() > 0);
-        if (hasData) {
-            if (webSocket.isHandshake()) {
-                processFrameData(channel, webSocket, buffer);
-            } else {
+    /**
+     * Over admission limits : 503 and close, no session. TLS would need a TLS handshake first, closed at once.
+     * <p>
+     * Closing with the upgrade request unread makes the kernel send RST, which may discard the 503 before the client
+     * reads it. Output is shut down after the 503 and the request is read and discarded until the client closes
+     * (or REJECT_LINGER_MILLIS)
+     */
+    private void rejectConnection(final EventLoop eventLoop, final Selector selector, final SocketChannel channel, final boolean tls) {
+        try {
+            if (tls) {
+                channel.close();
+                return;
+            }
+            //New connection, the response fits in the socket send buffer
+            channel.configureBlocking(false);
+            channel.write(admission.createRejectResponse());
+            channel.shutdownOutput();
+            final SelectionKey key = channel.register(selector, SelectionKey.OP_READ, REJECTED);
+            eventLoop.schedule(() -> closeRejected(key), REJECT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final IOException e) {
+            //Client is gone already
+            closeSocketChannel(channel);
+        }
+    }
+
+    private void discardRejected(final SelectionKey key) {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            final ByteBuffer discard = ByteBuffer.allocate(512);
+            int status;
+            while ((status = channel.read(discard.clear())) > 0) {
+                //Discard
+            }
+            if (status < 0) {
+                closeRejected(key);
+            }
+        } catch (final IOException e) {
+            closeRejected(key);
+        }
+    }
+
+    private void closeRejected(final SelectionKey key) {
+        key.cancel();
+        closeSocketChannel((SocketChannel) key.channel());
+    }
+
+    private void closeSocketChannel(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void endPendingHandshake(final WebSocketImpl webSocket) {
+        if (webSocket.isPendingHandshake()) {
+            webSocket.setPendingHandshake(false);
+            admission.handshakeEnded();
+        }
+    }
+
+    private void configureSocket(final SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+    }
+
+    /**
+     * Level triggered : one read, the selector reports the rest again.
+     * Edge triggered : readiness is reported once, read until the socket is drained or reading is paused
+     * (rate limit, close frame received, response being written)
+     */
+    private void handleReadable(final WebSocketChannel channel, final WebSocketImpl webSocket) throws IOException, NoSuchAlgorithmException {
+        int reads = 0;
+        while (readOnce(channel, webSocket) && transport.isEdgeTriggered() && channel.isOpen() && webSocket.isReadInterest()) {
+            if (++reads == MAX_READS_PER_EVENT) {
+                //No new readiness comes for the rest, a task reads it after other keys of this loop
+                webSocket.getEventLoop().execute(() -> handleReadableTask(webSocket));
+                return;
+            }
+        }
+    }
+
+    private void handleReadableTask(final WebSocketImpl webSocket) {
+        if (!webSocket.isReadInterest()) {
+            return;
+        }
+        try {
+            handleReadable(webSocket.getChannel(), webSocket);
+        } catch (final IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (final RuntimeException e) {
+            e.printStackTrace();
+            terminateOnError(webSocket, e);
+        }
+    }
+
+    /**
+     * @return false when nothing more is to be read for now : socket drained, end of stream, reading paused
+     */
+    private boolean readOnce(final WebSocketChannel channel, final WebSocketImpl webSocket) throws IOException, NoSuchAlgorithmException {
+        boolean hasData;
+        if (webSocket.isHandshake()) {
+            //Closing : read whatever the rate, data frames are discarded and the close reply of the peer is awaited
+            if (webSocket.getState() == WebSocketImpl.State.OPEN && isOverRateLimit(channel, webSocket)) {
+                return false;
+            }
+            hasData = readFrameData(channel, webSocket);
+            //In debt after this read : stop reading now, not on the next readable event which may never come
+            if (webSocket.getState() == WebSocketImpl.State.OPEN && channel.isOpen() && isOverRateLimit(channel, webSocket)) {
+                hasData = false;
+            }
+        } else {
+            final ByteBuffer buffer = readByteBuffer(channel, webSocket);
+            if (buffer == null) {
+                //End of stream or broken before handshake
+                terminate(channel, webSocket, CloseStatus.ABNORMAL_CLOSE);
+                return false;
+            }
+            hasData = buffer.remaining() > 0;
+            if (hasData) {
                 final String secWebSocketKey = getSecWebSocketKey(buffer);
-                handShake(channel, webSocket, secWebSocketKey);
+                if (admission != null) {
+                    endPendingHandshake(webSocket);
+                    if (secWebSocketKey != null && !admission.tryHandshake()) {
+                        rejectHandshake(channel, webSocket);
+                        return false;
+                    }
+                }
+                if (secWebSocketKey == null) {
+                    handleHttpRequest(channel, webSocket, buffer);
+                    return false;
+                }
+                final String subprotocol = handler.selectSubprotocol(getSecWebSocketProtocols(buffer));
+                handShake(channel, webSocket, secWebSocketKey, subprotocol, buffer);
             }
         }
+
+        //TLS handshake records may be waiting for the socket, or frames may be waiting for the TLS handshake
+        if (channel.isOpen() && (!channel.flush() || (webSocket.hasQueuedMessages() && !channel.isWaitingForRead()))) {
+            webSocket.setWriteInterest(true);
+        }
+        return hasData;
     }
 
-    private void handleWritable(final SocketChannel channel, final WebSocketImpl webSocket) {
-        final Queue<FrameData> queue = webSocket.getMessageQueue();
-        while (!queue.isEmpty()) {
-            try {
-                //Take element from queue
-                final FrameData frameData = queue.poll();
-                final ByteBuffer frameBuffer = converter.convertToByteBuffer(frameData).flip();
-                channel.write(frameBuffer);
-            } catch (final IOException e) {
-                handler.onError(webSocket, e);
+    /**
+     * Over handshake rate : 503 answer of the upgrade request, then close
+     */
+    private void rejectHandshake(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        webSocket.setStaticFileResponse(StaticFileResponse.of(admission.createRejectResponse(), false));
+        webSocket.setReadInterest(false);
+        writeStaticFileResponse(channel, webSocket);
+    }
+
+    /**
+     * Not a WebSocket upgrade : static file when configured, else the connection is closed
+     */
+    private void handleHttpRequest(final WebSocketChannel channel, final WebSocketImpl webSocket, final ByteBuffer request) {
+        if (staticFileHandler == null) {
+            terminate(channel, webSocket, CloseStatus.PROTOCOL_ERROR);
+            return;
+        }
+        try {
+            webSocket.setStaticFileResponse(staticFileHandler.handle(request));
+        } catch (final IOException e) {
+            handler.onError(webSocket, e);
+            terminate(channel, webSocket, CloseStatus.UNEXPECTED_CONDITION);
+            return;
+        }
+        //Next request is read after the response is written
+        webSocket.setReadInterest(false);
+        writeStaticFileResponse(channel, webSocket);
+    }
+
+    private void writeStaticFileResponse(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        final StaticFileResponse response = webSocket.getStaticFileResponse();
+        try {
+            if (!response.writeTo(channel, byteBufferPool)) {
+                webSocket.setWriteInterest(true);
+                return;
+            }
+        } catch (final IOException e) {
+            handler.onError(webSocket, e);
+            terminate(channel, webSocket, CloseStatus.ABNORMAL_CLOSE);
+            return;
+        }
+
+        webSocket.setStaticFileResponse(null);
+        response.release();
+        if (!response.isKeepAlive()) {
+            terminate(channel, webSocket, CloseStatus.NORMAL);
+            return;
+        }
+        webSocket.setWriteInterest(false);
+        webSocket.setReadInterest(true);
+    }
+
+    private boolean isOverRateLimit(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        final RateLimiter sessionRateLimiter = webSocket.getRateLimiter();
+        final long sessionWait = (sessionRateLimiter == null) ? 0 : sessionRateLimiter.nanosUntilAllowed();
+        final long globalWait = (globalRateLimiter == null) ? 0 : globalRateLimiter.nanosUntilAllowed();
+        final long waitNanos = Math.max(sessionWait, globalWait);
+        if (waitNanos == 0) {
+            return false;
+        }
+
+        if (closeOnRateLimit) {
+            //Next readable event reads as CLOSING
+            close(channel, webSocket, CloseStatus.POLICY_VALIDATION);
+            return true;
+        }
+
+        //Stop reading instead of buffering, TCP flow control pushes back to the client
+        webSocket.setReadInterest(false);
+        webSocket.getEventLoop().schedule(() -> {
+            //Closed meanwhile by the application, the close reply is still to be read
+            if (webSocket.getState() != WebSocketImpl.State.CLOSED && !webSocket.isCloseFrameReceived()) {
+                webSocket.setReadInterest(true);
             }
+        }, waitNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private void recordRateLimit(final WebSocketImpl webSocket, final long payloadLength) {
+        final RateLimiter sessionRateLimiter = webSocket.getRateLimiter();
+        if (sessionRateLimiter != null) {
+            sessionRateLimiter.record(payloadLength);
+        }
+        if (globalRateLimiter != null) {
+            globalRateLimiter.record(payloadLength);
         }
     }
 
-    private void handShake(final SocketChannel channel, final WebSocketImpl webSocket, final String secWebSocketKey) throws IOException, NoSuchAlgorithmException {
+    private void handleWritable(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        if (webSocket.getStaticFileResponse() != null) {
+            writeStaticFileResponse(channel, webSocket);
+            return;
+        }
+        try {
+            while (webSocket.hasQueuedMessages()) {
+                if (!channel.flush()) {
+                    return;
+                }
+                webSocket.completeFlushed();
+
+                //Gathering write of header + payload, no copy of payload
+                final ByteBuffer[] frameBuffers = webSocket.getWriteBuffers(converter);
+                channel.write(frameBuffers);
+                if (!webSocket.isWriteCompleted()) {
+                    if (channel.isWaitingForRead()) {
+                        //Not the socket which is full, continued by readOnce() once the peer has answered
+                        webSocket.setWriteInterest(false);
+                    }
+                    //Socket send buffer is full, continue on next writable
+                    return;
+                }
+                webSocket.completeWrite();
+            }
+
+            if (!channel.flush()) {
+                return;
+            }
+            webSocket.completeFlushed();
+        } catch (final IOException e) {
+            handler.onError(webSocket, e);
+            terminate(channel, webSocket, CloseStatus.ABNORMAL_CLOSE);
+            return;
+        }
+
+        webSocket.setWriteInterest(false);
+
+        //Close frame has been sent with everything queued before it
+        if (webSocket.getState() == WebSocketImpl.State.CLOSING && webSocket.isCloseFrameQueued()) {
+            onCloseFrameSent(channel, webSocket);
+        }
+    }
+
+    private void handShake(final WebSocketChannel channel, final WebSocketImpl webSocket, final String secWebSocketKey,
+                           final String subprotocol, final ByteBuffer request) throws IOException, NoSuchAlgorithmException {
         if (secWebSocketKey != null) {
-            final String response = buildHandshakeResponse(secWebSocketKey);
+            final String response = buildHandshakeResponse(secWebSocketKey, subprotocol);
             final ByteBuffer byteBuffer = ByteBufferUtils.create(response).flip();
 
             channel.write(byteBuffer);
             webSocket.setHandshake(true);
+            webSocket.setSubprotocol(subprotocol);
 
             System.out.println("===============================");
             System.out.println("WebSocket Handshake");
@@ -149,11 +934,23 @@ public class WebSocketServer {
             System.out.println("Http Response : ");
             System.out.println(response);
 
+            final HandshakeEvent handshakeEvent = webSocket.getHandshakeEvent();
+            if (handshakeEvent != null) {
+                handshakeEvent.commit();
+                webSocket.setHandshakeEvent(null);
+            }
+
+            if (capture != null) {
+                webSocket.setCaptureSession(capture.nextSession());
+                capture.recordConnect(webSocket.getCaptureSession());
+            }
+
+            resume(webSocket, request);
             handler.onConnect(webSocket);
         }
     }
 
-    private String getSecWebSocketKey(final ByteBuffer byteBuffer) {
+    static String getSecWebSocketKey(final ByteBuffer byteBuffer) {
         final String text = new String(byteBuffer.array(), StandardCharsets.UTF_8);
         final boolean isHttpGET = text.startsWith("GET /");
         if (!isHttpGET) {
@@ -166,48 +963,559 @@ public class WebSocketServer {
 
         final Pattern pattern = Pattern.compile("Sec-WebSocket-Key: (.*?)\\r\\n");
         final Matcher matcher = pattern.matcher(text);
-        matcher.find();
+        //Plain HTTP request
+        if (!matcher.find()) {
+            return null;
+        }
         return matcher.group(1);
     }
 
-    private String buildAcceptKey(final String secWebSocketKey) throws NoSuchAlgorithmException {
+    /**
+     * Sec-WebSocket-Protocol: chat, compact.v1 (the header may be repeated), in the order of the client preference
+     */
+    static List<String> getSecWebSocketProtocols(final ByteBuffer byteBuffer) {
+        final String text = new String(byteBuffer.array(), StandardCharsets.UTF_8);
+        final List<String> protocols = new ArrayList<>();
+        final Matcher matcher = PROTOCOL_PATTERN.matcher(text);
+        while (matcher.find()) {
+            for (final String protocol : matcher.group(1).split(",")) {
+                if (!protocol.isBlank()) {
+                    protocols.add(protocol.trim());
+                }
+            }
+        }
+        return protocols;
+    }
+
+    /**
+     * GET /path?resume=topic:offset&resume=topic:offset HTTP/1.1
+     */
+    private Map<String, Long> getResumeOffsets(final String requestLine) {
+        final Map<String, Long> resumeOffsets = new LinkedHashMap<>();
+        final Matcher matcher = RESUME_PATTERN.matcher(requestLine);
+        while (matcher.find()) {
+            final String value = URLDecoder.decode(matcher.group(1), StandardCharsets.UTF_8);
+            final int separator = value.lastIndexOf(':');
+            if (separator <= 0) {
+                continue;
+            }
+            try {
+                resumeOffsets.put(value.substring(0, separator), Long.parseLong(value.substring(separator + 1)));
+            } catch (final NumberFormatException e) {
+                //Ignore, client gets a full subscribe as if it did not ask for resume
+            }
+        }
+        return resumeOffsets;
+    }
+
+    private void resume(final WebSocketImpl webSocket, final ByteBuffer request) {
+        if (pubSub == null) {
+            return;
+        }
+        final String text = new String(request.array(), StandardCharsets.UTF_8);
+        final int lineEnd = text.indexOf("\r\n");
+        final String requestLine = (lineEnd < 0) ? text : text.substring(0, lineEnd);
+        final Map<String, Long> resumeOffsets = getResumeOffsets(requestLine);
+        if (resumeOffsets.isEmpty()) {
+            return;
+        }
+
+        //Offsets are numbered by each node, offsets of another node would replay other messages
+        final String nodeId = pubSub.getNodeId();
+        if (nodeId != null) {
+            final Matcher matcher = NODE_PATTERN.matcher(requestLine);
+            if (!matcher.find() || !nodeId.equals(URLDecoder.decode(matcher.group(1), StandardCharsets.UTF_8))) {
+                System.out.println("Resume refused : offsets are not of node " + nodeId);
+                return;
+            }
+        }
+
+        resumeOffsets.forEach((topic, offset) -> {
+            final boolean resumed = pubSub.resume(webSocket, topic, offset, text);
+            System.out.println("Resume " + topic + " from offset " + offset + " : " + (resumed ? "replayed" : "not allowed or history not available"));
+        });
+    }
+
+    private static String buildAcceptKey(final String secWebSocketKey) throws NoSuchAlgorithmException {
         final String concatKey = secWebSocketKey + RFC6455_CONSTANT;
         final byte[] sha1Bytes = MessageDigest.getInstance("SHA-1").digest(concatKey.getBytes(StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString(sha1Bytes);
     }
 
-    private String buildHandshakeResponse(final String secWebSocketKey) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+    /**
+     * @param subprotocol one of the client, null when none is selected (the header is not sent, RFC6455 section 4.2.2)
+     */
+    static String buildHandshakeResponse(final String secWebSocketKey, final String subprotocol) throws NoSuchAlgorithmException, UnsupportedEncodingException {
         final String secWebSocketAccept = buildAcceptKey(secWebSocketKey);
-        return new StringBuilder()
+        final StringBuilder builder = new StringBuilder()
                 .append("HTTP/1.1 101 Switching Protocols\r\n")
                 .append("Connection: Upgrade\r\n")
                 .append("Upgrade: websocket\r\n")
-                .append("Sec-WebSocket-Accept: ").append(secWebSocketAccept).append("\r\n\r\n")
-                .toString();
+                .append("Sec-WebSocket-Accept: ").append(secWebSocketAccept).append("\r\n");
+        if (subprotocol != null) {
+            builder.append("Sec-WebSocket-Protocol: ").append(subprotocol).append("\r\n");
+        }
+        return builder.append("\r\n").toString();
+    }
+
+    /**
+     * @return true when bytes were read, the socket may hold more
+     */
+    private boolean readFrameData(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        try {
+            //TLS channel may hold decrypted bytes which do not fit in one read
+            do {
+                //1. Pooled read buffer, may already hold the beginning of a frame, else one of the predicted size
+                final ReadSizePredictor readSizePredictor = webSocket.getReadSizePredictor();
+                PooledByteBuffer readBuffer = webSocket.getReadBuffer();
+                if (readBuffer == null) {
+                    readBuffer = byteBufferPool.acquire(readSizePredictor.getReadSize());
+                    webSocket.setReadBuffer(readBuffer);
+                }
+
+                final int space = readBuffer.getByteBuffer().remaining();
+                final int status = channel.read(readBuffer.getByteBuffer());
+                if (status < 0) {
+                    //End of stream, abnormal when it comes without closing handshake
+                    terminate(channel, webSocket, CloseStatus.ABNORMAL_CLOSE);
+                    return false;
+                }
+                if (status == 0) {
+                    releaseEmptyReadBuffer(webSocket, readBuffer);
+                    return false;
+                }
+                readSizePredictor.record(status, status == space);
+                final long readNanos = (tracer == null) ? 0 : System.nanoTime();
+
+                //2. Decode every complete frame, payload is a slice of the read buffer
+                final ByteBuffer received = ByteBufferUtils.readView(readBuffer.getByteBuffer());
+                final FrameHeader header = webSocket.getFrameHeader();
+                int requiredSize = 0;
+                while (received.hasRemaining() && channel.isOpen()) {
+                    final int frameStart = received.position();
+                    if (!header.decode(received, converter.getMaxPayloadLength())) {
+                        break;
+                    }
+
+                    final int frameSize = getBufferableFrameSize(header);
+                    final int payloadLength = (int) header.getPayloadLength();
+                    if (received.remaining() < payloadLength) {
+                        requiredSize = frameSize;
+                        received.position(frameStart);
+                        break;
+                    }
+
+                    final ByteBuffer payloadData = received.slice().limit(payloadLength);
+                    received.position(received.position() + payloadLength);
+                    recordRateLimit(webSocket, payloadLength);
+                    final MessageTrace trace = (tracer == null) ? null : tracer.start(webSocket, readNanos);
+                    final FrameData frameData = converter.convertToFrameData(header, payloadData, readBuffer.retain());
+                    if (trace != null) {
+                        trace.decoded(frameData);
+                    }
+                    final FrameDecodedEvent frameDecodedEvent = new FrameDecodedEvent();
+                    if (frameDecodedEvent.isEnabled()) {
+                        frameDecodedEvent.sessionId = webSocket.getSessionId();
+                        frameDecodedEvent.opcode = frameData.getOpcode().name();
+                        frameDecodedEvent.payloadLength = payloadLength;
+                        frameDecodedEvent.commit();
+                    }
+                    if (capture != null) {
+                        capture.recordFrame(webSocket.getCaptureSession(), frameData);
+                    }
+                    processFrameData(channel, webSocket, frameData, trace);
+                }
+
+                if (!channel.isOpen()) {
+                    return false;
+                }
+
+                //3. Keep incomplete frame for next read
+                compactReadBuffer(webSocket, readBuffer, received, requiredSize);
+            } while (channel.hasBufferedData());
+            return true;
+        } catch (final WebSocketException e) {
+            handler.onError(webSocket, e);
+            close(channel, webSocket, e.getStatus());
+        } catch (final IOException e) {
+            handler.onError(webSocket, e);
+            terminate(channel, webSocket, CloseStatus.ABNORMAL_CLOSE);
+        }
+        return false;
+    }
+
+    private void compactReadBuffer(final WebSocketImpl webSocket, final PooledByteBuffer readBuffer, final ByteBuffer remaining, final int requiredSize) {
+        if (!remaining.hasRemaining()) {
+            //Every frame is complete, idle session holds no buffer until next read
+            webSocket.setReadBuffer(null);
+            readBuffer.release();
+            return;
+        }
+
+        final ByteBuffer byteBuffer = readBuffer.getByteBuffer();
+        final boolean isShared = readBuffer.getReferenceCount() > 1;
+        if (!isShared && (requiredSize <= byteBuffer.capacity() || remaining.remaining() < byteBuffer.capacity())) {
+            //Nobody holds decoded frames, reuse the same memory, a bigger frame grows it once it is full
+            byteBuffer.limit(remaining.limit()).position(remaining.position());
+            byteBuffer.compact();
+            return;
+        }
+
+        //Decoded frames still use this buffer (e.g. queued echo) or frame is bigger, move remaining bytes to a new one
+        final int readSize = webSocket.getReadSizePredictor().getReadSize();
+        final PooledByteBuffer next = byteBufferPool.acquire(growReadBufferSize(requiredSize, remaining.remaining(), readSize));
+        next.getByteBuffer().put(remaining);
+        webSocket.setReadBuffer(next);
+        readBuffer.release();
+    }
+
+    /**
+     * Header + payload length of the decoded header, a frame is read in one buffer
+     *
+     * @throws WebSocketException TOO_BIG when it does not fit in a ByteBuffer (converter with a larger max payload length)
+     */
+    static int getBufferableFrameSize(final FrameHeader header) {
+        final long frameSize = header.getHeaderLength() + header.getPayloadLength();
+        if (frameSize > Integer.MAX_VALUE) {
+            throw new WebSocketException(CloseStatus.TOO_BIG, "Frame of " + frameSize + " bytes can not be buffered");
+        }
+        return (int) frameSize;
+    }
+
+    /**
+     * Capacity of the buffer which takes the buffered bytes of an incomplete frame : doubled as bytes arrive up to
+     * the frame size, the payload length declared by the header alone does not allocate it
+     */
+    static int growReadBufferSize(final int requiredSize, final int buffered, final int readSize) {
+        final long grown = Math.max(2L * buffered, (long) buffered + readSize);
+        return (int) Math.max(Math.max(readSize, buffered), Math.min(requiredSize, grown));
+    }
+
+    private void releaseEmptyReadBuffer(final WebSocketImpl webSocket, final PooledByteBuffer readBuffer) {
+        if (readBuffer.getByteBuffer().position() == 0) {
+            webSocket.setReadBuffer(null);
+            readBuffer.release();
+        }
+    }
+
+    private void processFrameData(final WebSocketChannel channel, final WebSocketImpl webSocket, final FrameData frameData, final MessageTrace trace) {
+        try {
+            if (frameData.getOpcode() == Opcode.CONNECTION_CLOSE) {
+                onCloseFrameReceived(channel, webSocket, frameData);
+                return;
+            }
+
+            //Data after our close frame is discarded
+            if (webSocket.getState() != WebSocketImpl.State.OPEN) {
+                return;
+            }
+
+            if (webSocket.isQuarantined()) {
+                //Off the event loop, the quarantine task holds one reference of the frame
+                final FrameData retained = frameData.retain();
+                webSocket.runQuarantined(() -> dispatchQuarantined(webSocket, retained));
+                return;
+            }
+
+            webSocket.setInboundFrame(frameData);
+            if (trace != null) {
+                trace.dispatchStart();
+                webSocket.setDispatchTrace(trace);
+            }
+            final DispatchEvent dispatchEvent = new DispatchEvent();
+            dispatchEvent.begin();
+            handler.onMessage(webSocket, frameData);
+            dispatchEvent.end();
+            if (dispatchEvent.shouldCommit()) {
+                dispatchEvent.sessionId = webSocket.getSessionId();
+                dispatchEvent.opcode = frameData.getOpcode().name();
+                dispatchEvent.payloadLength = frameData.getPayloadData().position();
+                dispatchEvent.commit();
+            }
+        } catch (final Throwable e) {
+            handler.onError(webSocket, e);
+        } finally {
+            webSocket.clearInboundFrame(frameData);
+            frameData.release();
+            if (trace != null) {
+                trace.dispatchEnd();
+                webSocket.setDispatchTrace(null);
+                //Nothing sent back, trace ends here, otherwise when the answer is written
+                if (!webSocket.isWaitingForWrite(trace)) {
+                    tracer.finish(trace);
+                }
+            }
+        }
     }
 
-    private void processFrameData(final SocketChannel channel, final WebSocketImpl webSocket, final ByteBuffer byteBuffer) {
+    private void dispatchQuarantined(final WebSocketImpl webSocket, final FrameData frameData) {
         try {
-            final FrameData frameData = converter.convertToFrameData(byteBuffer);
-            if (frameData.getOpcode() == Opcode.CONNECTION_CLOSE) channel.close();
+            webSocket.setInboundFrame(frameData);
             handler.onMessage(webSocket, frameData);
         } catch (final Throwable e) {
             handler.onError(webSocket, e);
+        } finally {
+            webSocket.clearInboundFrame(frameData);
+            frameData.release();
+        }
+    }
+
+    /**
+     * Start closing handshake from this side : OPEN -> CLOSING
+     */
+    private void close(final WebSocketChannel channel, final WebSocketImpl webSocket, final CloseStatus status) {
+        if (webSocket.getState() != WebSocketImpl.State.OPEN) {
+            return;
+        }
+
+        if (!webSocket.isHandshake()) {
+            terminate(channel, webSocket, status);
+            return;
+        }
+
+        webSocket.setState(WebSocketImpl.State.CLOSING);
+        webSocket.setCloseStatus(status);
+
+        //Close frame goes after messages already queued
+        webSocket.sendCloseFrame(ByteBuffer.allocate(2).putShort((short) status.getCode()));
+        scheduleCloseTimeout(channel, webSocket);
+        handleWritable(channel, webSocket);
+    }
+
+    private void onCloseFrameReceived(final WebSocketChannel channel, final WebSocketImpl webSocket, final FrameData frameData) {
+        webSocket.setCloseFrameReceived(true);
+        webSocket.setReadInterest(false);
+
+        if (webSocket.getState() == WebSocketImpl.State.OPEN) {
+            //Peer starts closing : echo the same status code after pending messages
+            webSocket.setState(WebSocketImpl.State.CLOSING);
+            webSocket.setCloseStatus(convertToCloseStatus(frameData));
+            final ByteBuffer payloadData = frameData.getPayloadData();
+            final ByteBuffer statusCode = ByteBuffer.allocate(Math.min(2, payloadData.position()));
+            while (statusCode.hasRemaining()) {
+                statusCode.put(payloadData.get(statusCode.position()));
+            }
+            webSocket.sendCloseFrame(statusCode);
+            scheduleCloseTimeout(channel, webSocket);
+            handleWritable(channel, webSocket);
+        } else if (webSocket.getState() == WebSocketImpl.State.CLOSING && !webSocket.hasPendingWrites()) {
+            //Answer of our close frame, which is already flushed
+            terminate(channel, webSocket, webSocket.getCloseStatus());
+        }
+    }
+
+    private void onCloseFrameSent(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        if (webSocket.isCloseFrameReceived()) {
+            //Both sides sent close frame, the server closes TCP connection first (RFC6455 section 7.1.1)
+            terminate(channel, webSocket, webSocket.getCloseStatus());
+            return;
         }
+
+        //Half close, keep reading until the peer answers with its close frame or end of stream
+        try {
+            channel.getSocketChannel().shutdownOutput();
+        } catch (final IOException e) {
+            terminate(channel, webSocket, webSocket.getCloseStatus());
+        }
+    }
+
+    private void scheduleCloseTimeout(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        final EventLoop eventLoop = webSocket.getEventLoop();
+        if (eventLoop == null) {
+            return;
+        }
+        eventLoop.schedule(() -> terminate(channel, webSocket, webSocket.getCloseStatus()), closeTimeout.toNanos(), TimeUnit.NANOSECONDS);
     }
 
-    private ByteBuffer readByteBuffer(final SocketChannel channel, final WebSocketImpl webSocket) {
+    static CloseStatus convertToCloseStatus(final FrameData frameData) {
+        final ByteBuffer payloadData = frameData.getPayloadData();
+        if (payloadData.position() < 2) {
+            return CloseStatus.NO_STATUS_CODE;
+        }
+        //Status code:  16 bits unsigned
+        final int code = payloadData.getShort(0) & 0xFFFF;
+        try {
+            return CloseStatus.fromCode(code);
+        } catch (final UnsupportedOperationException e) {
+            //Application defined code (3000-4999) has no constant
+            return CloseStatus.NORMAL;
+        }
+    }
+
+    /**
+     * CLOSED : drop the TCP connection and report onDisconnect exactly once
+     */
+    private void terminate(final WebSocketChannel channel, final WebSocketImpl webSocket, final CloseStatus status) {
+        if (webSocket.getState() == WebSocketImpl.State.CLOSED) {
+            return;
+        }
+        if (webSocket.getCloseStatus() == null) {
+            webSocket.setCloseStatus(status);
+        }
+        webSocket.setState(WebSocketImpl.State.CLOSED);
+        closeChannel(channel, webSocket);
+        if (admission != null) {
+            endPendingHandshake(webSocket);
+            admission.connectionClosed();
+        }
+        if (capture != null && webSocket.isHandshake()) {
+            capture.recordDisconnect(webSocket.getCaptureSession());
+        }
+
+        final CloseEvent closeEvent = new CloseEvent();
+        if (closeEvent.isEnabled()) {
+            closeEvent.sessionId = webSocket.getSessionId();
+            closeEvent.code = webSocket.getCloseStatus().getCode();
+            closeEvent.reason = webSocket.getCloseStatus().getReason();
+            closeEvent.closeFrameReceived = webSocket.isCloseFrameReceived();
+            closeEvent.commit();
+        }
+        if (pubSub != null) {
+            pubSub.unsubscribeAll(webSocket);
+        }
+        if (webSocket.isHandshake()) {
+            if (webSocket.isQuarantined()) {
+                //After messages still waiting on the quarantine executor
+                webSocket.runQuarantined(() -> handler.onDisconnect(webSocket, webSocket.getCloseStatus()));
+            } else {
+                handler.onDisconnect(webSocket, webSocket.getCloseStatus());
+            }
+        }
+    }
+
+    private void closeChannel(final WebSocketChannel channel, final WebSocketImpl webSocket) {
+        webSocket.cancelSelectionKey();
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            handler.onError(webSocket, e);
+        }
+        webSocket.releaseBuffers();
+    }
+
+    private ByteBuffer readByteBuffer(final WebSocketChannel channel, final WebSocketImpl webSocket) {
         ByteBuffer buffer = null;
         try {
-            buffer = ByteBufferUtils.read(channel, READ_BUFFER_SIZE).flip();
+            buffer = ByteBufferUtils.read(channel, HANDSHAKE_READ_BUFFER_SIZE);
+            if (buffer != null) {
+                buffer.flip();
+            }
         } catch (final IOException e) {
             handler.onError(webSocket, e);
         }
         return buffer;
     }
 
+    private static class Listener {
+
+        private final int port;
+
+        private final TlsConfig tlsConfig;
+
+        private Listener(final int port, final TlsConfig tlsConfig) {
+            this.port = port;
+            this.tlsConfig = tlsConfig;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public TlsConfig getTlsConfig() {
+            return tlsConfig;
+        }
+    }
+
+    /**
+     * Drain with {@link CloseStatus#SERVICE_RESTART}
+     */
+    public CompletableFuture<Void> drain(final Duration timeout) {
+        return drain(CloseStatus.SERVICE_RESTART, timeout);
+    }
+
+    /**
+     * Graceful shutdown : stop accepting, send close frame to every session after its queued messages,
+     * wait until they are flushed or timeout, then shut down event loops.
+     *
+     * @return completed when every event loop has exited
+     */
+    public CompletableFuture<Void> drain(final CloseStatus status, final Duration timeout) {
+        System.out.println("WebSocketServer draining, status " + status + ", timeout " + timeout);
+
+        if (threadPerConnectionServer != null) {
+            return threadPerConnectionServer.drain(status, timeout);
+        }
+
+        //1. Stop accepting
+        closeServerSocketChannels();
+
+        //2. Close sessions on the event loop which owns them
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        final CompletableFuture<?>[] terminations = new CompletableFuture<?>[eventLoops.size()];
+        for (int i = 0; i < eventLoops.size(); i++) {
+            final EventLoop eventLoop = eventLoops.get(i);
+            eventLoop.execute(() -> {
+                for (final WebSocketImpl webSocket : getWebSockets(eventLoop)) {
+                    close(webSocket.getChannel(), webSocket, status);
+                }
+                awaitDrained(eventLoop, deadline);
+            });
+            terminations[i] = eventLoop.getTerminationFuture();
+        }
+        return CompletableFuture.allOf(terminations);
+    }
+
+    private void awaitDrained(final EventLoop eventLoop, final long deadline) {
+        final List<WebSocketImpl> webSockets = getWebSockets(eventLoop);
+        if (webSockets.isEmpty()) {
+            eventLoop.shutdown();
+            return;
+        }
+
+        if (System.nanoTime() - deadline >= 0) {
+            System.out.println("Drain timeout, drop " + webSockets.size() + " connections of " + eventLoop.getName());
+            webSockets.forEach(webSocket -> terminate(webSocket.getChannel(), webSocket, CloseStatus.ABNORMAL_CLOSE));
+            eventLoop.shutdown();
+            return;
+        }
+
+        eventLoop.schedule(() -> awaitDrained(eventLoop, deadline), DRAIN_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private List<WebSocketImpl> getWebSockets(final EventLoop eventLoop) {
+        final List<WebSocketImpl> webSockets = new ArrayList<>();
+        for (final SelectionKey key : eventLoop.getSelector().keys()) {
+            if (key.isValid() && key.attachment() instanceof WebSocketImpl) {
+                webSockets.add((WebSocketImpl) key.attachment());
+            }
+        }
+        return webSockets;
+    }
+
+    private void closeServerSocketChannels() {
+        for (final ServerSocketChannel serverSocketChannel : serverSocketChannels) {
+            try {
+                serverSocketChannel.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Immediate shutdown, connections are dropped without close frame, onDisconnect is called with ABNORMAL_CLOSE
+     */
     public void stop() throws IOException {
-        serverSocketChannel.close();
-        handler.getHandlers().clear();
+        if (threadPerConnectionServer != null) {
+            threadPerConnectionServer.stop();
+        }
+        closeServerSocketChannels();
+        for (final EventLoop eventLoop : eventLoops) {
+            eventLoop.execute(() -> {
+                getWebSockets(eventLoop).forEach(webSocket -> terminate(webSocket.getChannel(), webSocket, CloseStatus.ABNORMAL_CLOSE));
+                eventLoop.shutdown();
+            });
+        }
+        //Handlers stay registered, onDisconnect of the sessions above runs later on their event loops
     }
 }
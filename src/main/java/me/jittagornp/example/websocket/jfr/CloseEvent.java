@@ -0,0 +1,30 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Connection closed, once per session
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.Close")
+@Label("WebSocket Close")
+@Category({"WebSocket"})
+@StackTrace(false)
+public class CloseEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Status Code")
+    public int code;
+
+    @Label("Reason")
+    public String reason;
+
+    @Label("Close Frame Received")
+    public boolean closeFrameReceived;
+}
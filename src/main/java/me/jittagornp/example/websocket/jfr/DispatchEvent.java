@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Handlers onMessage() of a frame, recorded when longer than the threshold
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.Dispatch")
+@Label("WebSocket Dispatch")
+@Category({"WebSocket"})
+@Threshold("1 ms")
+@StackTrace(false)
+public class DispatchEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Opcode")
+    public String opcode;
+
+    @Label("Payload Length")
+    @DataAmount
+    public long payloadLength;
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Event loop thread busy with one key or task longer than the watchdog threshold
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.EventLoopStall")
+@Label("WebSocket Event Loop Stall")
+@Category({"WebSocket"})
+@StackTrace(false)
+public class EventLoopStallEvent extends Event {
+
+    @Label("Event Loop")
+    public String eventLoop;
+
+    @Label("Stalled")
+    @Timespan(Timespan.MILLISECONDS)
+    public long stalledMillis;
+
+    @Label("Session Id")
+    public String sessionId;
+
+    //Not "stackTrace", that name is the implicit field of JFR events
+    @Label("Thread Stack")
+    public String threadStack;
+}
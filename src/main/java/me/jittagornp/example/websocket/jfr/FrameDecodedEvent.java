@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Frame received and decoded, off by default, enable it for a short recording
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.FrameDecoded")
+@Label("WebSocket Frame Decoded")
+@Category({"WebSocket"})
+@Enabled(false)
+@StackTrace(false)
+public class FrameDecodedEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Opcode")
+    public String opcode;
+
+    @Label("Payload Length")
+    @DataAmount
+    public long payloadLength;
+}
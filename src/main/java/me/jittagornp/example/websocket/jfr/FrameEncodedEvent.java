@@ -0,0 +1,29 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Frame header encoded for write, off by default, enable it for a short recording
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.FrameEncoded")
+@Label("WebSocket Frame Encoded")
+@Category({"WebSocket"})
+@Enabled(false)
+@StackTrace(false)
+public class FrameEncodedEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Opcode")
+    public String opcode;
+
+    @Label("Frame Size")
+    @DataAmount
+    public long size;
+}
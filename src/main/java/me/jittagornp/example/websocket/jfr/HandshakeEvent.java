@@ -0,0 +1,27 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * From accept (TLS handshake included) to the 101 Switching Protocols response
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.Handshake")
+@Label("WebSocket Handshake")
+@Category({"WebSocket"})
+@StackTrace(false)
+public class HandshakeEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("TLS")
+    public boolean tls;
+}
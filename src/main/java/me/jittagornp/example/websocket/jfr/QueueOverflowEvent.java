@@ -0,0 +1,24 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Send queue of a session grew to the high water mark, the client does not read as fast as it is sent to
+ *
+ * @author jitta
+ */
+@Name("me.jittagornp.websocket.QueueOverflow")
+@Label("WebSocket Queue Overflow")
+@Category({"WebSocket"})
+@StackTrace(false)
+public class QueueOverflowEvent extends Event {
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Queue Size")
+    public int queueSize;
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author jitta
+ */
+public final class WebSocketEvents {
+
+    private static final List<Class<? extends Event>> EVENT_CLASSES = Arrays.asList(
+            HandshakeEvent.class,
+            FrameDecodedEvent.class,
+            FrameEncodedEvent.class,
+            DispatchEvent.class,
+            QueueOverflowEvent.class,
+            CloseEvent.class,
+            EventLoopStallEvent.class
+    );
+
+    private WebSocketEvents() {
+
+    }
+
+    /**
+     * Register every event before serving, first use of JFR loads its metadata (~100 ms)
+     * which would otherwise stall an event loop, and concurrent first registrations may fail
+     */
+    public static void register() {
+        EVENT_CLASSES.forEach(FlightRecorder::register);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Connection / pending handshake accounting of {@link AdmissionController}, and slots given back by the server
+ *
+ * @author jitta
+ */
+class AdmissionTest {
+
+    @Test
+    void countsConnectionsAndPendingHandshakes() {
+        final AdmissionController admission = new AdmissionController(AdmissionConfig.builder()
+                .maxConnections(2)
+                .maxPendingHandshakes(1)
+                .build());
+
+        //1. Pending handshake limit
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        assertEquals(1, admission.getConnectionCount());
+        assertEquals(1, admission.getRejectedCount());
+
+        //2. Connection limit, once the first handshake is done
+        admission.handshakeEnded();
+        assertTrue(admission.tryAdmit());
+        admission.handshakeEnded();
+        assertFalse(admission.tryAdmit());
+        assertEquals(2, admission.getConnectionCount());
+        assertEquals(2, admission.getRejectedCount());
+
+        //3. Closed connection frees its slot
+        admission.connectionClosed();
+        assertTrue(admission.tryAdmit());
+        assertEquals(2, admission.getConnectionCount());
+    }
+
+    @Test
+    void resetConnectionsGiveSlotsBack() throws Exception {
+        final int port = TestClient.freePort();
+        final WebSocketServer server = WebSocketServer.port(port)
+                .admission(AdmissionConfig.builder()
+                        .maxConnections(2)
+                        .maxPendingHandshakes(2)
+                        .handshakeTimeout(Duration.ofSeconds(10))
+                        .build())
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+                        webSocket.send(message);
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+
+                    }
+                });
+        TestClient.start(server, port);
+        try {
+            //1. Reconnect storm : reset right after connect, before and after accept
+            for (int i = 0; i < 50; i++) {
+                final Socket socket = new Socket("localhost", port);
+                socket.setSoLinger(true, 0);
+                socket.close();
+            }
+
+            //2. Both slots are free again once the server has seen the resets
+            final List<TestClient> clients = new ArrayList<>();
+            try {
+                clients.add(connectWithRetry(port));
+                clients.add(connectWithRetry(port));
+                for (final TestClient client : clients) {
+                    client.sendText("admitted");
+                    assertEquals("admitted", client.readFrame().getText());
+                }
+            } finally {
+                for (final TestClient client : clients) {
+                    client.close();
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Resets are seen asynchronously, a 503 of the meantime is retried
+     */
+    private static TestClient connectWithRetry(final int port) throws Exception {
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (true) {
+            try {
+                return TestClient.connect(new Socket("localhost", port));
+            } catch (final IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Record layout of {@link TrafficCapture} files, read back by {@link CaptureReader}
+ *
+ * @author jitta
+ */
+class CaptureTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesRecordsAcrossSegments() throws Exception {
+        final Path file = directory.resolve("traffic.capture");
+        //A few records per segment
+        final TrafficCapture capture = new TrafficCapture(CaptureConfig.builder()
+                .file(file)
+                .segmentSize(64)
+                .build());
+        capture.start();
+        final int session = capture.nextSession();
+        capture.recordConnect(session);
+        capture.recordFrame(session, frame(Opcode.TEXT_FRAME, false, true, "first part"));
+        capture.recordFrame(session, frame(Opcode.CONTINUATION_FRAME, true, false, "last part"));
+        capture.recordFrame(session, frame(Opcode.BINARY_FRAME, true, false, "x".repeat(200)));
+        capture.recordDisconnect(session);
+        capture.close();
+        assertEquals(0, capture.getDroppedCount());
+
+        //1. Trimmed after the last record
+        final int payloads = "first part".length() + "last part".length() + 200;
+        assertEquals(TrafficCapture.FILE_HEADER_SIZE + 5 * TrafficCapture.RECORD_HEADER_SIZE + payloads, Files.size(file));
+
+        //2. Raw layout of the file header and the first frame record
+        final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(TrafficCapture.MAGIC, bytes.getInt(0));
+        assertEquals(TrafficCapture.VERSION, bytes.getInt(4));
+        final int frameRecord = TrafficCapture.FILE_HEADER_SIZE + TrafficCapture.RECORD_HEADER_SIZE;
+        assertEquals(TrafficCapture.RECORD_HEADER_SIZE + "first part".length(), bytes.getInt(frameRecord));
+        assertEquals(session, bytes.getInt(frameRecord + 12));
+        assertEquals(TrafficCapture.TYPE_FRAME, bytes.get(frameRecord + 16));
+        //RSV1 and opcode, not FIN
+        assertEquals(0b01000001, bytes.get(frameRecord + 17));
+
+        //3. Read back
+        try (final CaptureReader reader = CaptureReader.open(file)) {
+            assertTrue(reader.next());
+            assertEquals(CaptureReader.RecordType.CONNECT, reader.getType());
+            assertEquals(session, reader.getSession());
+            assertNull(reader.getFrameData());
+            long time = reader.getTimeNanos();
+
+            assertTrue(reader.next());
+            FrameData frameData = reader.getFrameData();
+            assertEquals(Opcode.TEXT_FRAME, frameData.getOpcode());
+            assertFalse(frameData.isFin());
+            assertTrue(frameData.isRSV1());
+            assertEquals("first part", text(frameData));
+            assertTrue(reader.getTimeNanos() >= time);
+            time = reader.getTimeNanos();
+
+            assertTrue(reader.next());
+            frameData = reader.getFrameData();
+            assertEquals(Opcode.CONTINUATION_FRAME, frameData.getOpcode());
+            assertTrue(frameData.isFin());
+            assertEquals("last part", text(frameData));
+            assertTrue(reader.getTimeNanos() >= time);
+
+            //Bigger than a segment
+            assertTrue(reader.next());
+            assertEquals("x".repeat(200), text(reader.getFrameData()));
+
+            assertTrue(reader.next());
+            assertEquals(CaptureReader.RecordType.DISCONNECT, reader.getType());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void stopsAtZerosOfNotClosedCapture() throws Exception {
+        final Path file = directory.resolve("crashed.capture");
+        final TrafficCapture capture = new TrafficCapture(CaptureConfig.builder()
+                .file(file)
+                .build());
+        capture.start();
+        final int session = capture.nextSession();
+        capture.recordConnect(session);
+        capture.recordFrame(session, frame(Opcode.TEXT_FRAME, true, false, "hello"));
+        capture.close();
+
+        //Rest of the last segment, as left by a crash
+        Files.write(file, new byte[1024], StandardOpenOption.APPEND);
+
+        try (final CaptureReader reader = CaptureReader.open(file)) {
+            assertTrue(reader.next());
+            assertTrue(reader.next());
+            assertEquals("hello", text(reader.getFrameData()));
+            assertFalse(reader.next());
+        }
+    }
+
+    private static FrameData frame(final Opcode opcode, final boolean fin, final boolean rsv1, final String payload) {
+        return FrameData.builder()
+                .fin(fin)
+                .rsv1(rsv1)
+                .opcode(opcode)
+                .mask(false)
+                .payloadData(ByteBufferUtils.create(payload))
+                .build();
+    }
+
+    private static String text(final FrameData frameData) {
+        return StandardCharsets.UTF_8.decode(ByteBufferUtils.readView(frameData.getPayloadData())).toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Close handshake of the event loop server (RFC6455 section 7) : started by the client, by the server
+ * after its queued messages, and failed by a protocol error
+ *
+ * @author jitta
+ */
+class CloseHandshakeTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final int BURST_SIZE = 1000;
+
+    private WebSocketServer server;
+
+    private int port;
+
+    private CompletableFuture<CloseStatus> disconnected;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        disconnected = new CompletableFuture<>();
+        port = TestClient.freePort();
+        server = WebSocketServer.port(port)
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+                        if ("close".equals(message)) {
+                            webSocket.close(CloseStatus.GOING_AWAY);
+                            return;
+                        }
+                        if ("burst".equals(message)) {
+                            for (int i = 0; i < BURST_SIZE; i++) {
+                                webSocket.send("message-" + i);
+                            }
+                            webSocket.close(CloseStatus.GOING_AWAY);
+                            return;
+                        }
+                        webSocket.send(message);
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+                        disconnected.complete(status);
+                    }
+                });
+        TestClient.start(server, port);
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    void closeStartedByClient() throws Exception {
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            client.sendText("hello");
+            assertEquals("hello", client.readFrame().getText());
+
+            //1. Close frame is answered with the same status, then the server closes the connection
+            client.sendClose(CloseStatus.NORMAL);
+            final TestClient.Frame reply = client.readFrame();
+            assertEquals(Opcode.CONNECTION_CLOSE, reply.getOpcode());
+            assertEquals(CloseStatus.NORMAL.getCode(), reply.getCloseCode());
+            assertTrue(client.isClosedByServer());
+        }
+        assertEquals(CloseStatus.NORMAL, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void closeStartedByServer() throws Exception {
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            client.sendText("close");
+
+            //1. Close frame of close(), the connection stays open until the client answers
+            final TestClient.Frame close = client.readFrame();
+            assertEquals(Opcode.CONNECTION_CLOSE, close.getOpcode());
+            assertEquals(CloseStatus.GOING_AWAY.getCode(), close.getCloseCode());
+
+            //2. Answer, then the server closes the connection
+            client.sendClose(CloseStatus.GOING_AWAY);
+            assertTrue(client.isClosedByServer());
+        }
+        assertEquals(CloseStatus.GOING_AWAY, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void queuedMessagesGoBeforeCloseFrame() throws Exception {
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            client.sendText("burst");
+
+            //1. Every message sent before close(), in order
+            for (int i = 0; i < BURST_SIZE; i++) {
+                assertEquals("message-" + i, client.readFrame().getText());
+            }
+
+            //2. Then the close frame
+            final TestClient.Frame close = client.readFrame();
+            assertEquals(Opcode.CONNECTION_CLOSE, close.getOpcode());
+            client.sendClose(CloseStatus.GOING_AWAY);
+            assertTrue(client.isClosedByServer());
+        }
+        assertEquals(CloseStatus.GOING_AWAY, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void protocolErrorClosesWithStatus() throws Exception {
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            //Reserved opcode 0x3
+            client.sendFrame(0x83, new byte[0]);
+
+            final TestClient.Frame close = client.readFrame();
+            assertEquals(Opcode.CONNECTION_CLOSE, close.getOpcode());
+            assertEquals(CloseStatus.PROTOCOL_ERROR.getCode(), close.getCloseCode());
+            client.sendClose(CloseStatus.PROTOCOL_ERROR);
+            assertTrue(client.isClosedByServer());
+        }
+        disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        //Other connections of the event loop are not affected
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            client.sendText("still open");
+            assertEquals("still open", client.readFrame().getText());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Envelopes of {@link ClusterLink} : topic length limit and batches with bad envelopes from a peer
+ *
+ * @author jitta
+ */
+class ClusterLinkTest {
+
+    private List<String> published;
+
+    private PubSubImpl pubSub;
+
+    private ClusterLink link;
+
+    @BeforeEach
+    void createLink() {
+        published = new ArrayList<>();
+        pubSub = new PubSubImpl(new ByteBufferPool(4)) {
+            @Override
+            public int publishLocal(final String topic, final Opcode opcode, final ByteBuffer payloadData) {
+                published.add(topic + ":" + opcode + ":" + StandardCharsets.UTF_8.decode(payloadData));
+                return 0;
+            }
+        };
+        link = new ClusterLink(new LocalClusterBus(new LocalClusterBus.Hub(), "node-1"), pubSub);
+    }
+
+    @AfterEach
+    void closeLink() {
+        link.close();
+    }
+
+    @Test
+    void skipsEnvelopeWithUnknownOpcode() {
+        final ByteBuffer batch = ByteBuffer.allocate(256);
+        putEnvelope(batch, "a", (byte) 0x3, "reserved");
+        putEnvelope(batch, "b", Opcode.TEXT_FRAME.getByteValue(), "text");
+
+        link.onReceive("node-2", batch.flip());
+
+        assertEquals(List.of("b:TEXT_FRAME:text"), published);
+    }
+
+    @Test
+    void stopsAtEnvelopeLongerThanBatch() {
+        final ByteBuffer batch = ByteBuffer.allocate(256);
+        putEnvelope(batch, "a", Opcode.TEXT_FRAME.getByteValue(), "text");
+        //Payload length of 1000, only 4 bytes follow
+        batch.put((byte) 1).putShort((short) 1).put((byte) 'b').put(Opcode.TEXT_FRAME.getByteValue()).putInt(1000).putInt(0);
+
+        link.onReceive("node-2", batch.flip());
+
+        assertEquals(List.of("a:TEXT_FRAME:text"), published);
+    }
+
+    @Test
+    void stopsAtTruncatedHeader() {
+        final ByteBuffer batch = ByteBuffer.allocate(256);
+        putEnvelope(batch, "a", Opcode.TEXT_FRAME.getByteValue(), "text");
+        //Topic length of 10, only 2 bytes follow
+        batch.put((byte) 1).putShort((short) 10).put((byte) 'b').put((byte) 'c');
+
+        link.onReceive("node-2", batch.flip());
+
+        assertEquals(List.of("a:TEXT_FRAME:text"), published);
+    }
+
+    @Test
+    void rejectsTopicLongerThanLengthField() {
+        final String topic = "x".repeat(ClusterLink.MAX_TOPIC_LENGTH + 1);
+        assertThrows(IllegalArgumentException.class, () -> pubSub.publish(topic, "message"));
+        assertThrows(IllegalArgumentException.class, () -> pubSub.publish(topic, ByteBuffer.allocate(1)));
+
+        //3 UTF-8 bytes per char, over the limit with a third of the chars
+        final String wideTopic = "ก".repeat(ClusterLink.MAX_TOPIC_LENGTH / 3 + 1);
+        assertThrows(IllegalArgumentException.class, () -> pubSub.publish(wideTopic, "message"));
+
+        //Last line of defence, nothing is written to the batch of the peer
+        link.onPeerJoined("node-2");
+        assertThrows(IllegalArgumentException.class, () -> link.subscribed(topic));
+    }
+
+    private static void putEnvelope(final ByteBuffer batch, final String topic, final byte opcode, final String payload) {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        batch.put((byte) 1)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .put(opcode)
+                .putInt(payloadBytes.length)
+                .put(payloadBytes);
+    }
+}
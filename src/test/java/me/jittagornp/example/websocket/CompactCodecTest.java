@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips of {@link CompactCodec}, and malformed payloads which must fail with IllegalArgumentException
+ *
+ * @author jitta
+ */
+class CompactCodecTest {
+
+    private final CompactCodec codec = CompactCodec.getInstance();
+
+    @Test
+    void roundTripsEveryValueType() {
+        final Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("bid", 101.25);
+        nested.put("tags", List.of("fx", "สวัสดี"));
+
+        final Map<String, Object> message = new LinkedHashMap<>();
+        message.put("null", null);
+        message.put("true", true);
+        message.put("false", false);
+        message.put("zero", 0L);
+        message.put("negative", -1L);
+        message.put("min", Long.MIN_VALUE);
+        message.put("max", Long.MAX_VALUE);
+        message.put("double", -0.5);
+        message.put("text", "price 📈 ราคา");
+        message.put("list", Arrays.asList(1L, null, "two", List.of(3L)));
+        message.put("map", nested);
+        message.put("ключ", "");
+
+        final Map<String, Object> decoded = roundTrip(message);
+        assertEquals(message, decoded);
+        //Key order is kept
+        assertEquals(new ArrayList<>(message.keySet()), new ArrayList<>(decoded.keySet()));
+    }
+
+    @Test
+    void widensNumbersAndKeepsBytes() {
+        final Map<String, Object> message = new LinkedHashMap<>();
+        message.put("int", 7);
+        message.put("short", (short) -3);
+        message.put("float", 1.5f);
+        message.put("bytes", new byte[]{0, 1, (byte) 0xFF});
+        message.put("builder", new StringBuilder("chars"));
+        //Unpaired surrogate
+        message.put("broken", "a\uD800b");
+
+        final Map<String, Object> decoded = roundTrip(message);
+        assertEquals(7L, decoded.get("int"));
+        assertEquals(-3L, decoded.get("short"));
+        assertEquals(1.5, decoded.get("float"));
+        assertTrue(Arrays.equals(new byte[]{0, 1, (byte) 0xFF}, (byte[]) decoded.get("bytes")));
+        assertEquals("chars", decoded.get("builder"));
+        assertEquals("a?b", decoded.get("broken"));
+    }
+
+    @Test
+    void rejectsUnsupportedValuesWhenEncoding() {
+        assertThrows(IllegalArgumentException.class, () -> codec.getEncodedSize(Map.of("date", new Object())));
+        assertThrows(IllegalArgumentException.class, () -> codec.getEncodedSize(Map.of("map", Map.of(1, "not a String key"))));
+
+        //Nested deeper than the limit, also what a cycle would do
+        Object value = "leaf";
+        for (int i = 0; i < 100; i++) {
+            value = List.of(value);
+        }
+        final Map<String, Object> deep = Map.of("deep", value);
+        assertThrows(IllegalArgumentException.class, () -> codec.getEncodedSize(deep));
+    }
+
+    @Test
+    void rejectsTruncatedPayload() {
+        final Map<String, Object> message = new LinkedHashMap<>();
+        message.put("symbol", "EURUSD");
+        message.put("bid", 1.0875);
+        message.put("sizes", List.of(1_000_000L, 250_000L));
+        final ByteBuffer encoded = encode(message);
+
+        //Every prefix shorter than the message
+        for (int length = 0; length < encoded.remaining(); length++) {
+            final ByteBuffer truncated = encoded.duplicate().limit(length);
+            assertThrows(IllegalArgumentException.class, () -> codec.decode(truncated));
+        }
+    }
+
+    @Test
+    void rejectsMalformedPayload() {
+        //1. Bytes after the message
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{0, 0})));
+
+        //2. Unknown tag
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{1, 1, 'k', 9})));
+
+        //3. Count far over the remaining bytes, nothing is allocated for it
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F})));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{1, 1, 'k', 6, (byte) 0xFF, 0x7F})));
+
+        //4. Varint longer than 64 bits
+        final byte[] varint = new byte[12];
+        Arrays.fill(varint, (byte) 0x80);
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(varint)));
+
+        //5. Invalid UTF-8 : lone continuation byte, lead byte without continuation
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{1, 1, (byte) 0x80, 0})));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{1, 1, (byte) 0xC3, 0})));
+
+        //6. Nested deeper than the limit
+        final ByteBuffer deep = ByteBuffer.allocate(3 + 2 * 100 + 1).put((byte) 1).put((byte) 1).put((byte) 'k');
+        for (int i = 0; i < 100; i++) {
+            deep.put((byte) 7).put((byte) 1);
+        }
+        deep.put((byte) 0).flip();
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(deep));
+    }
+
+    private ByteBuffer encode(final Map<String, Object> message) {
+        final int size = codec.getEncodedSize(message);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        codec.encode(message, buffer);
+        //Size is exact
+        assertEquals(size, buffer.position());
+        return buffer.flip();
+    }
+
+    private Map<String, Object> roundTrip(final Map<String, Object> message) {
+        return codec.decode(encode(message));
+    }
+}
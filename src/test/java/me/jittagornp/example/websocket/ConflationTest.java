@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Last value wins of {@link WebSocket#sendConflated(String, String)} on the queue of a session
+ *
+ * @author jitta
+ */
+class ConflationTest {
+
+    private final FrameDataByteBufferConverter converter = new FrameDataByteBufferConverterImpl();
+
+    @Test
+    void newerValueTakesPlaceOfQueuedOne() {
+        final WebSocketImpl session = new WebSocketImpl();
+        session.sendConflated("EURUSD", "1.0871");
+        session.send("trade");
+        session.sendConflated("GBPUSD", "1.2650");
+        session.sendConflated("EURUSD", "1.0872");
+        session.sendConflated("EURUSD", "1.0875");
+
+        //Latest value, in the place of the first queued one of the key
+        assertEquals(List.of("1.0875", "trade", "1.2650"), drain(session));
+    }
+
+    @Test
+    void frameBeingWrittenIsNotReplaced() {
+        final WebSocketImpl session = new WebSocketImpl();
+        session.sendConflated("EURUSD", "1.0871");
+
+        //1. Partially written, its bytes are already on the socket
+        session.getWriteBuffers(converter);
+        session.sendConflated("EURUSD", "1.0872");
+        session.completeWrite();
+
+        //2. Queued after it, and conflated from there
+        session.sendConflated("EURUSD", "1.0875");
+        assertEquals(List.of("1.0875"), drain(session));
+    }
+
+    @Test
+    void keyIsFreeOnceWritten() {
+        final WebSocketImpl session = new WebSocketImpl();
+        session.sendConflated("EURUSD", "1.0871");
+        assertEquals(List.of("1.0871"), drain(session));
+
+        session.sendConflated("EURUSD", "1.0872");
+        assertEquals(List.of("1.0872"), drain(session));
+    }
+
+    /**
+     * Write every frame which can be written now, as the event loop does
+     */
+    private List<String> drain(final WebSocketImpl session) {
+        final List<String> payloads = new ArrayList<>();
+        while (session.hasQueuedMessages()) {
+            payloads.add(StandardCharsets.UTF_8.decode(session.getWriteBuffers(converter)[1]).toString());
+            session.completeWrite();
+        }
+        assertFalse(session.hasPendingWrites());
+        return payloads;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decoding limits of {@link FrameHeader} : lengths, max payload length, reserved opcodes, incomplete headers,
+ * and status codes of close frames
+ *
+ * @author jitta
+ */
+class FrameHeaderTest {
+
+    private static final long MAX_PAYLOAD_LENGTH = 1024;
+
+    @Test
+    void decodesEveryLengthEncoding() {
+        final FrameHeader header = new FrameHeader();
+
+        //1. 7 bits, masked
+        final ByteBuffer small = ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) 0x85, 1, 2, 3, 4});
+        assertTrue(header.decode(small, MAX_PAYLOAD_LENGTH));
+        assertTrue(header.isFin());
+        assertEquals(Opcode.TEXT_FRAME, header.getOpcode());
+        assertTrue(header.isMask());
+        assertEquals(0x01020304, header.getMaskingKey());
+        assertEquals(5, header.getPayloadLength());
+        assertEquals(6, header.getHeaderLength());
+        assertEquals(6, small.position());
+
+        //2. 7+16 bits
+        final ByteBuffer medium = ByteBuffer.wrap(new byte[]{(byte) 0x82, 126, 0x01, 0x00});
+        assertTrue(header.decode(medium, MAX_PAYLOAD_LENGTH));
+        assertEquals(Opcode.BINARY_FRAME, header.getOpcode());
+        assertFalse(header.isMask());
+        assertEquals(256, header.getPayloadLength());
+        assertEquals(4, header.getHeaderLength());
+
+        //3. 7+64 bits
+        final ByteBuffer large = ByteBuffer.allocate(10).put((byte) 0x82).put((byte) 127).putLong(1000).flip();
+        assertTrue(header.decode(large, MAX_PAYLOAD_LENGTH));
+        assertEquals(1000, header.getPayloadLength());
+        assertEquals(10, header.getHeaderLength());
+    }
+
+    @Test
+    void waitsForIncompleteHeader() {
+        final FrameHeader header = new FrameHeader();
+
+        //Extended length and masking key are missing
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) (0x80 | 126), 0x01});
+        assertFalse(header.decode(byteBuffer, MAX_PAYLOAD_LENGTH));
+        assertEquals(0, byteBuffer.position());
+
+        assertFalse(header.decode(ByteBuffer.wrap(new byte[]{(byte) 0x81}), MAX_PAYLOAD_LENGTH));
+    }
+
+    @Test
+    void rejectsPayloadOverMaxPayloadLength() {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[]{(byte) 0x82, 126, 0x04, 0x01});
+        final WebSocketException e = assertThrows(WebSocketException.class, () -> new FrameHeader().decode(byteBuffer, MAX_PAYLOAD_LENGTH));
+        assertEquals(CloseStatus.TOO_BIG, e.getStatus());
+    }
+
+    @Test
+    void rejectsMostSignificantBitOfLength() {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(10).put((byte) 0x82).put((byte) 127).putLong(Long.MIN_VALUE).flip();
+        final WebSocketException e = assertThrows(WebSocketException.class, () -> new FrameHeader().decode(byteBuffer, Long.MAX_VALUE));
+        assertEquals(CloseStatus.PROTOCOL_ERROR, e.getStatus());
+    }
+
+    @Test
+    void rejectsReservedOpcodes() {
+        for (final int opcode : new int[]{0x3, 0x7, 0xB, 0xF}) {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[]{(byte) (0x80 | opcode), 0});
+            final WebSocketException e = assertThrows(WebSocketException.class, () -> new FrameHeader().decode(byteBuffer, MAX_PAYLOAD_LENGTH));
+            assertEquals(CloseStatus.PROTOCOL_ERROR, e.getStatus());
+        }
+    }
+
+    @Test
+    void rejectsFrameLargerThanBuffer() {
+        //Valid length under a max payload length of Long.MAX_VALUE, but header + payload does not fit in an int
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(10).put((byte) 0x82).put((byte) 127).putLong(Integer.MAX_VALUE - 5).flip();
+        final FrameHeader header = new FrameHeader();
+        assertTrue(header.decode(byteBuffer, Long.MAX_VALUE));
+        final WebSocketException e = assertThrows(WebSocketException.class, () -> WebSocketServer.getBufferableFrameSize(header));
+        assertEquals(CloseStatus.TOO_BIG, e.getStatus());
+    }
+
+    @Test
+    void growsReadBufferAsBytesArrive() {
+        //First bytes of a 16 MB frame : one more read, not the frame size
+        assertEquals(10 + 4096, WebSocketServer.growReadBufferSize(16 * 1024 * 1024, 10, 4096));
+        //Doubles with what is buffered
+        assertEquals(2 * 1024 * 1024, WebSocketServer.growReadBufferSize(16 * 1024 * 1024, 1024 * 1024, 4096));
+        //Never more than the frame
+        assertEquals(1500, WebSocketServer.growReadBufferSize(1500, 1000, 64));
+    }
+
+    @Test
+    void decodesCloseCodesAsUnsigned() {
+        assertEquals(CloseStatus.GOING_AWAY, WebSocketServer.convertToCloseStatus(closeFrame(ByteBuffer.allocate(2).putShort((short) 1001))));
+        assertEquals(CloseStatus.SERVICE_RESTART, WebSocketServer.convertToCloseStatus(closeFrame(ByteBuffer.allocate(8).putShort((short) 1012).put((byte) 'r'))));
+        //No status code in the payload
+        assertEquals(CloseStatus.NO_STATUS_CODE, WebSocketServer.convertToCloseStatus(closeFrame(ByteBuffer.allocate(2))));
+        //Negative as a short, unknown as a 16 bits code
+        assertEquals(CloseStatus.NORMAL, WebSocketServer.convertToCloseStatus(closeFrame(ByteBuffer.allocate(2).putShort((short) 0xFFFF))));
+    }
+
+    private static FrameData closeFrame(final ByteBuffer payloadData) {
+        return FrameData.builder()
+                .fin(true)
+                .opcode(Opcode.CONNECTION_CLOSE)
+                .payloadData(payloadData)
+                .build();
+    }
+}
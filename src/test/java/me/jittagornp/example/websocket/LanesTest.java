@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write order of the control, priority and message lanes of a session
+ *
+ * @author jitta
+ */
+class LanesTest {
+
+    private final FrameDataByteBufferConverter converter = new FrameDataByteBufferConverterImpl();
+
+    @Test
+    void controlThenPriorityThenMessages() {
+        final WebSocketImpl session = new WebSocketImpl();
+        session.send("m1");
+        session.send("m2");
+        session.sendPriority("p1");
+        session.send(frame(Opcode.PING, true, "ping"));
+        session.sendPriority("p2");
+
+        assertEquals(List.of("PING:ping", "TEXT_FRAME:p1", "TEXT_FRAME:p2", "TEXT_FRAME:m1", "TEXT_FRAME:m2"), drain(session));
+    }
+
+    @Test
+    void fragmentedMessageIsNotInterleaved() {
+        final WebSocketImpl session = new WebSocketImpl();
+
+        //1. First fragment is written, the rest is not queued yet
+        session.send(frame(Opcode.TEXT_FRAME, false, "part1"));
+        assertEquals(List.of("TEXT_FRAME:part1"), drain(session));
+
+        //2. Priority data waits for the end of the message, control frames do not
+        session.sendPriority("p1");
+        session.send(frame(Opcode.PING, true, "ping"));
+        assertEquals(List.of("PING:ping"), drain(session));
+
+        //3. Last fragment, then the priority message
+        session.send(frame(Opcode.CONTINUATION_FRAME, true, "part2"));
+        assertEquals(List.of("CONTINUATION_FRAME:part2", "TEXT_FRAME:p1"), drain(session));
+    }
+
+    @Test
+    void closeFrameStaysBehindQueuedMessages() {
+        final WebSocketImpl session = new WebSocketImpl();
+        session.send("m1");
+        session.sendCloseFrame(ByteBuffer.allocate(2).putShort((short) CloseStatus.NORMAL.getCode()));
+        //Dropped, nothing is sent after a close frame
+        session.sendPriority("late");
+
+        final List<String> frames = drain(session);
+        assertEquals(2, frames.size());
+        assertEquals("TEXT_FRAME:m1", frames.get(0));
+        assertTrue(frames.get(1).startsWith("CONNECTION_CLOSE:"));
+    }
+
+    private static FrameData frame(final Opcode opcode, final boolean fin, final String payload) {
+        return FrameData.builder()
+                .fin(fin)
+                .opcode(opcode)
+                .mask(false)
+                .payloadData(ByteBufferUtils.create(payload))
+                .build();
+    }
+
+    /**
+     * Write every frame which can be written now, as the event loop does
+     */
+    private List<String> drain(final WebSocketImpl session) {
+        final List<String> frames = new ArrayList<>();
+        while (session.hasQueuedMessages()) {
+            final ByteBuffer[] writeBuffers = session.getWriteBuffers(converter);
+            //Opcode from the first byte of the header
+            final Opcode opcode = Opcode.fromByteValue((byte) (writeBuffers[0].get(0) & 0x0F));
+            frames.add(opcode + ":" + StandardCharsets.UTF_8.decode(writeBuffers[1]));
+            session.completeWrite();
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Resume from an offset at handshake : replay of the topic history, then live messages
+ *
+ * @author jitta
+ */
+class ResumeTest {
+
+    private WebSocketServer server;
+
+    private PubSub pubSub;
+
+    private int port;
+
+    private CompletableFuture<WebSocket> connected;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        connected = new CompletableFuture<>();
+        port = TestClient.freePort();
+        server = WebSocketServer.port(port)
+                .history(HistoryConfig.builder()
+                        .resumeAuthorizer((webSocket, topic, request) -> topic.startsWith("chat."))
+                        .build())
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+                        connected.complete(webSocket);
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+                        //Priority lane only, nothing else is sent to this session afterwards
+                        webSocket.sendPriority("priority:" + message);
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+
+                    }
+                });
+        pubSub = server.getPubSub();
+        TestClient.start(server, port);
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    void replaysThenSendsPriorityMessage() throws Exception {
+        pubSub.publish("chat.room", "m1");
+        pubSub.publish("chat.room", "m2");
+        pubSub.publish("chat.room", "m3");
+
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port), "/?resume=chat.room:1")) {
+            //1. Frames after offset 1, whole messages
+            assertEquals("m2", client.readFrame().getText());
+            assertEquals("m3", client.readFrame().getText());
+
+            //2. A replayed frame does not leave the session inside a fragmented message, which would hold priority frames
+            client.sendText("after resume");
+            assertEquals("priority:after resume", client.readFrame().getText());
+
+            //3. Subscribed from there
+            pubSub.publish("chat.room", "m4");
+            assertEquals("m4", client.readFrame().getText());
+        }
+    }
+
+    @Test
+    void refusedResumeIsNotSubscribed() throws Exception {
+        pubSub.publish("admin.audit", "secret");
+
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port), "/?resume=admin.audit:0")) {
+            client.sendText("hello");
+            assertEquals("priority:hello", client.readFrame().getText());
+            final WebSocket webSocket = connected.get(5, TimeUnit.SECONDS);
+            assertTrue(pubSub.getSubscriptions(webSocket).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * stop() and drain() : every session is told, with or without closing handshake
+ *
+ * @author jitta
+ */
+class ShutdownTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    void stopCallsOnDisconnect() throws Exception {
+        final CompletableFuture<CloseStatus> disconnected = new CompletableFuture<>();
+        final int port = TestClient.freePort();
+        final WebSocketServer server = createServer(port, disconnected);
+        TestClient.start(server, port);
+
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            client.sendText("hello");
+            assertEquals("hello", client.readFrame().getText());
+
+            server.stop();
+            assertEquals(CloseStatus.ABNORMAL_CLOSE, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertTrue(client.isClosedByServer());
+        }
+    }
+
+    @Test
+    void drainSendsCloseFrame() throws Exception {
+        final CompletableFuture<CloseStatus> disconnected = new CompletableFuture<>();
+        final int port = TestClient.freePort();
+        final WebSocketServer server = createServer(port, disconnected);
+        TestClient.start(server, port);
+
+        try (final TestClient client = TestClient.connect(new Socket("localhost", port))) {
+            final CompletableFuture<Void> drained = server.drain(Duration.ofSeconds(TIMEOUT_SECONDS));
+
+            final TestClient.Frame close = client.readFrame();
+            assertEquals(Opcode.CONNECTION_CLOSE, close.getOpcode());
+            assertEquals(CloseStatus.SERVICE_RESTART.getCode(), close.getCloseCode());
+            client.sendClose(CloseStatus.SERVICE_RESTART);
+
+            drained.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(CloseStatus.SERVICE_RESTART, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    private static WebSocketServer createServer(final int port, final CompletableFuture<CloseStatus> disconnected) {
+        return WebSocketServer.port(port)
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+                        webSocket.send(message);
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+                        disconnected.complete(status);
+                    }
+                });
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Plain HTTP requests of files, next to the WebSocket endpoint
+ *
+ * @author jitta
+ */
+class StaticFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void malformedPathIsBadRequest() throws Exception {
+        Files.writeString(directory.resolve("index.html"), "<h1>hello</h1>");
+        final int port = TestClient.freePort();
+        final WebSocketServer server = WebSocketServer.port(port)
+                .staticFiles(StaticFileConfig.builder()
+                        .directory(directory)
+                        .build())
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+
+                    }
+                });
+        TestClient.start(server, port);
+        try (final Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            final OutputStream out = socket.getOutputStream();
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+
+            //1. Malformed escape, and a NUL which no file name may have, the connection stays usable
+            assertEquals("HTTP/1.1 400 Bad Request", request(out, in, "/%zz"));
+            assertEquals("HTTP/1.1 400 Bad Request", request(out, in, "/%00"));
+
+            //2. Still served afterwards
+            assertEquals("HTTP/1.1 200 OK", request(out, in, "/index.html"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return status line, the rest of the response is skipped
+     */
+    private static String request(final OutputStream out, final BufferedReader in, final String path) throws Exception {
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        final String statusLine = in.readLine();
+        int contentLength = 0;
+        String line;
+        while (!(line = in.readLine()).isEmpty()) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            in.read();
+        }
+        return statusLine;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw WebSocket client of the tests : masked frames built by hand, frames read as they come,
+ * so the tests see exactly what the server sends.
+ *
+ * @author jitta
+ */
+class TestClient implements AutoCloseable {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private static final byte[] MASKING_KEY = {1, 2, 3, 4};
+
+    private final Socket socket;
+
+    private final OutputStream outputStream;
+
+    private final DataInputStream inputStream;
+
+    TestClient(final Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setSoTimeout(TIMEOUT_MILLIS);
+        this.outputStream = socket.getOutputStream();
+        this.inputStream = new DataInputStream(socket.getInputStream());
+    }
+
+    /**
+     * Connected and upgraded
+     */
+    static TestClient connect(final Socket socket) throws IOException {
+        return connect(socket, "/");
+    }
+
+    /**
+     * @param path request target, e.g. with a query string
+     */
+    static TestClient connect(final Socket socket, final String path) throws IOException {
+        final TestClient client = new TestClient(socket);
+        client.handShake(path);
+        return client;
+    }
+
+    static int freePort() throws IOException {
+        try (final ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * start() of the server on a daemon thread, returns when the port accepts connections
+     */
+    static void start(final WebSocketServer server, final int port) throws Exception {
+        final Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }, "websocket-server-test");
+        thread.setDaemon(true);
+        thread.start();
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (final IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void handShake(final String path) throws IOException {
+        final String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "\r\n";
+        outputStream.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+
+        final StringBuilder response = new StringBuilder();
+        while (response.indexOf("\r\n\r\n") < 0) {
+            final int b = inputStream.read();
+            if (b < 0) {
+                throw new IOException("Connection closed during handshake : " + response);
+            }
+            response.append((char) b);
+        }
+        if (!response.toString().startsWith("HTTP/1.1 101")) {
+            throw new IOException("Not upgraded : " + response);
+        }
+    }
+
+    void sendText(final String message) throws IOException {
+        sendFrame(0x80 | Opcode.TEXT_FRAME.getByteValue(), message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void sendClose(final CloseStatus status) throws IOException {
+        sendFrame(0x80 | Opcode.CONNECTION_CLOSE.getByteValue(), new byte[]{(byte) (status.getCode() >> 8), (byte) status.getCode()});
+    }
+
+    /**
+     * @param firstByte FIN, RSV and opcode bits
+     */
+    void sendFrame(final int firstByte, final byte[] payload) throws IOException {
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(firstByte);
+        if (payload.length <= 125) {
+            frame.write(0x80 | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                frame.write((int) ((long) payload.length >> (8 * i)));
+            }
+        }
+        frame.write(MASKING_KEY);
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(payload[i] ^ MASKING_KEY[i % 4]);
+        }
+        outputStream.write(frame.toByteArray());
+        outputStream.flush();
+    }
+
+    /**
+     * Server frames are never masked
+     */
+    Frame readFrame() throws IOException {
+        final int firstByte = inputStream.readUnsignedByte();
+        final int length = inputStream.readUnsignedByte() & 0x7F;
+        final long payloadLength = (length == 126) ? inputStream.readUnsignedShort()
+                : (length == 127) ? inputStream.readLong()
+                : length;
+        final byte[] payload = new byte[(int) payloadLength];
+        inputStream.readFully(payload);
+        return new Frame(Opcode.fromByteValue((byte) (firstByte & 0x0F)), payload);
+    }
+
+    /**
+     * true when the server has closed the connection (end of stream)
+     */
+    boolean isClosedByServer() throws IOException {
+        return inputStream.read() < 0;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    static class Frame {
+
+        private final Opcode opcode;
+
+        private final byte[] payload;
+
+        private Frame(final Opcode opcode, final byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        Opcode getOpcode() {
+            return opcode;
+        }
+
+        String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Status code of a close frame
+         */
+        int getCloseCode() {
+            return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * wss:// round trip through {@link TlsWebSocketChannel} : TLS handshake, upgrade, messages larger than a TLS record
+ * and close handshake, with a self-signed key store generated by keytool of the running JDK
+ *
+ * @author jitta
+ */
+class TlsRoundTripTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void roundTrip() throws Exception {
+        final Path keyStorePath = generateKeyStore(tempDir.resolve("server.p12"));
+        final CompletableFuture<CloseStatus> disconnected = new CompletableFuture<>();
+        final int port = TestClient.freePort();
+        final WebSocketServer server = WebSocketServer.port(port)
+                .tls(TlsConfig.builder()
+                        .sslContext(TlsConfig.createSslContext(keyStorePath, PASSWORD))
+                        .build())
+                .addWebSocketHandler(new TextWebSocketHandler() {
+                    @Override
+                    public void onConnect(final WebSocket webSocket) {
+
+                    }
+
+                    @Override
+                    public void onMessage(final WebSocket webSocket, final String message) {
+                        webSocket.send(message);
+                    }
+
+                    @Override
+                    public void onError(final WebSocket webSocket, final Throwable e) {
+
+                    }
+
+                    @Override
+                    public void onDisconnect(final WebSocket webSocket, final CloseStatus status) {
+                        disconnected.complete(status);
+                    }
+                });
+        TestClient.start(server, port);
+        try {
+            final SSLSocket socket = (SSLSocket) createClientSslContext(keyStorePath).getSocketFactory().createSocket("localhost", port);
+            socket.startHandshake();
+            try (final TestClient client = TestClient.connect(socket)) {
+                //1. Small message, then one of several TLS records (16 KB each)
+                client.sendText("hello");
+                assertEquals("hello", client.readFrame().getText());
+
+                final String large = "x".repeat(100_000);
+                client.sendText(large);
+                assertEquals(large, client.readFrame().getText());
+
+                //2. Close handshake over TLS
+                client.sendClose(CloseStatus.NORMAL);
+                final TestClient.Frame reply = client.readFrame();
+                assertEquals(Opcode.CONNECTION_CLOSE, reply.getOpcode());
+                assertEquals(CloseStatus.NORMAL.getCode(), reply.getCloseCode());
+                assertTrue(isClosed(client.getInputStream()));
+            }
+            assertEquals(CloseStatus.NORMAL, disconnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * keytool -genkeypair of the JDK which runs the test, PKCS12 (default key store type)
+     */
+    private static Path generateKeyStore(final Path keyStorePath) throws IOException, InterruptedException {
+        final Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        final Process process = new ProcessBuilder(
+                keytool.toString(), "-genkeypair",
+                "-alias", "server",
+                "-keyalg", "RSA",
+                "-keysize", "2048",
+                "-validity", "1",
+                "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost",
+                "-storetype", "PKCS12",
+                "-keystore", keyStorePath.toString(),
+                "-storepass", new String(PASSWORD),
+                "-keypass", new String(PASSWORD)
+        ).redirectErrorStream(true).start();
+        final String output = new String(process.getInputStream().readAllBytes());
+        if (!process.waitFor(30, TimeUnit.SECONDS) || process.exitValue() != 0 || !Files.exists(keyStorePath)) {
+            throw new IOException("keytool failed : " + output);
+        }
+        return keyStorePath;
+    }
+
+    /**
+     * Trusts the self-signed certificate of the key store only
+     */
+    private static SSLContext createClientSslContext(final Path keyStorePath) throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (final InputStream inputStream = Files.newInputStream(keyStorePath)) {
+            keyStore.load(inputStream, PASSWORD);
+        }
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    /**
+     * End of stream, or the server has closed without close_notify
+     */
+    private static boolean isClosed(final InputStream inputStream) {
+        try {
+            return inputStream.read() < 0;
+        } catch (final IOException e) {
+            return true;
+        }
+    }
+}
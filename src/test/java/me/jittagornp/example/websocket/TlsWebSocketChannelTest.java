@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import me.jittagornp.example.util.ByteBufferPool;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes of {@link TlsWebSocketChannel} while the engine waits for handshake messages of the peer
+ *
+ * @author jitta
+ */
+class TlsWebSocketChannelTest {
+
+    @Test
+    void writeReturnsWhenWrapMakesNoProgress() throws Exception {
+        try (final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             final SocketChannel peer = SocketChannel.open(serverSocketChannel.getLocalAddress());
+             final SocketChannel accepted = serverSocketChannel.accept()) {
+            final TlsWebSocketChannel channel = new TlsWebSocketChannel(accepted, new WaitingForPeerEngine(), new ByteBufferPool(4));
+
+            //Would loop forever on OK / 0 consumed / 0 produced
+            final CompletableFuture<Long> write = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return channel.write(new ByteBuffer[]{ByteBuffer.wrap(new byte[100])}, 0, 1);
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            final long written = write.get(5, TimeUnit.SECONDS);
+            assertEquals(0, written);
+            assertTrue(channel.isWaitingForRead());
+
+            //No record has been sent
+            peer.configureBlocking(false);
+            assertEquals(0, peer.read(ByteBuffer.allocate(16)));
+        }
+    }
+
+    /**
+     * Server engine in the middle of a renegotiation started by the peer : wrap() consumes and produces nothing
+     * until the next handshake message of the peer is unwrapped
+     */
+    private static class WaitingForPeerEngine extends SSLEngine {
+
+        private final SSLEngine delegate;
+
+        private WaitingForPeerEngine() throws Exception {
+            this.delegate = SSLContext.getDefault().createSSLEngine();
+        }
+
+        @Override
+        public SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length, final ByteBuffer dst) {
+            return new SSLEngineResult(SSLEngineResult.Status.OK, SSLEngineResult.HandshakeStatus.NEED_UNWRAP, 0, 0);
+        }
+
+        @Override
+        public SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dsts, final int offset, final int length) {
+            return new SSLEngineResult(SSLEngineResult.Status.BUFFER_UNDERFLOW, SSLEngineResult.HandshakeStatus.NEED_UNWRAP, 0, 0);
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+        }
+
+        @Override
+        public void beginHandshake() {
+
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return null;
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return delegate.getSession();
+        }
+
+        @Override
+        public void closeInbound() {
+
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return false;
+        }
+
+        @Override
+        public void closeOutbound() {
+
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return false;
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(final String[] suites) {
+
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(final String[] protocols) {
+
+        }
+
+        @Override
+        public void setUseClientMode(final boolean mode) {
+
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return false;
+        }
+
+        @Override
+        public void setNeedClientAuth(final boolean need) {
+
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setWantClientAuth(final boolean want) {
+
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return false;
+        }
+
+        @Override
+        public void setEnableSessionCreation(final boolean flag) {
+
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021-Current jittagornp.me
+ */
+package me.jittagornp.example.websocket;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ring of {@link TopicHistory} : replay from an offset, oldest frames dropped on wrap, reload of a mapped file
+ *
+ * @author jitta
+ */
+class TopicHistoryTest {
+
+    //Entry header (12) + frame header (2) + payload padded to 8 bytes
+    private static final int ENTRY_SIZE = 22;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysFramesAfterOffset() {
+        final TopicHistory history = TopicHistory.inMemory(1024, 0);
+        assertEquals(1, append(history, "m1"));
+        assertEquals(2, append(history, "m2"));
+        assertEquals(3, append(history, "m3"));
+
+        assertEquals(List.of("m2", "m3"), replay(history, 1));
+        assertEquals(List.of("m1", "m2", "m3"), replay(history, 0));
+
+        //Up to date, nothing to replay
+        assertEquals(List.of(), replay(history, 3));
+
+        //Offset never given out
+        assertFalse(history.replay(4, frame -> {
+        }));
+    }
+
+    @Test
+    void wrapsAndDropsOldestFrames() {
+        //Room for 4 entries and less than a 5th, which wraps to the start of the ring
+        final TopicHistory history = TopicHistory.inMemory(ENTRY_SIZE * 4 + 12, 0);
+        for (int i = 1; i <= 10; i++) {
+            append(history, pad("m" + i));
+        }
+        assertEquals(10, history.getLastSequence());
+
+        //1. Last 4 frames are kept, oldest first
+        assertEquals(List.of(pad("m7"), pad("m8"), pad("m9"), pad("m10")), replay(history, 6));
+
+        //2. Frame 6 has been overwritten, a resume from 5 would miss it
+        assertFalse(history.replay(5, frame -> {
+        }));
+        assertFalse(history.replay(0, frame -> {
+        }));
+    }
+
+    @Test
+    void frameBiggerThanRingDropsEverything() {
+        final TopicHistory history = TopicHistory.inMemory(64, 0);
+        append(history, "m1");
+        append(history, "x".repeat(100));
+
+        assertEquals(2, history.getLastSequence());
+        assertFalse(history.replay(1, frame -> {
+        }));
+        assertEquals(List.of(), replay(history, 2));
+
+        //Recorded again from the next frame
+        append(history, "m3");
+        assertEquals(List.of("m3"), replay(history, 2));
+    }
+
+    @Test
+    void continuesSequenceOfEvictedHistory() {
+        final TopicHistory history = TopicHistory.inMemory(1024, 41);
+        assertEquals(41, history.getLastSequence());
+        assertEquals(42, append(history, "m42"));
+        assertFalse(history.replay(0, frame -> {
+        }));
+    }
+
+    @Test
+    void reloadsMappedFile() throws Exception {
+        final Path file = directory.resolve("chat.room.history");
+        final TopicHistory history = TopicHistory.mapped(file, 1024);
+        assertTrue(history.isMapped());
+        append(history, "m1");
+        append(history, "m2");
+        append(history, "m3");
+
+        //After restart
+        final TopicHistory reloaded = TopicHistory.mapped(file, 1024);
+        assertEquals(3, reloaded.getLastSequence());
+        assertEquals(List.of("m2", "m3"), replay(reloaded, 1));
+        assertEquals(4, append(reloaded, "m4"));
+
+        //Other capacity, starts empty
+        final TopicHistory resized = TopicHistory.mapped(file, 2048);
+        assertEquals(0, resized.getLastSequence());
+    }
+
+    private static long append(final TopicHistory history, final String message) {
+        final ByteBuffer payload = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        final ByteBuffer header = ByteBuffer.wrap(new byte[]{(byte) 0x81, (byte) Math.min(payload.remaining(), 125)});
+        return history.append(header, payload);
+    }
+
+    /**
+     * Payloads of the replayed frames, after the 2 bytes header
+     */
+    private static List<String> replay(final TopicHistory history, final long offset) {
+        final List<String> messages = new ArrayList<>();
+        assertTrue(history.replay(offset, frame -> messages.add(StandardCharsets.UTF_8.decode(frame.position(2)).toString())));
+        return messages;
+    }
+
+    /**
+     * Same entry size for every frame
+     */
+    private static String pad(final String message) {
+        return (message + "        ").substring(0, ENTRY_SIZE - 12 - 2);
+    }
+}